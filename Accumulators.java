@@ -0,0 +1,169 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * The Accumulators class is an opt-in store of global variables shared by the evaluations of
+ * compiled expressions running on many threads, see {@link Expression#compile(Parser.Node, Expression.Library, Accumulators)}.
+ * Assignments to accumulators are thread-safe and take no locks:
+ * <ul>
+ *     <li>sums, declared with {@link #declareSum}, support {@code +=} and {@code -=}, which are added to striped cells
+ *     ({@code DoubleAdder}), so concurrent updates from many cores do not contend on a single memory location.</li>
+ *     <li>values, declared with {@link #declare}, support all assignments, which are applied using compare-and-set loops.</li>
+ * </ul>
+ * An assignment to an accumulator evaluates to its right operand, since the accumulated value
+ * is not known without summing the cells. Reading an accumulator from an expression returns
+ * the current value, which may not include concurrent updates.
+ * <p>
+ * Accumulators must be declared before compiling the expressions using them.
+ */
+public final class Accumulators {
+	private final Map<String, Accumulator> accumulators = new LinkedHashMap<>();
+
+	/**
+	 * Declare an accumulator supporting only additions and subtractions, with the initial value 0.
+	 *
+	 * @param name the name of the accumulator.
+	 * @throws Error if the name is already declared.
+	 */
+	public synchronized void declareSum(String name) throws Error {
+		if (accumulators.containsKey(name)) {
+			throw new Error("Already defined: " + name);
+		}
+		accumulators.put(name, new Accumulator(name, new DoubleAdder(), null));
+	}
+
+	/**
+	 * Declare an accumulator supporting all assignments.
+	 *
+	 * @param name    the name of the accumulator.
+	 * @param initial the initial value of the accumulator.
+	 * @throws Error if the name is already declared.
+	 */
+	public synchronized void declare(String name, double initial) throws Error {
+		if (accumulators.containsKey(name)) {
+			throw new Error("Already defined: " + name);
+		}
+		accumulators.put(name, new Accumulator(name, null, new AtomicLong(Double.doubleToRawLongBits(initial))));
+	}
+
+	/**
+	 * Get the current value of an accumulator.
+	 *
+	 * @param name the name of the accumulator.
+	 * @return the value of the accumulator.
+	 * @throws Error if the name is not declared.
+	 */
+	public double get(String name) throws Error {
+		Accumulator accumulator = find(name);
+		if (accumulator == null) {
+			throw new Error("Invalid accumulator: " + name);
+		}
+		return accumulator.get();
+	}
+
+	/**
+	 * Read the values of all accumulators, one after the other. Each value is read without locks,
+	 * so the snapshot is not atomic: it may include some concurrent assignments and miss others.
+	 * The snapshot is exact only if no assignment runs concurrently, ex: after all evaluations completed.
+	 *
+	 * @return the names and values of the accumulators, in the order of declaration.
+	 */
+	public Map<String, Double> snapshot() {
+		Accumulator[] all;
+		synchronized (this) {
+			all = accumulators.values().toArray(new Accumulator[0]);
+		}
+
+		Map<String, Double> result = new LinkedHashMap<>();
+		for (Accumulator accumulator : all) {
+			result.put(accumulator.name, accumulator.get());
+		}
+		return result;
+	}
+
+	// resolve an accumulator at compile time, or null if the name is not declared.
+	synchronized Accumulator find(String name) {
+		return accumulators.get(name);
+	}
+
+	/**
+	 * A shared variable, either striped (sum) or updated with compare-and-set loops (value).
+	 */
+	static final class Accumulator {
+		final String name;
+		private final DoubleAdder sum;
+		private final AtomicLong value;
+
+		private Accumulator(String name, DoubleAdder sum, AtomicLong value) {
+			this.name = name;
+			this.sum = sum;
+			this.value = value;
+		}
+
+		/**
+		 * Check if the assignment operator can be applied to this accumulator.
+		 */
+		boolean supports(Lexer.Token token) {
+			if (sum != null) {
+				return token == Lexer.Token.SetAdd || token == Lexer.Token.SetSub;
+			}
+			switch (token) {
+				case Set:
+				case SetAdd:
+				case SetSub:
+				case SetMul:
+				case SetDiv:
+				case SetRem:
+					return true;
+			}
+			return false;
+		}
+
+		double get() {
+			if (sum != null) {
+				return sum.sum();
+			}
+			return Double.longBitsToDouble(value.get());
+		}
+
+		/**
+		 * Apply the assignment operator, which must be supported by this accumulator.
+		 */
+		void update(Lexer.Token token, double operand) {
+			if (sum != null) {
+				sum.add(token == Lexer.Token.SetSub ? -operand : operand);
+				return;
+			}
+
+			long expected;
+			long updated;
+			do {
+				expected = value.get();
+				double current = Double.longBitsToDouble(expected);
+				switch (token) {
+					case SetAdd:
+						current += operand;
+						break;
+					case SetSub:
+						current -= operand;
+						break;
+					case SetMul:
+						current *= operand;
+						break;
+					case SetDiv:
+						current /= operand;
+						break;
+					case SetRem:
+						current %= operand;
+						break;
+					default:
+						current = operand;
+						break;
+				}
+				updated = Double.doubleToRawLongBits(current);
+			} while (!value.compareAndSet(expected, updated));
+		}
+	}
+}
@@ -0,0 +1,280 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * The BatchEvaluator class evaluates expressions whose identifiers and function calls are resolved by slow lookups,
+ * like a remote service. Before evaluating, a pre-pass collects all the identifiers of the expression,
+ * and the calls of pure functions (see {@link #isPure}) with constant arguments, which are resolved together,
+ * with a single asynchronous call of {@link #resolve}. The evaluation starts when the batch is resolved,
+ * so an expression waits for a single round-trip, instead of one for each lookup.
+ * <p>
+ * Identifiers and calls which are not resolved by the batch, like numbers, or functions called
+ * with variable arguments, are evaluated synchronously by the usual {@code onValue} and {@code onFunction} hooks.
+ * The evaluation is done by this evaluator, so overrides of {@code evaluate}, lazy functions, the cache, the profile
+ * and the fuel apply as to synchronous evaluations. The resolved batch is bound to the evaluating thread,
+ * so the evaluator can evaluate many expressions concurrently.
+ */
+public abstract class BatchEvaluator extends Evaluator {
+
+	// the batch resolved for the evaluation running on the current thread, if any
+	private final ThreadLocal<Batch> resolved = new ThreadLocal<>();
+
+	/**
+	 * Resolve the identifiers and calls of the batch, the lookups should be done asynchronously,
+	 * ex: on a pool of threads sized for blocking calls, or by a non-blocking client.
+	 * The resolved values are set on the batch, before the returned future is completed.
+	 * Items which are not set are evaluated synchronously.
+	 *
+	 * @param batch the identifiers and calls used by an expression.
+	 * @return a future completed when the batch is resolved.
+	 */
+	protected abstract CompletableFuture<?> resolve(Batch batch);
+
+	/**
+	 * Resolve the identifiers and the pure calls of the expression in a single batch, then evaluate it.
+	 *
+	 * @param root root of the syntax tree.
+	 * @return the value of the expression, or the first error, wrapped in a {@code CompletionException}.
+	 */
+	public CompletableFuture<Double> evaluateAsync(Parser.Node root) {
+		Batch batch = new Batch();
+		collect(batch, root);
+		CompletableFuture<?> resolved = CompletableFuture.completedFuture(null);
+		if (!batch.names.isEmpty() || !batch.calls.isEmpty()) {
+			resolved = resolve(batch);
+		}
+		return resolved.thenApply(ignored -> evaluate(batch, root));
+	}
+
+	// evaluate the expression using the values resolved by the batch.
+	private double evaluate(Batch batch, Parser.Node root) {
+		Batch previous = resolved.get();
+		resolved.set(batch);
+		try {
+			return evaluate(root);
+		} catch (Error e) {
+			throw new CompletionException(e);
+		} finally {
+			if (previous == null) {
+				resolved.remove();
+			} else {
+				resolved.set(previous);
+			}
+		}
+	}
+
+	@Override
+	double lookup(String value) throws Error {
+		Batch batch = resolved.get();
+		if (batch != null) {
+			Double result = batch.values.get(value);
+			if (result != null) {
+				return result;
+			}
+		}
+		return super.lookup(value);
+	}
+
+	@Override
+	double invoke(String function, double[] arguments) throws Error {
+		Batch batch = resolved.get();
+		if (batch != null && !batch.results.isEmpty() && isPure(function)) {
+			Double result = batch.results.get(new Call(function, arguments));
+			if (result != null) {
+				return result;
+			}
+		}
+		return super.invoke(function, arguments);
+	}
+
+	// collect the identifiers and the pure calls with constant arguments.
+	private void collect(Batch batch, Parser.Node node) {
+		if (node == null) {
+			return;
+		}
+		switch (node.token) {
+			case Value:
+				if (isIdentifier(node.getText())) {
+					batch.names.add(node.getText());
+				}
+				return;
+
+			case Fun:
+				if (node.left == null) {
+					collect(batch, node.right);
+					return;
+				}
+				String function = node.left.getText();
+				if (isPure(function) && isConstant(node.right)) {
+					try {
+						// arguments are constant, so the nested evaluator does not resolve anything
+						double[] arguments = arguments(node.right);
+						batch.calls.add(new Call(function, arguments));
+					} catch (Error e) {
+						// reported by the evaluation
+					}
+					return;
+				}
+				collect(batch, node.right);
+				return;
+
+			case Idx:
+				// the array name is not a variable
+				collect(batch, node.right);
+				return;
+		}
+		collect(batch, node.left);
+		collect(batch, node.right);
+	}
+
+	// evaluate the arguments of a call in order.
+	private double[] arguments(Parser.Node node) throws Error {
+		List<Parser.Node> nodes = new ArrayList<>();
+		flatten(nodes, node);
+		double[] result = new double[nodes.size()];
+		for (int i = 0; i < result.length; i += 1) {
+			result[i] = evaluate(nodes.get(i));
+		}
+		return result;
+	}
+
+	private static void flatten(List<Parser.Node> nodes, Parser.Node node) {
+		if (node == null) {
+			return;
+		}
+		if (node.token == Lexer.Token.Coma) {
+			flatten(nodes, node.left);
+			flatten(nodes, node.right);
+			return;
+		}
+		nodes.add(node);
+	}
+
+	// check if the subtree uses only numbers and operators.
+	private static boolean isConstant(Parser.Node node) {
+		if (node == null) {
+			return true;
+		}
+		switch (node.token) {
+			case Value:
+				return !isIdentifier(node.getText());
+
+			case Fun:
+				if (node.left != null) {
+					return false;
+				}
+				break;
+
+			case Idx:
+			case Set:
+			case SetAdd:
+			case SetSub:
+			case SetMul:
+			case SetDiv:
+			case SetRem:
+				return false;
+		}
+		return isConstant(node.left) && isConstant(node.right);
+	}
+
+	private static boolean isIdentifier(String text) {
+		return !text.isEmpty() && Character.isJavaIdentifierStart(text.charAt(0));
+	}
+
+	/**
+	 * A call of a pure function with constant arguments.
+	 */
+	public static final class Call {
+		private final String function;
+		private final double[] arguments;
+
+		Call(String function, double[] arguments) {
+			this.function = function;
+			this.arguments = arguments;
+		}
+
+		public String getFunction() {
+			return function;
+		}
+
+		public double[] getArguments() {
+			return arguments.clone();
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Call)) {
+				return false;
+			}
+			Call call = (Call) other;
+			return function.equals(call.function) && Arrays.equals(arguments, call.arguments);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * function.hashCode() + Arrays.hashCode(arguments);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder result = new StringBuilder(function).append('(');
+			for (int i = 0; i < arguments.length; i += 1) {
+				if (i > 0) {
+					result.append(", ");
+				}
+				result.append(arguments[i]);
+			}
+			return result.append(')').toString();
+		}
+	}
+
+	/**
+	 * The identifiers and calls used by an expression, and their resolved values.
+	 * A batch is resolved by a single thread.
+	 */
+	public static final class Batch {
+		private final Set<String> names = new LinkedHashSet<>();
+		private final Set<Call> calls = new LinkedHashSet<>();
+		private final Map<String, Double> values = new HashMap<>();
+		private final Map<Call, Double> results = new HashMap<>();
+
+		private Batch() {
+		}
+
+		/**
+		 * Get the identifiers used by the expression, in the order of their first use.
+		 */
+		public Set<String> getNames() {
+			return Collections.unmodifiableSet(names);
+		}
+
+		/**
+		 * Get the calls of pure functions with constant arguments, in the order of their first use.
+		 */
+		public Set<Call> getCalls() {
+			return Collections.unmodifiableSet(calls);
+		}
+
+		/**
+		 * Set the value of an identifier.
+		 */
+		public void set(String name, double value) {
+			values.put(name, value);
+		}
+
+		/**
+		 * Set the result of a call.
+		 */
+		public void set(Call call, double value) {
+			results.put(call, value);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The Column class is a view of doubles stored in a byte buffer, which can be on-heap, direct (off-heap),
+ * or a memory-mapped file. The elements start at an offset and are separated by a stride,
+ * so a column can read a field of interleaved records, ex: the `y` of `x, y, z` records has offset 8 and stride 24.
+ * <p>
+ * Columns are bound to the variables and arrays of a {@link Expression.Frame}, and the elements are read
+ * in place, using the byte order of the buffer, without copying or boxing.
+ * A column only uses absolute reads, so it can be shared by many threads, as long as the buffer is not modified.
+ * A buffer is limited to 2GB, so a column can not view a larger file: the caller has to map it as multiple
+ * buffers, and evaluate each range of records with its own columns.
+ */
+public final class Column {
+	private final ByteBuffer buffer;
+	private final int offset;
+	private final int stride;
+	private final int length;
+
+	private Column(ByteBuffer buffer, int offset, int stride, int length) {
+		this.buffer = buffer;
+		this.offset = offset;
+		this.stride = stride;
+		this.length = length;
+	}
+
+	/**
+	 * Create a view of consecutive doubles.
+	 *
+	 * @param buffer the buffer holding the elements.
+	 * @param offset the offset of the first element in bytes.
+	 * @param length the number of elements.
+	 * @return the column.
+	 */
+	public static Column of(ByteBuffer buffer, int offset, int length) {
+		return of(buffer, offset, Double.BYTES, length);
+	}
+
+	/**
+	 * Create a view of doubles separated by a stride.
+	 *
+	 * @param buffer the buffer holding the elements.
+	 * @param offset the offset of the first element in bytes.
+	 * @param stride the distance between the elements in bytes.
+	 * @param length the number of elements.
+	 * @return the column.
+	 * @throws IndexOutOfBoundsException if the elements are not inside the buffer.
+	 */
+	public static Column of(ByteBuffer buffer, int offset, int stride, int length) {
+		if (offset < 0 || stride < Double.BYTES || length < 0) {
+			throw new IllegalArgumentException("Invalid column: offset: " + offset + ", stride: " + stride + ", length: " + length);
+		}
+		if (length > 0 && offset + (long) (length - 1) * stride + Double.BYTES > buffer.limit()) {
+			throw new IndexOutOfBoundsException("Column out of bounds for buffer limit: " + buffer.limit());
+		}
+		// the view keeps the byte order, but not the position of the buffer
+		ByteOrder order = buffer.order();
+		return new Column(buffer.duplicate().order(order), offset, stride, length);
+	}
+
+	/**
+	 * Get the number of elements.
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Read an element.
+	 *
+	 * @param index the index of the element, must be less than the length.
+	 * @return the value of the element.
+	 */
+	public double get(int index) {
+		return buffer.getDouble(offset + index * stride);
+	}
+}
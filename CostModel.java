@@ -0,0 +1,260 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * The CostModel class estimates the cost of evaluating an expression, without evaluating it,
+ * so expressions can be admitted, or scheduled across threads, by their cost instead of their count.
+ * <p>
+ * Costs are measured in the units of {@link Fuel}: each evaluated node costs a unit,
+ * function calls cost the units declared for the function, see {@link #declare},
+ * and array accesses cost an extra weight, for the lookup and the bounds checks.
+ * The right operands of {@code &&} and {@code ||} are evaluated with the short-circuit probability,
+ * and each branch of {@code ?:} with half of the probability of the conditional.
+ * <p>
+ * An estimate holds the expected cost, the cost of the worst case, when all the operands and the most
+ * expensive branches are evaluated, and the breakdown of the expected cost by nodes, array accesses and functions.
+ * With the default weights, the cost of the worst case is an upper bound of the fuel consumed by the
+ * tree-walking {@code Evaluator}, so it can be used to choose the capacity of the fuel.
+ */
+public final class CostModel {
+	// breakdown entries of the nodes and the array accesses, functions are reported by name
+	public static final String NODES = "nodes";
+	public static final String ARRAYS = "arrays";
+
+	private final Map<String, Double> costs = new HashMap<>();
+	private double callCost = 0;
+	private double arrayCost = 1;
+	private double probability = .5;
+
+	/**
+	 * Declare the cost of a function, consumed by each call, in addition to the unit of the call.
+	 *
+	 * @param function the name of the function.
+	 * @param cost     the cost of a call.
+	 * @return this model.
+	 */
+	public CostModel declare(String function, double cost) {
+		if (!(cost >= 0)) {
+			throw new IllegalArgumentException("Invalid cost: " + cost);
+		}
+		costs.put(function, cost);
+		return this;
+	}
+
+	/**
+	 * Set the cost of calling functions which are not declared, 0 by default.
+	 *
+	 * @param cost the cost of a call.
+	 * @return this model.
+	 */
+	public CostModel setCallCost(double cost) {
+		if (!(cost >= 0)) {
+			throw new IllegalArgumentException("Invalid cost: " + cost);
+		}
+		this.callCost = cost;
+		return this;
+	}
+
+	/**
+	 * Set the cost of an array access, in addition to the unit of the node, 1 by default.
+	 *
+	 * @param cost the cost of an access.
+	 * @return this model.
+	 */
+	public CostModel setArrayCost(double cost) {
+		if (!(cost >= 0)) {
+			throw new IllegalArgumentException("Invalid cost: " + cost);
+		}
+		this.arrayCost = cost;
+		return this;
+	}
+
+	/**
+	 * Set the probability of evaluating the right operand of {@code &&} and {@code ||}, 0.5 by default.
+	 *
+	 * @param probability the probability, between 0 and 1.
+	 * @return this model.
+	 */
+	public CostModel setShortCircuitProbability(double probability) {
+		if (!(probability >= 0 && probability <= 1)) {
+			throw new IllegalArgumentException("Invalid probability: " + probability);
+		}
+		this.probability = probability;
+		return this;
+	}
+
+	/**
+	 * Estimate the cost of evaluating the expression.
+	 *
+	 * @param root root of the syntax tree.
+	 * @return the estimate.
+	 */
+	public Estimate estimate(Parser.Node root) {
+		Estimate result = new Estimate();
+		result.breakdown.put(NODES, 0.);
+		result.breakdown.put(ARRAYS, 0.);
+		result.maxCost = visit(result, root, 1);
+		return result;
+	}
+
+	/**
+	 * Split the expressions into partitions of balanced estimated costs, see {@link #partition(List, ToDoubleFunction, int)}.
+	 *
+	 * @param roots the syntax trees of the expressions.
+	 * @param count the number of partitions.
+	 * @return the partitions, each of them in the order of the expressions.
+	 */
+	public List<List<Parser.Node>> partition(List<Parser.Node> roots, int count) {
+		return partition(roots, root -> estimate(root).getCost(), count);
+	}
+
+	/**
+	 * Split the items into partitions of balanced costs, to be evaluated in parallel, one partition by each thread.
+	 * The items are assigned from the most expensive to the cheapest, each of them to the partition with the lowest
+	 * cost so far (longest processing time first), so the most expensive partition, which delays the whole batch,
+	 * is at most 4/3 of the optimum.
+	 *
+	 * @param items the items to split.
+	 * @param cost  the estimated cost of an item.
+	 * @param count the number of partitions.
+	 * @return the partitions, some of them might be empty, each of them in the order of the items.
+	 */
+	public static <T> List<List<T>> partition(List<T> items, ToDoubleFunction<? super T> cost, int count) {
+		if (count <= 0) {
+			throw new IllegalArgumentException("Invalid partition count: " + count);
+		}
+		double[] costs = new double[items.size()];
+		Integer[] order = new Integer[items.size()];
+		for (int i = 0; i < costs.length; i += 1) {
+			costs[i] = cost.applyAsDouble(items.get(i));
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Double.compare(costs[b], costs[a]));
+
+		// partitions by their total cost, then by their index
+		double[] totals = new double[count];
+		PriorityQueue<Integer> lightest = new PriorityQueue<>(count, (a, b) -> {
+			int result = Double.compare(totals[a], totals[b]);
+			return result != 0 ? result : Integer.compare(a, b);
+		});
+		for (int p = 0; p < count; p += 1) {
+			lightest.add(p);
+		}
+		int[] assigned = new int[costs.length];
+		for (int i : order) {
+			int p = lightest.poll();
+			assigned[i] = p;
+			totals[p] += costs[i];
+			lightest.add(p);
+		}
+
+		List<List<T>> result = new ArrayList<>();
+		for (int p = 0; p < count; p += 1) {
+			result.add(new ArrayList<>());
+		}
+		for (int i = 0; i < costs.length; i += 1) {
+			result.get(assigned[i]).add(items.get(i));
+		}
+		return result;
+	}
+
+	// add the expected cost of the subtree, evaluated with the given probability, returning the cost of the worst case.
+	private double visit(Estimate estimate, Parser.Node node, double weight) {
+		if (node == null) {
+			return 0;
+		}
+		estimate.add(NODES, weight);
+		switch (node.token) {
+			case Fun:
+				if (node.left == null) {
+					// subexpression with parenthesis: `(3 + 2)`
+					return 1 + visit(estimate, node.right, weight);
+				}
+				// the name is not evaluated, and the arguments are evaluated before the call
+				String function = node.left.getText();
+				Double declared = costs.get(function);
+				double call = declared != null ? declared : callCost;
+				estimate.add(function, weight * call);
+				return 1 + call + visitArguments(estimate, node.right, weight);
+
+			case Idx:
+				// the name is not evaluated
+				estimate.add(ARRAYS, weight * arrayCost);
+				return 1 + arrayCost + visit(estimate, node.right, weight);
+
+			case All:
+			case Any:
+				return 1 + visit(estimate, node.left, weight) + visit(estimate, node.right, weight * probability);
+
+			case Chk:
+				if (node.right != null && node.right.token == Lexer.Token.Sel) {
+					double condition = visit(estimate, node.left, weight);
+					double left = visit(estimate, node.right.left, weight / 2);
+					double right = visit(estimate, node.right.right, weight / 2);
+					return 1 + condition + Math.max(left, right);
+				}
+				break;
+		}
+		return 1 + visit(estimate, node.left, weight) + visit(estimate, node.right, weight);
+	}
+
+	// the commas separating the arguments are not evaluated.
+	private double visitArguments(Estimate estimate, Parser.Node node, double weight) {
+		if (node != null && node.token == Lexer.Token.Coma) {
+			return visitArguments(estimate, node.left, weight) + visitArguments(estimate, node.right, weight);
+		}
+		return visit(estimate, node, weight);
+	}
+
+	/**
+	 * The estimated cost of an expression.
+	 */
+	public static final class Estimate {
+		private final Map<String, Double> breakdown = new LinkedHashMap<>();
+		private double cost;
+		private double maxCost;
+
+		private Estimate() {
+		}
+
+		/**
+		 * Get the expected cost of an evaluation.
+		 */
+		public double getCost() {
+			return cost;
+		}
+
+		/**
+		 * Get the cost of the worst case: all the operands of {@code &&} and {@code ||},
+		 * and the most expensive branches of {@code ?:} are evaluated.
+		 */
+		public double getMaxCost() {
+			return maxCost;
+		}
+
+		/**
+		 * Get the expected cost of the nodes ({@value CostModel#NODES}), the array accesses ({@value CostModel#ARRAYS}),
+		 * and the calls of each function, by name, adding up to the expected cost.
+		 */
+		public Map<String, Double> getBreakdown() {
+			return Collections.unmodifiableMap(breakdown);
+		}
+
+		private void add(String entry, double cost) {
+			breakdown.merge(entry, cost, Double::sum);
+			this.cost += cost;
+		}
+
+		@Override
+		public String toString() {
+			return "cost: " + cost + ", max: " + maxCost + ", breakdown: " + breakdown;
+		}
+	}
+}
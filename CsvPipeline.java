@@ -0,0 +1,370 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * The CsvPipeline class evaluates a compiled expression for each row of a CSV file,
+ * and writes the results to another file, one value per line, in the order of the rows.
+ * <p>
+ * The first line of the input is the header, which binds the columns to the variables of the expression,
+ * columns not used by the expression are skipped without parsing. Each variable must have a column,
+ * so every row sets all the variables. Fields are not quoted, and are separated by a single character.
+ * <p>
+ * The input is memory-mapped in chunks ending at line boundaries, which are parsed and evaluated in parallel.
+ * Numbers are parsed directly from the mapped bytes, and each chunk reuses a single evaluation frame,
+ * so no allocation is done per row, except for numbers which can not be converted exactly
+ * by the fast path, like those with more than 15 significant digits.
+ * The results of the chunks are written in order, and the number of chunks in flight is bounded,
+ * so the memory used does not depend on the size of the file.
+ */
+public final class CsvPipeline {
+	// default size of the chunks, a line must fit in a chunk.
+	static final int CHUNK_SIZE = 8 << 20;
+
+	// powers of ten which are exact doubles.
+	private static final double[] POWERS = {
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+			1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private final Expression expression;
+	private final char separator;
+	private final int chunkSize;
+	private final ExecutorService executor;
+	private final int inFlight;
+
+	/**
+	 * Constructs a pipeline, evaluating comma separated files on the common fork-join pool.
+	 *
+	 * @param expression the expression evaluated for each row.
+	 */
+	public CsvPipeline(Expression expression) {
+		this(expression, ',', CHUNK_SIZE, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Constructs a pipeline.
+	 *
+	 * @param expression the expression evaluated for each row.
+	 * @param separator  the character separating the fields.
+	 * @param chunkSize  the size of the chunks in bytes, must be larger than the longest line.
+	 * @param executor   evaluates the chunks.
+	 */
+	public CsvPipeline(Expression expression, char separator, int chunkSize, ExecutorService executor) {
+		if (separator > 127 || separator == '\n' || separator == '\r') {
+			throw new IllegalArgumentException("Invalid separator: " + separator);
+		}
+		this.expression = expression;
+		this.separator = separator;
+		this.chunkSize = chunkSize;
+		this.executor = executor;
+		this.inFlight = 2 * Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Evaluate the expression for each row of the input, writing the results to the output.
+	 *
+	 * @param input  the CSV file, starting with the header.
+	 * @param output the file of the results, replaced if it exists.
+	 * @return the number of rows evaluated.
+	 * @throws IOException if a file can not be read or written.
+	 * @throws Error if a column is missing, a field is not a number, or the evaluation failed,
+	 *               with the file and line of the row.
+	 */
+	public long evaluate(Path input, Path output) throws IOException, Error {
+		String file = input.toString();
+		ArrayDeque<Future<Chunk>> pending = new ArrayDeque<>();
+		try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE,
+						StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			long size = in.size();
+			MappedByteBuffer first = in.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, chunkSize));
+			int header = lineEnd(first, 0);
+			if (header == first.limit() && first.limit() < size) {
+				throw new Error(file, 1, new Error("Line too long"));
+			}
+			int[] columns = bind(file, first, header);
+
+			long rows = 0;
+			long lines = 1;
+			long position = Math.min(header + 1, size);
+			while (position < size || !pending.isEmpty()) {
+				if (position < size && pending.size() < inFlight) {
+					MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, chunkSize));
+					int end = buffer.limit();
+					if (position + end < size) {
+						// end the chunk after its last complete line
+						while (end > 0 && buffer.get(end - 1) != '\n') {
+							end -= 1;
+						}
+						if (end == 0) {
+							throw new IOException("Line too long, at offset: " + position);
+						}
+						buffer.limit(end);
+					}
+					position += end;
+					pending.add(executor.submit(() -> evaluate(buffer, columns)));
+					continue;
+				}
+
+				Chunk chunk = await(pending.remove());
+				if (chunk.error != null) {
+					// the line of the error is the last line counted by the chunk
+					throw new Error(file, (int) Math.min(lines + chunk.lines, Integer.MAX_VALUE), chunk.error);
+				}
+				ByteBuffer results = ByteBuffer.wrap(chunk.output, 0, chunk.length);
+				while (results.hasRemaining()) {
+					out.write(results);
+				}
+				rows += chunk.rows;
+				lines += chunk.lines;
+			}
+			return rows;
+		} finally {
+			// nothing is waiting for the remaining chunks after an error
+			for (Future<Chunk> future : pending) {
+				future.cancel(false);
+			}
+		}
+	}
+
+	// resolve the slot of the variable bound to each column of the header.
+	private int[] bind(String file, ByteBuffer buffer, int end) throws Error {
+		int count = 1;
+		for (int i = 0; i < end; i += 1) {
+			if (buffer.get(i) == separator) {
+				count += 1;
+			}
+		}
+		int[] columns = new int[count];
+		boolean[] bound = new boolean[expression.getVariables().size()];
+		int start = 0;
+		for (int column = 0; column < count; column += 1) {
+			int next = start;
+			while (next < end && buffer.get(next) != separator) {
+				next += 1;
+			}
+			byte[] bytes = new byte[next - start];
+			buffer.get(start, bytes);
+			String name = new String(bytes, StandardCharsets.UTF_8).trim();
+			columns[column] = expression.variable(name);
+			if (columns[column] >= 0) {
+				if (bound[columns[column]]) {
+					throw new Error(file, 1, new Error("Already defined: " + name));
+				}
+				bound[columns[column]] = true;
+			}
+			start = next + 1;
+		}
+		for (int slot = 0; slot < bound.length; slot += 1) {
+			if (!bound[slot]) {
+				throw new Error(file, 1, new Error("Missing column: " + expression.getVariables().get(slot)));
+			}
+		}
+		return columns;
+	}
+
+	// parse and evaluate the rows of a chunk.
+	private Chunk evaluate(ByteBuffer buffer, int[] columns) {
+		Chunk chunk = new Chunk(buffer.limit() / 4 + 64);
+		Expression.Frame frame = expression.newFrame();
+		StringBuilder text = new StringBuilder(32);
+		int position = 0;
+		while (position < buffer.limit()) {
+			int end = lineEnd(buffer, position);
+			chunk.lines += 1;
+			if (trim(buffer, position, end) == position) {
+				// skip empty lines
+				position = end + 1;
+				continue;
+			}
+			try {
+				int start = position;
+				for (int column = 0; column < columns.length; column += 1) {
+					int next = start;
+					while (next < end && buffer.get(next) != separator) {
+						next += 1;
+					}
+					if (columns[column] >= 0) {
+						frame.set(columns[column], parse(buffer, start, next));
+					}
+					if (next == end && column + 1 < columns.length) {
+						throw new Error("Missing fields, expected: " + columns.length);
+					}
+					start = next + 1;
+				}
+				text.setLength(0);
+				text.append(expression.evaluate(frame)).append('\n');
+			} catch (Error e) {
+				chunk.error = e;
+				return chunk;
+			}
+			chunk.append(text);
+			chunk.rows += 1;
+			position = end + 1;
+		}
+		return chunk;
+	}
+
+	/**
+	 * Parse a number from the bytes of the buffer, ignoring surrounding spaces.
+	 * Numbers with at most 15 significant digits and small exponents are converted exactly,
+	 * with a single multiplication or division, other numbers are parsed by {@code Double.parseDouble}.
+	 */
+	static double parse(ByteBuffer buffer, int start, int end) throws Error {
+		while (start < end && buffer.get(start) == ' ') {
+			start += 1;
+		}
+		end = trim(buffer, start, end);
+
+		int position = start;
+		boolean negative = false;
+		if (position < end && (buffer.get(position) == '-' || buffer.get(position) == '+')) {
+			negative = buffer.get(position) == '-';
+			position += 1;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean fraction = false;
+		boolean any = false;
+		for (; position < end; position += 1) {
+			byte chr = buffer.get(position);
+			if (chr == '.' && !fraction) {
+				fraction = true;
+				continue;
+			}
+			if (chr < '0' || chr > '9') {
+				break;
+			}
+			any = true;
+			if (mantissa == 0 && chr == '0') {
+				// leading zeros are not significant
+				exponent -= fraction ? 1 : 0;
+				continue;
+			}
+			if (digits < 18) {
+				mantissa = 10 * mantissa + (chr - '0');
+				exponent -= fraction ? 1 : 0;
+			} else if (!fraction) {
+				exponent += 1;
+			}
+			digits += 1;
+		}
+		if (any && position < end && (buffer.get(position) == 'e' || buffer.get(position) == 'E')) {
+			position += 1;
+			boolean negativeExponent = false;
+			if (position < end && (buffer.get(position) == '-' || buffer.get(position) == '+')) {
+				negativeExponent = buffer.get(position) == '-';
+				position += 1;
+			}
+			int value = 0;
+			boolean anyExponent = false;
+			for (; position < end && buffer.get(position) >= '0' && buffer.get(position) <= '9'; position += 1) {
+				value = Math.min(10 * value + (buffer.get(position) - '0'), 100000);
+				anyExponent = true;
+			}
+			any = anyExponent;
+			exponent += negativeExponent ? -value : value;
+		}
+
+		if (any && position == end && digits <= 15) {
+			double value = mantissa;
+			if (exponent >= 0 && exponent < POWERS.length) {
+				value *= POWERS[exponent];
+				return negative ? -value : value;
+			}
+			if (exponent < 0 && -exponent < POWERS.length) {
+				value /= POWERS[-exponent];
+				return negative ? -value : value;
+			}
+		}
+
+		// slow path: nan, infinity, more digits or large exponents
+		byte[] bytes = new byte[end - start];
+		buffer.get(start, bytes);
+		String text = new String(bytes, StandardCharsets.US_ASCII);
+		if (isDecimal(text) || text.matches("[+-]?(NaN|Infinity)")) {
+			try {
+				return Double.parseDouble(text);
+			} catch (NumberFormatException e) {
+				// reported below
+			}
+		}
+		throw new Error("Invalid number: `" + text + "`");
+	}
+
+	// check if the text contains only the characters of decimal numbers,
+	// since Double.parseDouble also accepts hexadecimal numbers and type suffixes.
+	private static boolean isDecimal(String text) {
+		for (int i = 0; i < text.length(); i += 1) {
+			char chr = text.charAt(i);
+			if ((chr < '0' || chr > '9') && chr != '.' && chr != 'e' && chr != 'E' && chr != '+' && chr != '-') {
+				return false;
+			}
+		}
+		return !text.isEmpty();
+	}
+
+	// find the end of the line, the position of the new line or the limit of the buffer.
+	private static int lineEnd(ByteBuffer buffer, int position) {
+		while (position < buffer.limit() && buffer.get(position) != '\n') {
+			position += 1;
+		}
+		return position;
+	}
+
+	// skip trailing spaces and carriage returns.
+	private static int trim(ByteBuffer buffer, int start, int end) {
+		while (end > start && (buffer.get(end - 1) == ' ' || buffer.get(end - 1) == '\r')) {
+			end -= 1;
+		}
+		return end;
+	}
+
+	private static Chunk await(Future<Chunk> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Evaluation failed", e.getCause());
+		}
+	}
+
+	/**
+	 * The results of a chunk, as the text to be written, or the first error.
+	 */
+	private static final class Chunk {
+		byte[] output;
+		int length;
+		int lines;
+		int rows;
+		Error error;
+
+		Chunk(int capacity) {
+			this.output = new byte[capacity];
+		}
+
+		// append the ascii characters of the text.
+		void append(CharSequence text) {
+			if (length + text.length() > output.length) {
+				output = Arrays.copyOf(output, Math.max(2 * output.length, length + text.length()));
+			}
+			for (int i = 0; i < text.length(); i += 1) {
+				output[length++] = (byte) text.charAt(i);
+			}
+		}
+	}
+}
@@ -0,0 +1,515 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The DualEvaluator class evaluates an expression together with its partial derivatives
+ * with respect to a set of parameters, in a single pass (forward-mode automatic differentiation).
+ * The result of each node is an array of lanes: the value at index 0, followed by the partial
+ * derivative with respect to each parameter, in the order of the parameters.
+ * <p>
+ * Subexpressions not depending on the parameters are evaluated by the given evaluator, including its overrides
+ * of {@code evaluate}, and have zero derivatives. The values of the parameters are also evaluated by the evaluator.
+ * Functions with arguments depending on the parameters are invoked through {@code onFunction} of the evaluator,
+ * their derivatives are provided by {@link #onDerivative}. Lazy functions, see {@link Evaluator#isLazy},
+ * are supported only with arguments not depending on the parameters.
+ * <p>
+ * Assignments and sequences (`h = u * u, h + 1`) are evaluated together with the derivatives:
+ * the assigned variables hold their derivatives until the end of the evaluation, and shadow the evaluator.
+ * @see <a href="https://en.wikipedia.org/wiki/Automatic_differentiation#Forward_accumulation">Algorithm</a>
+ */
+public class DualEvaluator {
+
+	// resolves the values of constants, variables, arrays and functions.
+	private final Evaluator evaluator;
+
+	// the names of the variables used as parameters.
+	private final String[] parameters;
+
+	// the nodes of the last evaluated tree depending on the parameters or on the assigned variables.
+	private final Set<Parser.Node> dependent = Collections.newSetFromMap(new IdentityHashMap<>());
+	private Parser.Node analyzed;
+
+	// the values and derivatives of the variables assigned during the evaluation.
+	private final Map<String, double[]> locals = new HashMap<>();
+
+	/**
+	 * Constructs a DualEvaluator computing the derivatives with respect to the given parameters.
+	 *
+	 * @param evaluator  the evaluator resolving the values of constants, variables, arrays and functions.
+	 * @param parameters the names of the variables for which partial derivatives are computed.
+	 */
+	public DualEvaluator(Evaluator evaluator, String... parameters) {
+		this.evaluator = evaluator;
+		this.parameters = parameters.clone();
+	}
+
+	/**
+	 * Invoked on functions calls with at least one argument depending on the parameters.
+	 *
+	 * @param function  the name of the function.
+	 * @param arguments values of the arguments of the invocation.
+	 * @param index     the argument for which the partial derivative is computed.
+	 * @return the partial derivative of the function with respect to the argument.
+	 */
+	protected double onDerivative(String function, double[] arguments, int index) throws Error {
+		throw new Error("Derivative not defined for function: " + function);
+	}
+
+	/**
+	 * Evaluate the expression and its partial derivatives starting with the given node as the root.
+	 *
+	 * @param node      root of the syntax tree.
+	 * @return the value at index 0, followed by the partial derivatives with respect to each parameter.
+	 */
+	public double[] evaluate(Parser.Node node) throws Error {
+		if (analyzed != node) {
+			Set<String> names = new HashSet<>(Arrays.asList(parameters));
+			collectAssignments(names, node);
+			dependent.clear();
+			analyze(names, node);
+			analyzed = node;
+		}
+		locals.clear();
+		try {
+			return dual(node);
+		} finally {
+			locals.clear();
+		}
+	}
+
+	private double[] dual(Parser.Node node) throws Error {
+		if (!dependent.contains(node)) {
+			return constant(evaluator.evaluate(node));
+		}
+		double[] left, right;
+		switch (node.token) {
+			case Value:
+				return value(node);
+
+			case Set:
+			case SetAdd:
+			case SetSub:
+			case SetMul:
+			case SetDiv:
+			case SetRem:
+				if (node.left == null || node.left.token != Lexer.Token.Value) {
+					throw new Error("Invalid assignment", node);
+				}
+				right = dual(node.right);
+				if (node.token != Lexer.Token.Set) {
+					right = arithmetic(operator(node.token), value(node.left), right);
+				}
+				locals.put(node.left.getText(), right.clone());
+				return right;
+
+			case Coma:
+				// chain of expressions, returning the value of the last one
+				dual(node.left);
+				return dual(node.right);
+
+			case Fun:
+				if (node.left == null) {
+					if (node.right == null) {
+						// empty parenthesis: `()`
+						throw new Error("Invalid function call", node);
+					}
+
+					// subexpression with parenthesis: `(3 + 2)`
+					return dual(node.right);
+				}
+				if (node.left.token != Lexer.Token.Value) {
+					// invalid function name: `9()`
+					throw new Error("Invalid function call", node);
+				}
+				return onFunction(node.left.getText(), node.right);
+
+			case Idx:
+				if (node.left == null || node.right == null) {
+					// empty index: `[]` or `values[]` or `[values]`
+					throw new Error("Invalid array subscript", node);
+				}
+				if (node.left.token != Lexer.Token.Value) {
+					// invalid array variable: `(9-8)[9]`
+					throw new Error("Invalid array subscript", node);
+				}
+				// elements of arrays are constants, the subscript depends on the assigned variables
+				right = dual(node.right);
+				if (right[0] != (int) right[0]) {
+					throw new Error("Invalid integer subscript", node.right);
+				}
+				return constant(evaluator.onArray(node.left.getText(), (int) right[0]));
+
+			case Pos:
+				return dual(node.right);
+
+			case Neg:
+				right = dual(node.right);
+				for (int i = 0; i < right.length; i += 1) {
+					right[i] = -right[i];
+				}
+				return right;
+
+			case Cmt:
+				right = dual(node.right);
+				if (right[0] != (long) right[0]) {
+					throw new Error("Invalid integer operation", node);
+				}
+				return constant(~(long) right[0]);
+
+			case Not:
+				right = dual(node.right);
+				return constant(right[0] == 0 ? 1 : 0);
+
+			case Pow:
+			case Mul:
+			case Div:
+			case Rem:
+			case Add:
+			case Sub:
+				left = dual(node.left);
+				return arithmetic(node.token, left, dual(node.right));
+
+			case Shl:
+			case Shr:
+			case Sar:
+			case And:
+			case Xor:
+			case Ior:
+				// integer operations are piecewise constant
+				left = dual(node.left);
+				right = dual(node.right);
+				if (left[0] != (long) left[0] || right[0] != (long) right[0]) {
+					throw new Error("Invalid integer operation", node);
+				}
+				return constant(integer(node.token, (long) left[0], (long) right[0]));
+
+			case Lt:
+				left = dual(node.left);
+				right = dual(node.right);
+				return constant(left[0] < right[0] ? 1 : 0);
+
+			case Leq:
+				left = dual(node.left);
+				right = dual(node.right);
+				return constant(left[0] <= right[0] ? 1 : 0);
+
+			case Gt:
+				left = dual(node.left);
+				right = dual(node.right);
+				return constant(left[0] > right[0] ? 1 : 0);
+
+			case Geq:
+				left = dual(node.left);
+				right = dual(node.right);
+				return constant(left[0] >= right[0] ? 1 : 0);
+
+			case Eq:
+				left = dual(node.left);
+				right = dual(node.right);
+				return constant(left[0] == right[0] ? 1 : 0);
+
+			case Neq:
+				left = dual(node.left);
+				right = dual(node.right);
+				return constant(left[0] != right[0] ? 1 : 0);
+
+			case All:
+				left = dual(node.left);
+				if (left[0] == 0) {
+					// stop at the first zero value
+					return left;
+				}
+				return dual(node.right);
+
+			case Any:
+				left = dual(node.left);
+				if (left[0] != 0) {
+					// stop at the first non-zero value
+					return left;
+				}
+				return dual(node.right);
+
+			case Chk:
+				if (node.right == null || node.right.token != Lexer.Token.Sel) {
+					throw new Error("Invalid operation", node);
+				}
+				if (dual(node.left)[0] != 0) {
+					return dual(node.right.left);
+				}
+				return dual(node.right.right);
+		}
+		throw new Error("Invalid operation", node);
+	}
+
+	// the value and the derivatives of a variable, assigned or resolved by the evaluator.
+	private double[] value(Parser.Node node) throws Error {
+		double[] local = locals.get(node.getText());
+		if (local != null) {
+			return local.clone();
+		}
+		double[] result = constant(evaluator.evaluate(node));
+		for (int i = 0; i < parameters.length; i += 1) {
+			if (parameters[i].equals(node.getText())) {
+				result[i + 1] = 1;
+			}
+		}
+		return result;
+	}
+
+	// combine the values and the derivatives of the operands of an arithmetic operator, reusing the left lanes.
+	private static double[] arithmetic(Lexer.Token token, double[] left, double[] right) {
+		switch (token) {
+			case Pow: {
+				double[] result = new double[left.length];
+				result[0] = Math.pow(left[0], right[0]);
+				if (!isConstant(left) && right[0] != 0) {
+					// d(a ** b) = b * a ** (b - 1) * da, a ** 0 is constant
+					double da = right[0] * Math.pow(left[0], right[0] - 1);
+					for (int i = 1; i < result.length; i += 1) {
+						result[i] += da * left[i];
+					}
+				}
+				if (!isConstant(right) && result[0] != 0) {
+					// d(a ** b) = a ** b * ln(a) * db, 0 ** b is constant for positive b
+					double db = result[0] * Math.log(left[0]);
+					for (int i = 1; i < result.length; i += 1) {
+						result[i] += db * right[i];
+					}
+				}
+				return result;
+			}
+
+			case Mul:
+				for (int i = 1; i < left.length; i += 1) {
+					left[i] = left[i] * right[0] + left[0] * right[i];
+				}
+				left[0] *= right[0];
+				return left;
+
+			case Div:
+				for (int i = 1; i < left.length; i += 1) {
+					left[i] = (left[i] * right[0] - left[0] * right[i]) / (right[0] * right[0]);
+				}
+				left[0] /= right[0];
+				return left;
+
+			case Rem: {
+				// a % b == a - b * trunc(a / b)
+				double quotient = (left[0] - left[0] % right[0]) / right[0];
+				for (int i = 1; i < left.length; i += 1) {
+					left[i] -= quotient * right[i];
+				}
+				left[0] %= right[0];
+				return left;
+			}
+
+			case Add:
+				for (int i = 0; i < left.length; i += 1) {
+					left[i] += right[i];
+				}
+				return left;
+
+			case Sub:
+				for (int i = 0; i < left.length; i += 1) {
+					left[i] -= right[i];
+				}
+				return left;
+		}
+		throw new IllegalArgumentException("Invalid arithmetic operation: " + token);
+	}
+
+	// the arithmetic operator of a compound assignment.
+	private static Lexer.Token operator(Lexer.Token assignment) {
+		switch (assignment) {
+			case SetAdd:
+				return Lexer.Token.Add;
+			case SetSub:
+				return Lexer.Token.Sub;
+			case SetMul:
+				return Lexer.Token.Mul;
+			case SetDiv:
+				return Lexer.Token.Div;
+			case SetRem:
+				return Lexer.Token.Rem;
+		}
+		throw new IllegalArgumentException("Invalid assignment: " + assignment);
+	}
+
+	// collect the names of the assigned variables.
+	private static void collectAssignments(Set<String> names, Parser.Node node) {
+		if (node == null) {
+			return;
+		}
+		switch (node.token) {
+			case Set:
+			case SetAdd:
+			case SetSub:
+			case SetMul:
+			case SetDiv:
+			case SetRem:
+				if (node.left != null && node.left.token == Lexer.Token.Value) {
+					names.add(node.left.getText());
+				}
+				break;
+		}
+		collectAssignments(names, node.left);
+		collectAssignments(names, node.right);
+	}
+
+	// mark the nodes depending on the parameters or on the assigned variables, and those making assignments.
+	private boolean analyze(Set<String> names, Parser.Node node) {
+		if (node == null) {
+			return false;
+		}
+		boolean result;
+		switch (node.token) {
+			case Value:
+				result = names.contains(node.getText());
+				break;
+
+			case Fun:
+				if (node.left == null) {
+					result = analyze(names, node.right);
+				} else {
+					// the name of the function is not a variable, neither are the separators of the arguments
+					result = analyzeArguments(names, node.right);
+				}
+				break;
+
+			case Idx:
+				// the name of the array is not a variable
+				result = analyze(names, node.right);
+				break;
+
+			case Set:
+			case SetAdd:
+			case SetSub:
+			case SetMul:
+			case SetDiv:
+			case SetRem:
+			case Coma:
+				// assignments, and sequences, which might not be supported by the evaluator
+				analyze(names, node.left);
+				analyze(names, node.right);
+				result = true;
+				break;
+
+			default:
+				result = analyze(names, node.left) | analyze(names, node.right);
+				break;
+		}
+		if (result) {
+			dependent.add(node);
+		}
+		return result;
+	}
+
+	private boolean analyzeArguments(Set<String> names, Parser.Node node) {
+		if (node != null && node.token == Lexer.Token.Coma) {
+			return analyzeArguments(names, node.left) | analyzeArguments(names, node.right);
+		}
+		return analyze(names, node);
+	}
+
+	/**
+	 * Evaluate the arguments of a function invocation, the value of the function is computed
+	 * by the evaluator, the derivatives using the chain rule and {@link #onDerivative}.
+	 *
+	 * @param function  the name of the function.
+	 * @param arguments arguments of the invocation.
+	 * @return the value and the partial derivatives of the expression.
+	 * @throws Error if the function is lazy, its arguments may not all be evaluated.
+	 */
+	protected double[] onFunction(String function, Parser.Node arguments) throws Error {
+		if (evaluator.isLazy(function)) {
+			throw new Error(Error.Code.INVALID_FUNCTION, "Derivative not defined for lazy function: " + function);
+		}
+		if (arguments == null) {
+			return constant(evaluator.onFunction(function, Evaluator.EMPTY_ARGS));
+		}
+
+		int n = 1;
+		for (Parser.Node node = arguments; node.token == Lexer.Token.Coma; n += 1) {
+			if (Lexer.Token.Coma.right2left) {
+				node = node.right;
+			} else {
+				node = node.left;
+			}
+		}
+
+		double[][] args = new double[n][];
+		evaluateArguments(args, 0, arguments);
+
+		double[] values = new double[n];
+		for (int i = 0; i < n; i += 1) {
+			values[i] = args[i][0];
+		}
+
+		double[] result = new double[parameters.length + 1];
+		result[0] = evaluator.onFunction(function, values);
+		for (int i = 0; i < n; i += 1) {
+			if (isConstant(args[i])) {
+				// no need for the derivative, the argument does not depend on the parameters
+				continue;
+			}
+			double derivative = onDerivative(function, values, i);
+			for (int j = 1; j < result.length; j += 1) {
+				result[j] += derivative * args[i][j];
+			}
+		}
+		return result;
+	}
+
+	private int evaluateArguments(double[][] args, int pos, Parser.Node arguments) throws Error {
+		if (arguments.token != Lexer.Token.Coma) {
+			args[pos] = dual(arguments);
+			return pos;
+		}
+		if (Lexer.Token.Coma.right2left) {
+			evaluateArguments(args, pos + 1, arguments.right);
+			args[pos] = dual(arguments.left);
+		} else {
+			pos = evaluateArguments(args, pos, arguments.left) + 1;
+			args[pos] = dual(arguments.right);
+		}
+		return pos;
+	}
+
+	private double[] constant(double value) {
+		double[] result = new double[parameters.length + 1];
+		result[0] = value;
+		return result;
+	}
+
+	private static boolean isConstant(double[] lanes) {
+		for (int i = 1; i < lanes.length; i += 1) {
+			if (lanes[i] != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static double integer(Lexer.Token token, long left, long right) {
+		switch (token) {
+			case Shl:
+				return left << right;
+			case Shr:
+				return left >>> right;
+			case Sar:
+				return left >> right;
+			case And:
+				return left & right;
+			case Xor:
+				return left ^ right;
+			case Ior:
+				return left | right;
+		}
+		throw new IllegalArgumentException("Invalid integer operation: " + token);
+	}
+}
@@ -1,18 +1,50 @@
 /**
  * Represents a custom exception class for errors during parsing and evaluation.
+ * <p>
+ * Besides the message, an error is structured: the code, the reason, the token, its position and its text,
+ * so a report can classify the error, and point to the span of the input causing it.
+ * The message is formatted only when requested.
+ * <p>
+ * High-volume validations should use {@link #validate}, which reports the errors as results,
+ * without filling in their stack traces.
  */
 public class Error extends Exception {
+	// errors created while validating are not filled with stack traces
+	private static final ThreadLocal<boolean[]> VALIDATING = ThreadLocal.withInitial(() -> new boolean[1]);
+
+	// set by the first validation, until then errors are filled without looking up the thread
+	private static volatile boolean validated;
+
+	private final Code code;
+	private final String reason;
+	private final Lexer.Token token;
+	private final int position;
+	private final int end;
+
+	// the input containing the text of the token, sliced when requested
+	private final String input;
+	private String text;
+	private String message;
 
 	/**
 	 * Constructs a new Error instance with specified details.
 	 *
-	 * @param message A descriptive error message indicating the nature of the error.
+	 * @param code The kind of the error.
+	 * @param reason A descriptive error message indicating the nature of the error.
 	 * @param token The token associated with the error, providing contextual information.
 	 * @param position The position in the input where the error occurred.
+	 * @param end The position in the input after the text of the token.
+	 * @param input The input containing the text of the token, or null if the text is given.
 	 * @param text The text content related to the token at the error position.
 	 */
-	private Error(String message, Lexer.Token token, int position, String text) {
-		super(message + ": Token." + token + "(`" + text + "`), at position: " + position);
+	private Error(Code code, String reason, Lexer.Token token, int position, int end, String input, String text) {
+		this.code = code;
+		this.reason = reason;
+		this.token = token;
+		this.position = position;
+		this.end = end;
+		this.input = input;
+		this.text = text;
 	}
 
 	/**
@@ -23,7 +55,39 @@ public class Error extends Exception {
 	 * @param lexer The lexer instance providing the position and text content related to the error.
 	 */
 	public Error(String message, Lexer.Token token, Lexer lexer) {
-		this(message, token, lexer.getPosition(), lexer.getText());
+		this(Code.OTHER, message, token, lexer);
+	}
+
+	/**
+	 * Constructs a new Error instance of the given kind, with specified details derived from the lexer.
+	 *
+	 * @param code The kind of the error.
+	 * @param message A descriptive error message indicating the nature of the error.
+	 * @param token The token associated with the error, providing contextual information.
+	 * @param lexer The lexer instance providing the position and text content related to the error.
+	 */
+	public Error(Code code, String message, Lexer.Token token, Lexer lexer) {
+		this(code, message, token, lexer.getPosition(), lexer.getEnd(), lexer.getInput(), null);
+	}
+
+	/**
+	 * Constructs a new Error instance of the given kind, with specified details derived from the lexer,
+	 * optionally without a stack trace, for errors reported as results instead of being thrown to the caller.
+	 *
+	 * @param code The kind of the error.
+	 * @param message A descriptive error message indicating the nature of the error.
+	 * @param token The token associated with the error, providing contextual information.
+	 * @param lexer The lexer instance providing the position and text content related to the error.
+	 * @param stackTrace Whether the stack trace is filled in.
+	 */
+	Error(Code code, String message, Lexer.Token token, Lexer lexer, boolean stackTrace) {
+		super(null, null, true, stackTrace);
+		this.code = code;
+		this.reason = message;
+		this.token = token;
+		this.position = lexer.getPosition();
+		this.end = lexer.getEnd();
+		this.input = lexer.getInput();
 	}
 
 	/**
@@ -33,7 +97,18 @@ public class Error extends Exception {
 	 * @param node The parser node associated with the error, providing the token, position, and text related to the error context.
 	 */
 	public Error(String message, Parser.Node node) {
-		this(message, node.token, node.getPosition(), node.getText());
+		this(Code.OTHER, message, node);
+	}
+
+	/**
+	 * Constructs a new Error instance of the given kind, with specified details derived from a parser node.
+	 *
+	 * @param code The kind of the error.
+	 * @param message A descriptive error message indicating the nature of the error.
+	 * @param node The parser node associated with the error, providing the token, position, and text related to the error context.
+	 */
+	public Error(Code code, String message, Parser.Node node) {
+		this(code, message, node.token, node.getPosition(), end(node), null, node.getText());
 	}
 
 	/**
@@ -45,7 +120,32 @@ public class Error extends Exception {
 	 * @param cause The underlying cause of this error, represented as a Throwable.
 	 */
 	public Error(String message, Parser.Node node, Throwable cause) {
-		this(message, node.token, node.getPosition(), node.getText());
+		this(Code.OTHER, message, node, cause);
+	}
+
+	/**
+	 * Constructs a new Error instance of the given kind, with specified details derived from a parser node
+	 * and an additional underlying cause.
+	 *
+	 * @param code The kind of the error.
+	 * @param message A descriptive error message indicating the nature of the error.
+	 * @param node The parser node associated with the error, providing the token, position, and text related to the error context.
+	 * @param cause The underlying cause of this error, represented as a Throwable.
+	 */
+	public Error(Code code, String message, Parser.Node node, Throwable cause) {
+		this(code, message, node);
+		initCause(cause);
+	}
+
+	/**
+	 * Constructs a new Error instance locating an error within a source file.
+	 *
+	 * @param file The name of the file containing the expression.
+	 * @param line The line number of the expression in the file, starting from 1.
+	 * @param cause The error reported for the expression.
+	 */
+	public Error(String file, int line, Error cause) {
+		this(cause.code, file + ":" + line + ": " + cause.reason, cause.token, cause.position, cause.end, cause.input, cause.text);
 		initCause(cause);
 	}
 
@@ -55,6 +155,144 @@ public class Error extends Exception {
 	 * @param message A descriptive error message indicating the nature of the error.
 	 */
 	public Error(String message) {
-		super(message);
+		this(Code.OTHER, message);
+	}
+
+	/**
+	 * Constructs a new Error instance of the given kind, with a specified error message.
+	 *
+	 * @param code The kind of the error.
+	 * @param message A descriptive error message indicating the nature of the error.
+	 */
+	public Error(Code code, String message) {
+		this(code, message, null, -1, -1, null, null);
+	}
+
+	/**
+	 * Run the validation, reporting its error as a result instead of throwing it.
+	 * While validating, the errors of the current thread are created without stack traces,
+	 * so rejecting an invalid expression costs the work of accepting it, plus unwinding the parser or evaluator.
+	 *
+	 * @param validation the parsing or the evaluation to validate, ex: {@code () -> Parser.parse(input)}.
+	 * @return the error of the validation, or null if it completed normally.
+	 */
+	public static Error validate(Validation validation) {
+		if (!validated) {
+			validated = true;
+		}
+		boolean[] validating = VALIDATING.get();
+		boolean previous = validating[0];
+		validating[0] = true;
+		try {
+			validation.run();
+			return null;
+		} catch (Error error) {
+			return error;
+		} finally {
+			validating[0] = previous;
+		}
+	}
+
+	/**
+	 * Get the kind of the error, {@link Code#OTHER} if it was not classified.
+	 */
+	public Code getCode() {
+		return code;
+	}
+
+	/**
+	 * Get the reason of the error, the message without the location, ex: `Right parenthesis expected, got`.
+	 */
+	public String getReason() {
+		return reason;
+	}
+
+	/**
+	 * Get the token associated with the error, or null if the error has no location.
+	 */
+	public Lexer.Token getToken() {
+		return token;
+	}
+
+	/**
+	 * Get the start of the span of the error in the input, or -1 if the error has no location.
+	 */
+	public int getPosition() {
+		return position;
+	}
+
+	/**
+	 * Get the end of the span of the error in the input, exclusive, or -1 if the error has no location.
+	 */
+	public int getEnd() {
+		return end;
+	}
+
+	/**
+	 * Get the text of the token associated with the error, or null if the error has no location.
+	 */
+	public String getText() {
+		if (text == null && input != null) {
+			text = input.substring(position, end);
+		}
+		return text;
+	}
+
+	@Override
+	public String getMessage() {
+		if (message == null) {
+			if (token == null) {
+				message = reason;
+			} else {
+				message = reason + ": Token." + token + "(`" + getText() + "`), at position: " + position;
+			}
+		}
+		return message;
+	}
+
+	private static int end(Parser.Node node) {
+		String text = node.getText();
+		return node.getPosition() + (text != null ? text.length() : 0);
+	}
+
+	@Override
+	public Throwable fillInStackTrace() {
+		if (validated && VALIDATING.get()[0]) {
+			return this;
+		}
+		return super.fillInStackTrace();
+	}
+
+	/**
+	 * The kind of an error, so errors can be handled without matching their messages.
+	 */
+	public enum Code {
+		/** The error was not classified, ex: reported by the hooks of an evaluator or by a library. */
+		OTHER,
+		/** The lexer or the parser was used in an invalid state. */
+		INTERNAL,
+		/** The input is not a valid expression: unexpected token, missing parenthesis or operator. */
+		SYNTAX,
+		/** The expression is larger or deeper than allowed. */
+		LIMIT,
+		/** A value can not be resolved, or is not an integer where one is required. */
+		INVALID_VALUE,
+		/** The function is not defined, or is called with an invalid syntax. */
+		INVALID_FUNCTION,
+		/** The function is called with invalid arguments. */
+		INVALID_ARGUMENTS,
+		/** The array is not defined, or its subscript is invalid or out of bounds. */
+		INVALID_SUBSCRIPT,
+		/** The operation is not supported, or its operands are not integers where required. */
+		INVALID_OPERATION,
+		/** The evaluation consumed all of its fuel. */
+		FUEL_EXHAUSTED
+	}
+
+	/**
+	 * A parsing or an evaluation to validate.
+	 */
+	public interface Validation {
+		void run() throws Error;
 	}
 }
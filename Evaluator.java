@@ -8,6 +8,15 @@ public abstract class Evaluator {
 
 	protected static final double[] EMPTY_ARGS = {};
 
+	// remembers the results of pure functions, disabled if null
+	private FunctionCache cache;
+
+	// reorders the operands of `&&` and `||`, disabled if null
+	private ShortCircuitProfile profile;
+
+	// bounds the work of the current evaluation, unlimited if null
+	private Fuel fuel;
+
 	/**
 	 * Invoked on every value node for lookup or to be parsed.
 	 *
@@ -34,6 +43,73 @@ public abstract class Evaluator {
 	 */
 	protected abstract double onFunction(String function, double[] arguments) throws Error;
 
+	/**
+	 * Check if a function is pure: its result depends only on its arguments,
+	 * so it can be remembered, see {@link #setCache}.
+	 *
+	 * @param function the name of the function.
+	 * @return true if the function is pure, false by default.
+	 */
+	protected boolean isPure(String function) {
+		return false;
+	}
+
+	/**
+	 * Remember the results of the pure functions in the given cache, see {@link #isPure}.
+	 * A cache can be shared by evaluators defining the same functions.
+	 *
+	 * @param cache the cache, or null to disable caching.
+	 */
+	public void setCache(FunctionCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Evaluate the operands of logical operators ({@code &&}, {@code ||}) in the order learned by the profile,
+	 * see {@link ShortCircuitProfile}. A profile can be shared by evaluators defining the same functions.
+	 *
+	 * @param profile the profile, or null to evaluate the operands left to right.
+	 */
+	public void setProfile(ShortCircuitProfile profile) {
+		this.profile = profile;
+	}
+
+	/**
+	 * Check if the arguments of a function are evaluated lazily, on demand.
+	 *
+	 * @param function the name of the function.
+	 * @return true to invoke {@link #onFunction(String, Arguments)} instead of evaluating all the arguments.
+	 */
+	protected boolean isLazy(String function) {
+		return false;
+	}
+
+	/**
+	 * Invoked on function calls with lazy arguments, see {@link #isLazy}.
+	 * Only the arguments used by the function are evaluated, each of them at most once.
+	 *
+	 * @param function  the name of the function.
+	 * @param arguments arguments of the invocation, evaluated on demand.
+	 * @return value of the expression.
+	 */
+	protected double onFunction(String function, Arguments arguments) throws Error {
+		throw new Error(Error.Code.INVALID_FUNCTION, "Invalid function: " + function);
+	}
+
+	/**
+	 * Invoked on value nodes of variables declared as integers by the {@code TypeInference}.
+	 *
+	 * @param value the variable represented as text.
+	 * @return value to be used for this token.
+	 */
+	protected long onInteger(String value) throws Error {
+		double result = lookup(value);
+		if (result != (long) result) {
+			throw new Error(Error.Code.INVALID_VALUE, "Invalid integer value: " + value);
+		}
+		return (long) result;
+	}
+
 	/**
 	 * Convenience method to evaluate constructs where the subscript might be an identifier,
 	 * like: `Math[pi]`.
@@ -46,7 +122,7 @@ public abstract class Evaluator {
 		double value = evaluate(subscript);
 		int index = (int) value;
 		if (value != index) {
-			throw new Error("Invalid integer subscript", subscript);
+			throw new Error(Error.Code.INVALID_SUBSCRIPT, "Invalid integer subscript", subscript);
 		}
 		return onArray(array, index);
 	}
@@ -60,8 +136,12 @@ public abstract class Evaluator {
 	 * @return value of the expression.
 	 */
 	protected double onFunction(String function, Parser.Node arguments) throws Error {
+		boolean lazy = isLazy(function);
 		if (arguments == null) {
-			return onFunction(function, EMPTY_ARGS);
+			if (lazy) {
+				return onFunction(function, new Arguments(this, new Parser.Node[0]));
+			}
+			return invoke(function, EMPTY_ARGS);
 		}
 
 		int n = 1;
@@ -73,9 +153,44 @@ public abstract class Evaluator {
 			}
 		}
 
+		if (lazy) {
+			Parser.Node[] nodes = new Parser.Node[n];
+			collectArguments(nodes, 0, arguments);
+			return onFunction(function, new Arguments(this, nodes));
+		}
+
 		double[] args = new double[n];
 		evaluateArguments(args, 0, arguments);
-		return onFunction(function, args);
+		return invoke(function, args);
+	}
+
+	// look up the value of a variable or number, overridden to use the values resolved ahead of the evaluation.
+	double lookup(String value) throws Error {
+		return onValue(value);
+	}
+
+	// invoke the function, unless the result is cached.
+	double invoke(String function, double[] arguments) throws Error {
+		FunctionCache cache = this.cache;
+		if (cache != null && isPure(function)) {
+			return cache.invoke(this, function, arguments);
+		}
+		return onFunction(function, arguments);
+	}
+
+	private static int collectArguments(Parser.Node[] nodes, int pos, Parser.Node arguments) {
+		if (arguments.token != Lexer.Token.Coma) {
+			nodes[pos] = arguments;
+			return pos;
+		}
+		if (Lexer.Token.Coma.right2left) {
+			collectArguments(nodes, pos + 1, arguments.right);
+			nodes[pos] = arguments.left;
+		} else {
+			pos = collectArguments(nodes, pos, arguments.left) + 1;
+			nodes[pos] = arguments.right;
+		}
+		return pos;
 	}
 
 	private int evaluateArguments(double[] args, int pos, Parser.Node arguments) throws Error {
@@ -93,6 +208,27 @@ public abstract class Evaluator {
 		return pos;
 	}
 
+	/**
+	 * Evaluate the expression consuming the given fuel, refilled before the evaluation.
+	 * Each evaluated node consumes a unit, and each function call the units declared for the function.
+	 * While evaluating, the evaluator must not be used by other threads.
+	 *
+	 * @param node root of the syntax tree.
+	 * @param fuel the fuel of the evaluation.
+	 * @return value of the expression.
+	 * @throws FuelExhausted if the evaluation needs more fuel than its capacity.
+	 */
+	public double evaluate(Parser.Node node, Fuel fuel) throws Error {
+		Fuel previous = this.fuel;
+		fuel.refill();
+		this.fuel = fuel;
+		try {
+			return evaluate(node);
+		} finally {
+			this.fuel = previous;
+		}
+	}
+
 	/**
 	 * Evaluate the expression starting with the given node as the root.
 	 *
@@ -100,22 +236,26 @@ public abstract class Evaluator {
 	 * @return value of the expression.
 	 */
 	public double evaluate(Parser.Node node) throws Error {
+		Fuel fuel = this.fuel;
+		if (fuel != null) {
+			fuel.consume(1, node);
+		}
 		double left, right;
 		switch (node.token) {
 			case Value:
 				try {
-					return onValue(node.getText());
+					return lookup(node.getText());
 				} catch (Error e) {
 					throw e;
 				} catch (Exception e) {
-					throw new Error("Invalid value", node, e);
+					throw new Error(Error.Code.INVALID_VALUE, "Invalid value", node, e);
 				}
 
 			case Fun:
 				if (node.left == null) {
 					if (node.right == null) {
 						// empty parenthesis: `()`
-						throw new Error("Invalid function call", node);
+						throw new Error(Error.Code.INVALID_FUNCTION, "Invalid function call", node);
 					}
 
 					// subexpression with parenthesis: `(3 + 2)`
@@ -123,18 +263,22 @@ public abstract class Evaluator {
 				}
 				if (node.left.token != Lexer.Token.Value) {
 					// invalid function name: `9()`
-					throw new Error("Invalid function call", node);
+					throw new Error(Error.Code.INVALID_FUNCTION, "Invalid function call", node);
+				}
+				if (fuel != null) {
+					// consumed before the call, so expensive functions are not started
+					fuel.consume(fuel.cost(node.left.getText()), node);
 				}
 				return onFunction(node.left.getText(), node.right);
 
 			case Idx:
 				if (node.left == null || node.right == null) {
 					// empty index: `[]` or `values[]` or `[values]`
-					throw new Error("Invalid array subscript", node);
+					throw new Error(Error.Code.INVALID_SUBSCRIPT, "Invalid array subscript", node);
 				}
 				if (node.left.token != Lexer.Token.Value) {
 					// invalid array variable: `(9-8)[9]`
-					throw new Error("Invalid array subscript", node);
+					throw new Error(Error.Code.INVALID_SUBSCRIPT, "Invalid array subscript", node);
 				}
 				return onArray(node.left.getText(), node.right);
 
@@ -147,9 +291,12 @@ public abstract class Evaluator {
 				return -right;
 
 			case Cmt:
+				if (TypeInference.isIntegral(node)) {
+					return integer(node);
+				}
 				right = evaluate(node.right);
 				if (right != (long) right) {
-					throw new Error("Invalid integer operation", node);
+					throw new Error(Error.Code.INVALID_OPERATION, "Invalid integer operation", node);
 				}
 				return ~(long) right;
 
@@ -188,26 +335,35 @@ public abstract class Evaluator {
 				return left - right;
 
 			case Shl:
+				if (TypeInference.isIntegral(node)) {
+					return integer(node);
+				}
 				left = evaluate(node.left);
 				right = evaluate(node.right);
 				if (left != (long) left || right != (long) right) {
-					throw new Error("Invalid integer operation", node);
+					throw new Error(Error.Code.INVALID_OPERATION, "Invalid integer operation", node);
 				}
 				return (long) left << (long) right;
 
 			case Shr:
+				if (TypeInference.isIntegral(node)) {
+					return integer(node);
+				}
 				left = evaluate(node.left);
 				right = evaluate(node.right);
 				if (left != (long) left || right != (long) right) {
-					throw new Error("Invalid integer operation", node);
+					throw new Error(Error.Code.INVALID_OPERATION, "Invalid integer operation", node);
 				}
 				return (long) left >>> (long) right;
 
 			case Sar:
+				if (TypeInference.isIntegral(node)) {
+					return integer(node);
+				}
 				left = evaluate(node.left);
 				right = evaluate(node.right);
 				if (left != (long) left || right != (long) right) {
-					throw new Error("Invalid integer operation", node);
+					throw new Error(Error.Code.INVALID_OPERATION, "Invalid integer operation", node);
 				}
 				return (long) left >> (long) right;
 
@@ -242,30 +398,42 @@ public abstract class Evaluator {
 				return left != right ? 1 : 0;
 
 			case And:
+				if (TypeInference.isIntegral(node)) {
+					return integer(node);
+				}
 				left = evaluate(node.left);
 				right = evaluate(node.right);
 				if (left != (long) left || right != (long) right) {
-					throw new Error("Invalid integer operation", node);
+					throw new Error(Error.Code.INVALID_OPERATION, "Invalid integer operation", node);
 				}
 				return (long) left & (long) right;
 
 			case Xor:
+				if (TypeInference.isIntegral(node)) {
+					return integer(node);
+				}
 				left = evaluate(node.left);
 				right = evaluate(node.right);
 				if (left != (long) left || right != (long) right) {
-					throw new Error("Invalid integer operation", node);
+					throw new Error(Error.Code.INVALID_OPERATION, "Invalid integer operation", node);
 				}
 				return (long) left ^ (long) right;
 
 			case Ior:
+				if (TypeInference.isIntegral(node)) {
+					return integer(node);
+				}
 				left = evaluate(node.left);
 				right = evaluate(node.right);
 				if (left != (long) left || right != (long) right) {
-					throw new Error("Invalid integer operation", node);
+					throw new Error(Error.Code.INVALID_OPERATION, "Invalid integer operation", node);
 				}
 				return (long) left | (long) right;
 
 			case All:
+				if (profile != null) {
+					return profile.evaluate(this, node);
+				}
 				left = evaluate(node.left);
 				if (left == 0) {
 					// stop at the first zero value
@@ -274,6 +442,9 @@ public abstract class Evaluator {
 				return evaluate(node.right);
 
 			case Any:
+				if (profile != null) {
+					return profile.evaluate(this, node);
+				}
 				left = evaluate(node.left);
 				if (left != 0) {
 					// stop at the first non-zero value
@@ -283,7 +454,7 @@ public abstract class Evaluator {
 
 			case Chk:
 				if (node.right == null || node.right.token != Lexer.Token.Sel) {
-					throw new Error("Invalid operation", node);
+					throw new Error(Error.Code.INVALID_OPERATION, "Invalid operation", node);
 				}
 				if (evaluate(node.left) != 0) {
 					return evaluate(node.right.left);
@@ -291,10 +462,181 @@ public abstract class Evaluator {
 				return evaluate(node.right.right);
 
 		}
-		throw new Error("Invalid operation", node);
+		throw new Error(Error.Code.INVALID_OPERATION, "Invalid operation", node);
+	}
+
+	/**
+	 * Evaluate the expression on the integer path, the node must be proven integral by the {@code TypeInference}.
+	 * Operands of integer operations are neither converted to double, nor checked.
+	 *
+	 * @param node      root of the syntax tree, annotated by the type inference.
+	 * @return value of the expression.
+	 */
+	protected long evaluateInteger(Parser.Node node) throws Error {
+		switch (node.token) {
+			case Value:
+			case Fun:
+			case Pos:
+			case Neg:
+			case Cmt:
+			case Shl:
+			case Shr:
+			case Sar:
+			case And:
+			case Xor:
+			case Ior:
+			case All:
+			case Any:
+			case Chk:
+				Fuel fuel = this.fuel;
+				if (fuel != null) {
+					fuel.consume(1, node);
+				}
+				return integer(node);
+		}
+		// comparisons and logical negation evaluate to 0 or 1, the node is consumed by the evaluation
+		return (long) evaluate(node);
+	}
+
+	// evaluate an operation of the integer path, the unit of the node is consumed by the caller.
+	private long integer(Parser.Node node) throws Error {
+		switch (node.token) {
+			case Value:
+				if (((TypeInference.Node) node).literal) {
+					return ((TypeInference.Node) node).value;
+				}
+				try {
+					return onInteger(node.getText());
+				} catch (Error e) {
+					throw e;
+				} catch (Exception e) {
+					throw new Error(Error.Code.INVALID_VALUE, "Invalid value", node, e);
+				}
+
+			case Fun:
+				// subexpression with parenthesis: `(3 + 2)`
+				return evaluateInteger(node.right);
+
+			case Pos:
+				return +evaluateInteger(node.right);
+
+			case Neg:
+				// the negation of the smallest long is rounded to the largest one, as by the double path
+				return (long) -(double) evaluateInteger(node.right);
+
+			case Cmt:
+				return round(~evaluateInteger(node.right));
+
+			case Shl:
+				return round(evaluateInteger(node.left) << evaluateInteger(node.right));
+
+			case Shr:
+				return round(evaluateInteger(node.left) >>> evaluateInteger(node.right));
+
+			case Sar:
+				return round(evaluateInteger(node.left) >> evaluateInteger(node.right));
+
+			case And:
+				return round(evaluateInteger(node.left) & evaluateInteger(node.right));
+
+			case Xor:
+				return round(evaluateInteger(node.left) ^ evaluateInteger(node.right));
+
+			case Ior:
+				return round(evaluateInteger(node.left) | evaluateInteger(node.right));
+
+			case All: {
+				long left = evaluateInteger(node.left);
+				if (left == 0) {
+					// stop at the first zero value
+					return left;
+				}
+				return evaluateInteger(node.right);
+			}
+
+			case Any: {
+				long left = evaluateInteger(node.left);
+				if (left != 0) {
+					// stop at the first non-zero value
+					return left;
+				}
+				return evaluateInteger(node.right);
+			}
+
+			case Chk:
+				if (evaluate(node.left) != 0) {
+					return evaluateInteger(node.right.left);
+				}
+				return evaluateInteger(node.right.right);
+		}
+		throw new Error(Error.Code.INVALID_OPERATION, "Invalid operation", node);
+	}
+
+	// the value computed by the double path: results above 2**53 are rounded to the nearest double
+	private static long round(long value) {
+		if ((value >> 53) == (value >> 63)) {
+			// exact as a double, the common case
+			return value;
+		}
+		return (long) (double) value;
 	}
 
 	public static void require(boolean condition, String message) throws Error {
-		if (!condition) throw new Error(message);
+		if (!condition) throw new Error(Error.Code.INVALID_ARGUMENTS, message);
+	}
+
+	/**
+	 * Arguments of a function call, evaluated on demand, and remembered after the first evaluation.
+	 */
+	public static final class Arguments {
+		private final Evaluator evaluator;
+		private final Parser.Node[] nodes;
+		private final double[] values;
+		private final boolean[] evaluated;
+
+		private Arguments(Evaluator evaluator, Parser.Node[] nodes) {
+			this.evaluator = evaluator;
+			this.nodes = nodes;
+			this.values = new double[nodes.length];
+			this.evaluated = new boolean[nodes.length];
+		}
+
+		/**
+		 * Get the number of arguments.
+		 */
+		public int size() {
+			return nodes.length;
+		}
+
+		/**
+		 * Get the value of an argument, evaluating it on the first use.
+		 *
+		 * @param index the index of the argument.
+		 * @return the value of the argument.
+		 */
+		public double get(int index) throws Error {
+			if (index < 0 || index >= nodes.length) {
+				throw new Error(Error.Code.INVALID_ARGUMENTS, "Invalid argument index: " + index);
+			}
+			if (!evaluated[index]) {
+				values[index] = evaluator.evaluate(nodes[index]);
+				evaluated[index] = true;
+			}
+			return values[index];
+		}
+
+		/**
+		 * Check if an argument was already evaluated.
+		 */
+		public boolean isEvaluated(int index) {
+			return evaluated[index];
+		}
+
+		/**
+		 * Get the node of an argument, like for functions evaluating it multiple times.
+		 */
+		public Parser.Node getNode(int index) {
+			return nodes[index];
+		}
 	}
 }
@@ -0,0 +1,1356 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Expression class is an immutable, compiled form of an abstract syntax tree.
+ * The tree is flattened into a program for a stack machine: literals and constants are decoded,
+ * variables and arrays are resolved to slots, and functions are linked at compile time.
+ * <p>
+ * An expression holds no evaluation state, so it can be shared by any number of threads.
+ * The variables and the scratch space of an evaluation are held by a {@link Frame},
+ * which is owned by a single thread at a time, and can be reused (pooled) for many evaluations.
+ * Evaluating an expression with a frame performs no allocation and takes no locks.
+ * Variables and arrays can also be bound to {@link Column}s, reading data stored off-heap in place.
+ * <p>
+ * Besides the operators of the {@code Evaluator}, expressions support assignments to variables
+ * ({@code =}, {@code +=}, {@code -=}, {@code *=}, {@code /=}, {@code %=}),
+ * and chaining subexpressions with {@code ,} returning the value of the last one.
+ * <p>
+ * Long chains comparing the same value to constants are compiled to tables, and evaluated in constant time:
+ * conditionals like {@code code == 1 ? a : code == 2 ? b : c} jump directly to the matching arm,
+ * and membership tests like {@code x == 1 || x == 5 || x == 7} look up the value in a set.
+ */
+public final class Expression {
+
+	/**
+	 * A function linked to the expression, must be thread-safe.
+	 */
+	public interface Function {
+		/**
+		 * Invoke the function, the arguments are passed as a slice of an array,
+		 * which must not be modified or retained by the function.
+		 *
+		 * @param arguments the array containing the arguments.
+		 * @param offset    index of the first argument.
+		 * @param count     number of arguments.
+		 * @return the result of the invocation.
+		 */
+		double invoke(double[] arguments, int offset, int count) throws Error;
+	}
+
+	/**
+	 * Resolves the constants and functions while compiling an expression.
+	 */
+	public interface Library {
+		/**
+		 * Resolve the value of a named constant, like `pi`.
+		 *
+		 * @param name the name of the constant.
+		 * @return the value of the constant, or null if the name is a variable.
+		 */
+		Double constant(String name) throws Error;
+
+		/**
+		 * Resolve a function.
+		 *
+		 * @param name      the name of the function.
+		 * @param arguments number of arguments of the invocation.
+		 * @return the function, must not be null.
+		 * @throws Error if there is no such function.
+		 */
+		Function function(String name, int arguments) throws Error;
+
+		/**
+		 * Check if a function is pure: its result depends only on its arguments, and it has no side effects,
+		 * so a rule calling it can be skipped when it can not match, see {@link RuleSet}.
+		 *
+		 * @param name the name of the function.
+		 * @return true if the function is pure, false by default.
+		 */
+		default boolean isPure(String name) {
+			return false;
+		}
+	}
+
+	// incremented with each change of the generated code, invalidating the cached expressions
+	static final int VERSION = 1;
+
+	// opcodes of the stack machine
+	static final byte CONST = 0;
+	static final byte LOAD = 1;
+	static final byte STORE = 2;
+	static final byte ARRAY = 3;
+	static final byte CALL = 4;
+	static final byte POP = 5;
+	static final byte JUMP = 6;
+	static final byte JUMP_ZERO = 7;       // pop the condition, jump if it is zero
+	static final byte JUMP_ZERO_KEEP = 8;  // jump keeping the value if it is zero, pop otherwise
+	static final byte JUMP_NONZERO_KEEP = 9;
+	static final byte NEG = 10;
+	static final byte CMT = 11;
+	static final byte NOT = 12;
+	static final byte POW = 13;
+	static final byte MUL = 14;
+	static final byte DIV = 15;
+	static final byte REM = 16;
+	static final byte ADD = 17;
+	static final byte SUB = 18;
+	static final byte SHL = 19;
+	static final byte SHR = 20;
+	static final byte SAR = 21;
+	static final byte LT = 22;
+	static final byte LEQ = 23;
+	static final byte GT = 24;
+	static final byte GEQ = 25;
+	static final byte EQ = 26;
+	static final byte NEQ = 27;
+	static final byte AND = 28;
+	static final byte XOR = 29;
+	static final byte IOR = 30;
+	static final byte SHARED_LOAD = 31;
+	static final byte SHARED_UPDATE = 32;   // the assignment operator is the token of the node
+	static final byte SWITCH = 33;          // pop the value, jump to the arm of the table matching it
+	static final byte IN = 34;              // replace the value with 1 if it is a key of the table, 0 otherwise
+
+	// the program: opcodes, their operands, and the nodes they were compiled from
+	final byte[] ops;
+	final int[] args;
+	final Parser.Node[] nodes;
+
+	// decoded literals and constants
+	final double[] constants;
+
+	// linked functions, their names and the number of their arguments
+	final Function[] functions;
+	final String[] names;
+	final int[] arities;
+
+	// names of the variables and arrays, indexed by slot
+	final String[] variables;
+	final String[] arrays;
+
+	// accumulators shared with other expressions and threads
+	final Accumulators.Accumulator[] shared;
+
+	// jump tables of the switches, and the keys of the membership tests
+	final Table[] tables;
+
+	// maximum depth of the stack
+	final int depth;
+
+	private final Map<String, Integer> variableSlots;
+	private final Map<String, Integer> arraySlots;
+
+	Expression(byte[] ops, int[] args, Parser.Node[] nodes, double[] constants, Function[] functions,
+			String[] names, int[] arities, String[] variables, String[] arrays, Accumulators.Accumulator[] shared,
+			Table[] tables, int depth) {
+		this.ops = ops;
+		this.args = args;
+		this.nodes = nodes;
+		this.constants = constants;
+		this.functions = functions;
+		this.names = names;
+		this.arities = arities;
+		this.variables = variables;
+		this.arrays = arrays;
+		this.shared = shared;
+		this.tables = tables;
+		this.depth = depth;
+		this.variableSlots = slots(variables);
+		this.arraySlots = slots(arrays);
+	}
+
+	/**
+	 * Compile the abstract syntax tree into an expression.
+	 *
+	 * @param root    root of the syntax tree.
+	 * @param library resolves the constants and functions used by the expression.
+	 * @return the compiled expression.
+	 * @throws Error if the tree is not a valid expression, or references unknown functions.
+	 */
+	public static Expression compile(Parser.Node root, Library library) throws Error {
+		return new Compiler(library, null).compile(root);
+	}
+
+	/**
+	 * Compile the abstract syntax tree into an expression, which reads and updates the declared accumulators.
+	 *
+	 * @param root         root of the syntax tree.
+	 * @param library      resolves the constants and functions used by the expression.
+	 * @param accumulators the accumulators shared by the evaluations.
+	 * @return the compiled expression.
+	 * @throws Error if the tree is not a valid expression, references unknown functions,
+	 *               or uses an assignment not supported by an accumulator.
+	 */
+	public static Expression compile(Parser.Node root, Library library, Accumulators accumulators) throws Error {
+		return new Compiler(library, accumulators).compile(root);
+	}
+
+	/**
+	 * Get the slot of a variable.
+	 *
+	 * @param name the name of the variable.
+	 * @return the slot of the variable, or -1 if the expression does not use the variable.
+	 */
+	public int variable(String name) {
+		Integer slot = variableSlots.get(name);
+		return slot == null ? -1 : slot;
+	}
+
+	/**
+	 * Get the slot of an array.
+	 *
+	 * @param name the name of the array.
+	 * @return the slot of the array, or -1 if the expression does not use the array.
+	 */
+	public int array(String name) {
+		Integer slot = arraySlots.get(name);
+		return slot == null ? -1 : slot;
+	}
+
+	/**
+	 * Get the names of the variables used by the expression, indexed by slot.
+	 */
+	public List<String> getVariables() {
+		return Collections.unmodifiableList(Arrays.asList(variables));
+	}
+
+	/**
+	 * Get the names of the arrays used by the expression, indexed by slot.
+	 */
+	public List<String> getArrays() {
+		return Collections.unmodifiableList(Arrays.asList(arrays));
+	}
+
+	/**
+	 * Create a new evaluation frame for this expression, with all variables set to 0.
+	 */
+	public Frame newFrame() {
+		return new Frame(this);
+	}
+
+	/**
+	 * Evaluate the expression using the variables of the given frame.
+	 *
+	 * @param frame the frame holding the variables, created by this expression.
+	 * @return value of the expression.
+	 */
+	public double evaluate(Frame frame) throws Error {
+		if (frame.expression != this) {
+			throw new IllegalArgumentException("Frame was created by another expression");
+		}
+
+		final double[] stack = frame.stack;
+		final double[] slots = frame.slots;
+		final Fuel fuel = frame.fuel;
+		long remaining = Long.MAX_VALUE;
+		if (fuel != null) {
+			fuel.refill();
+			remaining = fuel.remaining;
+		}
+		double left, right;
+		int sp = 0;
+		try {
+			for (int pc = 0; pc < ops.length; pc += 1) {
+				final int arg = args[pc];
+				if (fuel != null && --remaining < 0) {
+					throw fuel.exhausted(nodes[pc]);
+				}
+				switch (ops[pc]) {
+					case CONST:
+						stack[sp++] = constants[arg];
+						continue;
+
+					case LOAD:
+						stack[sp++] = slots[arg];
+						continue;
+
+					case STORE:
+						slots[arg] = stack[sp - 1];
+						continue;
+
+					case ARRAY: {
+						double[] array = frame.arrays[arg];
+						double value = stack[sp - 1];
+						int index = (int) value;
+						if (value != index) {
+							throw new Error(Error.Code.INVALID_SUBSCRIPT, "Invalid integer subscript", nodes[pc]);
+						}
+						if (array == null) {
+							Column column = frame.columns[arg];
+							if (column == null) {
+								throw new Error(Error.Code.INVALID_SUBSCRIPT, "Invalid array: " + arrays[arg]);
+							}
+							if (index < 0 || index >= column.length()) {
+								throw new Error(Error.Code.INVALID_SUBSCRIPT, "Index " + index + " out of bounds for length " + column.length());
+							}
+							stack[sp - 1] = column.get(index);
+							continue;
+						}
+						if (index < 0 || index >= array.length) {
+							throw new Error(Error.Code.INVALID_SUBSCRIPT, "Index " + index + " out of bounds for length " + array.length);
+						}
+						stack[sp - 1] = array[index];
+						continue;
+					}
+
+					case CALL: {
+						if (fuel != null) {
+							remaining -= frame.costs[arg];
+							if (remaining < 0) {
+								// consumed before the call, so expensive functions are not started
+								throw fuel.exhausted(nodes[pc]);
+							}
+						}
+						int count = arities[arg];
+						sp -= count;
+						stack[sp] = functions[arg].invoke(stack, sp, count);
+						sp += 1;
+						continue;
+					}
+
+					case SHARED_LOAD:
+						stack[sp++] = shared[arg].get();
+						continue;
+
+					case SHARED_UPDATE:
+						shared[arg].update(nodes[pc].token, stack[sp - 1]);
+						continue;
+
+					case SWITCH: {
+						Table table = tables[arg];
+						int arm = table.find(stack[--sp]);
+						pc = (arm < 0 ? table.otherwise : table.targets[arm]) - 1;
+						continue;
+					}
+
+					case IN:
+						stack[sp - 1] = tables[arg].find(stack[sp - 1]) < 0 ? 0 : 1;
+						continue;
+
+					case POP:
+						sp -= 1;
+						continue;
+
+					case JUMP:
+						pc = arg - 1;
+						continue;
+
+					case JUMP_ZERO:
+						sp -= 1;
+						if (stack[sp] == 0) {
+							pc = arg - 1;
+						}
+						continue;
+
+					case JUMP_ZERO_KEEP:
+						if (stack[sp - 1] == 0) {
+							pc = arg - 1;
+						} else {
+							sp -= 1;
+						}
+						continue;
+
+					case JUMP_NONZERO_KEEP:
+						if (stack[sp - 1] != 0) {
+							pc = arg - 1;
+						} else {
+							sp -= 1;
+						}
+						continue;
+
+					case NEG:
+						stack[sp - 1] = -stack[sp - 1];
+						continue;
+
+					case CMT:
+						right = stack[sp - 1];
+						if (right != (long) right) {
+							throw new Error(Error.Code.INVALID_OPERATION, "Invalid integer operation", nodes[pc]);
+						}
+						stack[sp - 1] = ~(long) right;
+						continue;
+
+					case NOT:
+						stack[sp - 1] = stack[sp - 1] == 0 ? 1 : 0;
+						continue;
+				}
+
+				// binary operators
+				right = stack[--sp];
+				left = stack[sp - 1];
+				switch (ops[pc]) {
+					case POW:
+						left = Math.pow(left, right);
+						break;
+
+					case MUL:
+						left = left * right;
+						break;
+
+					case DIV:
+						left = left / right;
+						break;
+
+					case REM:
+						left = left % right;
+						break;
+
+					case ADD:
+						left = left + right;
+						break;
+
+					case SUB:
+						left = left - right;
+						break;
+
+					case LT:
+						left = left < right ? 1 : 0;
+						break;
+
+					case LEQ:
+						left = left <= right ? 1 : 0;
+						break;
+
+					case GT:
+						left = left > right ? 1 : 0;
+						break;
+
+					case GEQ:
+						left = left >= right ? 1 : 0;
+						break;
+
+					case EQ:
+						left = left == right ? 1 : 0;
+						break;
+
+					case NEQ:
+						left = left != right ? 1 : 0;
+						break;
+
+					default:
+						if (left != (long) left || right != (long) right) {
+							throw new Error(Error.Code.INVALID_OPERATION, "Invalid integer operation", nodes[pc]);
+						}
+						switch (ops[pc]) {
+							case SHL:
+								left = (long) left << (long) right;
+								break;
+
+							case SHR:
+								left = (long) left >>> (long) right;
+								break;
+
+							case SAR:
+								left = (long) left >> (long) right;
+								break;
+
+							case AND:
+								left = (long) left & (long) right;
+								break;
+
+							case XOR:
+								left = (long) left ^ (long) right;
+								break;
+
+							case IOR:
+								left = (long) left | (long) right;
+								break;
+
+							default:
+								throw new Error(Error.Code.INVALID_OPERATION, "Invalid operation", nodes[pc]);
+						}
+				}
+				stack[sp - 1] = left;
+			}
+		} finally {
+			// also written back if a function fails, or the fuel ran out
+			if (fuel != null) {
+				fuel.remaining = Math.max(remaining, 0);
+			}
+		}
+		return stack[0];
+	}
+
+	/**
+	 * The constant keys of a switch or a membership test, indexed for constant time lookups:
+	 * integers in a small range are indexed directly, other keys are hashed.
+	 * Keys are compared as by {@code ==}, so NaN matches no key, and -0 matches 0.
+	 */
+	static final class Table {
+		// the keys, the instructions of their arms, and the instruction of the default arm.
+		// membership tests have no arms.
+		final double[] keys;
+		final int[] targets;
+		final int otherwise;
+
+		// index of the first occurrence of the key + 1, for each integer in [min, min + dense.length)
+		private final long min;
+		private final int[] dense;
+
+		// index of the first occurrence of the key + 1, open addressing with linear probing
+		private final int[] hashed;
+
+		Table(double[] keys, int[] targets, int otherwise) {
+			this.keys = keys;
+			this.targets = targets;
+			this.otherwise = otherwise;
+
+			long min = Long.MAX_VALUE;
+			long max = Long.MIN_VALUE;
+			boolean integers = true;
+			for (double key : keys) {
+				integers &= key == (long) key;
+				min = Math.min(min, (long) key);
+				max = Math.max(max, (long) key);
+			}
+			if (integers && keys.length > 0 && (double) max - min < 2. * keys.length + 16) {
+				this.min = min;
+				this.dense = new int[(int) (max - min + 1)];
+				this.hashed = null;
+				for (int i = keys.length - 1; i >= 0; i -= 1) {
+					dense[(int) ((long) keys[i] - min)] = i + 1;
+				}
+				return;
+			}
+
+			this.min = 0;
+			this.dense = null;
+			this.hashed = new int[Integer.highestOneBit(Math.max(keys.length, 1)) << 2];
+			int mask = hashed.length - 1;
+			for (int i = 0; i < keys.length; i += 1) {
+				int slot = hash(keys[i]) & mask;
+				while (hashed[slot] != 0 && keys[hashed[slot] - 1] != keys[i]) {
+					slot = (slot + 1) & mask;
+				}
+				if (hashed[slot] == 0) {
+					hashed[slot] = i + 1;
+				}
+			}
+		}
+
+		/**
+		 * Find the first key equal to the value.
+		 *
+		 * @return the index of the key, or -1 if there is no such key.
+		 */
+		int find(double value) {
+			if (dense != null) {
+				long index = (long) value - min;
+				if (index < 0 || index >= dense.length || value != (long) value) {
+					return -1;
+				}
+				return dense[(int) index] - 1;
+			}
+			int mask = hashed.length - 1;
+			for (int slot = hash(value) & mask; hashed[slot] != 0; slot = (slot + 1) & mask) {
+				if (keys[hashed[slot] - 1] == value) {
+					return hashed[slot] - 1;
+				}
+			}
+			return -1;
+		}
+
+		private static int hash(double value) {
+			// adding zero turns -0 into 0, so they have the same hash
+			long hash = Double.doubleToLongBits(value + 0.);
+			hash ^= hash >>> 33;
+			hash *= 0xff51afd7ed558ccdL;
+			hash ^= hash >>> 33;
+			return (int) hash;
+		}
+	}
+
+	private static Map<String, Integer> slots(String[] names) {
+		Map<String, Integer> result = new HashMap<>();
+		for (int i = 0; i < names.length; i += 1) {
+			result.put(names[i], i);
+		}
+		return result;
+	}
+
+	/**
+	 * Holds the variables and the scratch space for the evaluations of an expression.
+	 * A frame must not be used by multiple threads at the same time.
+	 */
+	public static final class Frame {
+		private final Expression expression;
+		private final double[] slots;
+		private final double[][] arrays;
+		private final double[] stack;
+
+		// columns bound to the arrays and variables, read in place
+		private final Column[] columns;
+		private final Column[] rows;
+
+		// bounds the work of the evaluations, and the cost of each linked function
+		private Fuel fuel;
+		private final long[] costs;
+
+		private Frame(Expression expression) {
+			this.expression = expression;
+			this.slots = new double[expression.variables.length];
+			this.arrays = new double[expression.arrays.length][];
+			this.stack = new double[expression.depth];
+			this.columns = new Column[expression.arrays.length];
+			this.rows = new Column[expression.variables.length];
+			this.costs = new long[expression.functions.length];
+		}
+
+		/**
+		 * Bound the work of the evaluations using this frame, see {@link Fuel}.
+		 * Each executed instruction consumes a unit, and each function call the units declared for the function.
+		 *
+		 * @param fuel the fuel, refilled before each evaluation, or null to evaluate without limits.
+		 * @return this frame.
+		 */
+		public Frame setFuel(Fuel fuel) {
+			this.fuel = fuel;
+			for (int i = 0; i < costs.length; i += 1) {
+				costs[i] = fuel == null ? 0 : fuel.cost(expression.names[i]);
+			}
+			return this;
+		}
+
+		/**
+		 * Set the value of the variable in the given slot.
+		 *
+		 * @param slot  the slot of the variable, see {@link Expression#variable}.
+		 * @param value the new value of the variable.
+		 * @return this frame.
+		 */
+		public Frame set(int slot, double value) {
+			slots[slot] = value;
+			return this;
+		}
+
+		/**
+		 * Set the value of a variable, ignored if the expression does not use the variable.
+		 *
+		 * @param name  the name of the variable.
+		 * @param value the new value of the variable.
+		 * @return this frame.
+		 */
+		public Frame set(String name, double value) {
+			int slot = expression.variable(name);
+			if (slot >= 0) {
+				slots[slot] = value;
+			}
+			return this;
+		}
+
+		/**
+		 * Get the value of the variable in the given slot, which might be changed by assignments.
+		 *
+		 * @param slot the slot of the variable, see {@link Expression#variable}.
+		 * @return the value of the variable.
+		 */
+		public double get(int slot) {
+			return slots[slot];
+		}
+
+		/**
+		 * Bind an array to the given slot, the array is not copied.
+		 *
+		 * @param slot   the slot of the array, see {@link Expression#array}.
+		 * @param values the elements of the array.
+		 * @return this frame.
+		 */
+		public Frame setArray(int slot, double[] values) {
+			arrays[slot] = values;
+			columns[slot] = null;
+			return this;
+		}
+
+		/**
+		 * Bind an array, ignored if the expression does not use the array.
+		 *
+		 * @param name   the name of the array.
+		 * @param values the elements of the array.
+		 * @return this frame.
+		 */
+		public Frame setArray(String name, double[] values) {
+			int slot = expression.array(name);
+			if (slot >= 0) {
+				setArray(slot, values);
+			}
+			return this;
+		}
+
+		/**
+		 * Bind an array to the given slot, the elements are read from the column on each access.
+		 *
+		 * @param slot   the slot of the array, see {@link Expression#array}.
+		 * @param column the elements of the array.
+		 * @return this frame.
+		 */
+		public Frame setArray(int slot, Column column) {
+			arrays[slot] = null;
+			columns[slot] = column;
+			return this;
+		}
+
+		/**
+		 * Bind an array to a column, ignored if the expression does not use the array.
+		 *
+		 * @param name   the name of the array.
+		 * @param column the elements of the array.
+		 * @return this frame.
+		 */
+		public Frame setArray(String name, Column column) {
+			int slot = expression.array(name);
+			if (slot >= 0) {
+				setArray(slot, column);
+			}
+			return this;
+		}
+
+		/**
+		 * Bind the variable in the given slot to a column, see {@link #setRow}.
+		 *
+		 * @param slot   the slot of the variable, see {@link Expression#variable}.
+		 * @param column the values of the variable, one for each row.
+		 * @return this frame.
+		 */
+		public Frame setColumn(int slot, Column column) {
+			rows[slot] = column;
+			return this;
+		}
+
+		/**
+		 * Bind a variable to a column, ignored if the expression does not use the variable.
+		 *
+		 * @param name   the name of the variable.
+		 * @param column the values of the variable, one for each row.
+		 * @return this frame.
+		 */
+		public Frame setColumn(String name, Column column) {
+			int slot = expression.variable(name);
+			if (slot >= 0) {
+				rows[slot] = column;
+			}
+			return this;
+		}
+
+		/**
+		 * Set the variables bound to columns to the values of the given row.
+		 *
+		 * @param row the index of the row, must be less than the length of the columns.
+		 * @return this frame.
+		 * @throws Error if the row is out of the bounds of a column.
+		 */
+		public Frame setRow(int row) throws Error {
+			for (int slot = 0; slot < rows.length; slot += 1) {
+				Column column = rows[slot];
+				if (column != null) {
+					if (row < 0 || row >= column.length()) {
+						throw new Error(Error.Code.INVALID_SUBSCRIPT, "Index " + row + " out of bounds for length " + column.length());
+					}
+					slots[slot] = column.get(row);
+				}
+			}
+			return this;
+		}
+
+		/**
+		 * Reset all variables to 0 and unbind the arrays and columns, so the frame can be reused.
+		 *
+		 * @return this frame.
+		 */
+		public Frame reset() {
+			Arrays.fill(slots, 0);
+			Arrays.fill(arrays, null);
+			Arrays.fill(columns, null);
+			Arrays.fill(rows, null);
+			return this;
+		}
+	}
+
+	/**
+	 * Flattens the abstract syntax tree into the program of the stack machine.
+	 */
+	private static class Compiler {
+		// minimum number of comparisons compiled to a table, shorter chains are compiled to jumps
+		private static final int MIN_TABLE = 4;
+
+		private final Library library;
+		private final Accumulators accumulators;
+
+		private byte[] ops = new byte[16];
+		private int[] args = new int[16];
+		private Parser.Node[] nodes = new Parser.Node[16];
+		private int size = 0;
+
+		private final List<Double> constants = new ArrayList<>();
+		private final List<Function> functions = new ArrayList<>();
+		private final List<String> names = new ArrayList<>();
+		private final List<Integer> arities = new ArrayList<>();
+		private final Map<String, Integer> variables = new HashMap<>();
+		private final Map<String, Integer> arrays = new HashMap<>();
+		private final Map<Accumulators.Accumulator, Integer> shared = new HashMap<>();
+		private final List<Table> tables = new ArrayList<>();
+
+		private int depth = 0;
+		private int maxDepth = 0;
+
+		Compiler(Library library, Accumulators accumulators) {
+			this.library = library;
+			this.accumulators = accumulators;
+		}
+
+		Expression compile(Parser.Node root) throws Error {
+			emitNode(root);
+			if (depth != 1) {
+				throw new Error(Error.Code.SYNTAX, "Invalid expression");
+			}
+
+			double[] constants = new double[this.constants.size()];
+			for (int i = 0; i < constants.length; i += 1) {
+				constants[i] = this.constants.get(i);
+			}
+			int[] arities = new int[this.arities.size()];
+			for (int i = 0; i < arities.length; i += 1) {
+				arities[i] = this.arities.get(i);
+			}
+			return new Expression(
+					Arrays.copyOf(ops, size),
+					Arrays.copyOf(args, size),
+					Arrays.copyOf(nodes, size),
+					constants,
+					functions.toArray(new Function[0]),
+					names.toArray(new String[0]),
+					arities,
+					names(variables),
+					names(arrays),
+					accumulators(shared),
+					tables.toArray(new Table[0]),
+					maxDepth
+			);
+		}
+
+		private void emitNode(Parser.Node node) throws Error {
+			switch (node.token) {
+				case Value:
+					emitValue(node);
+					return;
+
+				case Fun:
+					if (node.left == null) {
+						if (node.right == null) {
+							// empty parenthesis: `()`
+							throw new Error(Error.Code.INVALID_FUNCTION, "Invalid function call", node);
+						}
+
+						// subexpression with parenthesis: `(3 + 2)`
+						emitNode(node.right);
+						return;
+					}
+					if (node.left.token != Lexer.Token.Value) {
+						// invalid function name: `9()`
+						throw new Error(Error.Code.INVALID_FUNCTION, "Invalid function call", node);
+					}
+					int count = emitArguments(node.right);
+					Function function = library.function(node.left.getText(), count);
+					if (function == null) {
+						throw new Error(Error.Code.INVALID_FUNCTION, "Invalid function: " + node.left.getText());
+					}
+					functions.add(function);
+					names.add(node.left.getText());
+					arities.add(count);
+					emit(CALL, functions.size() - 1, node, 1 - count);
+					return;
+
+				case Idx:
+					if (node.left == null || node.right == null) {
+						// empty index: `[]` or `values[]` or `[values]`
+						throw new Error(Error.Code.INVALID_SUBSCRIPT, "Invalid array subscript", node);
+					}
+					if (node.left.token != Lexer.Token.Value) {
+						// invalid array variable: `(9-8)[9]`
+						throw new Error(Error.Code.INVALID_SUBSCRIPT, "Invalid array subscript", node);
+					}
+					emitNode(node.right);
+					// errors of the instruction are reported on the subscript
+					emit(ARRAY, slot(arrays, node.left.getText()), node.right, 0);
+					return;
+
+				case Pos:
+					emitNode(node.right);
+					return;
+
+				case Neg:
+					emitUnary(NEG, node);
+					return;
+
+				case Cmt:
+					emitUnary(CMT, node);
+					return;
+
+				case Not:
+					emitUnary(NOT, node);
+					return;
+
+				case Pow:
+					emitBinary(POW, node);
+					return;
+
+				case Mul:
+					emitBinary(MUL, node);
+					return;
+
+				case Div:
+					emitBinary(DIV, node);
+					return;
+
+				case Rem:
+					emitBinary(REM, node);
+					return;
+
+				case Add:
+					emitBinary(ADD, node);
+					return;
+
+				case Sub:
+					emitBinary(SUB, node);
+					return;
+
+				case Shl:
+					emitBinary(SHL, node);
+					return;
+
+				case Shr:
+					emitBinary(SHR, node);
+					return;
+
+				case Sar:
+					emitBinary(SAR, node);
+					return;
+
+				case Lt:
+					emitBinary(LT, node);
+					return;
+
+				case Leq:
+					emitBinary(LEQ, node);
+					return;
+
+				case Gt:
+					emitBinary(GT, node);
+					return;
+
+				case Geq:
+					emitBinary(GEQ, node);
+					return;
+
+				case Eq:
+					emitBinary(EQ, node);
+					return;
+
+				case Neq:
+					emitBinary(NEQ, node);
+					return;
+
+				case And:
+					emitBinary(AND, node);
+					return;
+
+				case Xor:
+					emitBinary(XOR, node);
+					return;
+
+				case Ior:
+					emitBinary(IOR, node);
+					return;
+
+				case All:
+				case Any: {
+					if (node.token == Lexer.Token.Any && emitMembership(node)) {
+						return;
+					}
+					emitNode(node.left);
+					// the value is kept on the stack if the jump is taken
+					int jump = emit(node.token == Lexer.Token.All ? JUMP_ZERO_KEEP : JUMP_NONZERO_KEEP, -1, node, -1);
+					emitNode(node.right);
+					args[jump] = size;
+					return;
+				}
+
+				case Chk: {
+					if (node.right == null || node.right.token != Lexer.Token.Sel) {
+						throw new Error(Error.Code.INVALID_OPERATION, "Invalid operation", node);
+					}
+					if (emitSwitch(node)) {
+						return;
+					}
+					emitNode(node.left);
+					int otherwise = emit(JUMP_ZERO, -1, node, -1);
+					emitNode(node.right.left);
+					int end = emit(JUMP, -1, node, -1);
+					args[otherwise] = size;
+					emitNode(node.right.right);
+					args[end] = size;
+					return;
+				}
+
+				case Set:
+					if (emitShared(node)) {
+						return;
+					}
+					emitNode(node.right);
+					emit(STORE, target(node), node, 0);
+					return;
+
+				case SetAdd:
+					emitAssignment(ADD, node);
+					return;
+
+				case SetSub:
+					emitAssignment(SUB, node);
+					return;
+
+				case SetMul:
+					emitAssignment(MUL, node);
+					return;
+
+				case SetDiv:
+					emitAssignment(DIV, node);
+					return;
+
+				case SetRem:
+					emitAssignment(REM, node);
+					return;
+
+				case Coma:
+					// chain of expressions, returning the value of the last one
+					emitNode(node.left);
+					emit(POP, 0, node, -1);
+					emitNode(node.right);
+					return;
+			}
+			throw new Error(Error.Code.INVALID_OPERATION, "Invalid operation", node);
+		}
+
+		private void emitValue(Parser.Node node) throws Error {
+			String text = node.getText();
+			char chr = text.charAt(0);
+			if ((chr >= '0' && chr <= '9') || chr == '.') {
+				try {
+					emitConstant(Double.parseDouble(text), node);
+				} catch (NumberFormatException e) {
+					throw new Error(Error.Code.INVALID_VALUE, "Invalid value", node, e);
+				}
+				return;
+			}
+
+			Double constant = library.constant(text);
+			if (constant != null) {
+				emitConstant(constant, node);
+				return;
+			}
+			Accumulators.Accumulator accumulator = accumulator(node);
+			if (accumulator != null) {
+				emit(SHARED_LOAD, slot(shared, accumulator), node, 1);
+				return;
+			}
+			emit(LOAD, slot(variables, text), node, 1);
+		}
+
+		private void emitConstant(double value, Parser.Node node) {
+			constants.add(value);
+			emit(CONST, constants.size() - 1, node, 1);
+		}
+
+		private void emitUnary(byte op, Parser.Node node) throws Error {
+			emitNode(node.right);
+			emit(op, 0, node, 0);
+		}
+
+		private void emitBinary(byte op, Parser.Node node) throws Error {
+			emitNode(node.left);
+			emitNode(node.right);
+			emit(op, 0, node, -1);
+		}
+
+		private void emitAssignment(byte op, Parser.Node node) throws Error {
+			if (emitShared(node)) {
+				return;
+			}
+			int slot = target(node);
+			emit(LOAD, slot, node.left, 1);
+			emitNode(node.right);
+			emit(op, 0, node, -1);
+			emit(STORE, slot, node, 0);
+		}
+
+		// emit a chain of conditionals comparing the same value to constants as a jump table:
+		// `x == 1 ? a : x == 2 ? b : ... : z`
+		private boolean emitSwitch(Parser.Node node) throws Error {
+			Parser.Node subject = null;
+			List<Parser.Node> arms = new ArrayList<>();
+			List<Double> keys = new ArrayList<>();
+			for (Parser.Node arm = node; arm != null; arm = Parser.unwrap(arm.right.right)) {
+				if (arm.token != Lexer.Token.Chk || arm.right == null || arm.right.token != Lexer.Token.Sel) {
+					break;
+				}
+				Parser.Node[] test = comparison(arm.left, subject);
+				if (test == null) {
+					break;
+				}
+				subject = test[0];
+				arms.add(arm);
+				keys.add(constant(test[1]));
+			}
+			if (arms.size() < MIN_TABLE) {
+				return false;
+			}
+
+			// the value is compared once, then the matching arm is evaluated
+			emitNode(subject);
+			int table = tables.size();
+			tables.add(null);
+			emit(SWITCH, table, node, -1);
+			int[] targets = new int[arms.size()];
+			int[] ends = new int[arms.size()];
+			for (int i = 0; i < arms.size(); i += 1) {
+				targets[i] = size;
+				emitNode(arms.get(i).right.left);
+				ends[i] = emit(JUMP, -1, arms.get(i), -1);
+			}
+			int otherwise = size;
+			emitNode(arms.get(arms.size() - 1).right.right);
+			for (int end : ends) {
+				args[end] = size;
+			}
+			tables.set(table, new Table(keys(keys), targets, otherwise));
+			return true;
+		}
+
+		// emit a disjunction comparing the same value to constants as a set lookup:
+		// `x == 1 || x == 5 || ...`
+		private boolean emitMembership(Parser.Node node) throws Error {
+			List<Parser.Node> tests = new ArrayList<>();
+			disjunction(tests, node);
+			if (tests.size() < MIN_TABLE) {
+				return false;
+			}
+			Parser.Node subject = null;
+			List<Double> keys = new ArrayList<>();
+			for (Parser.Node test : tests) {
+				Parser.Node[] comparison = comparison(test, subject);
+				if (comparison == null) {
+					return false;
+				}
+				subject = comparison[0];
+				keys.add(constant(comparison[1]));
+			}
+			emitNode(subject);
+			tables.add(new Table(keys(keys), new int[0], -1));
+			emit(IN, tables.size() - 1, node, 0);
+			return true;
+		}
+
+		// collect the operands of nested `||` operators.
+		private static void disjunction(List<Parser.Node> tests, Parser.Node node) {
+			node = Parser.unwrap(node);
+			if (node != null && node.token == Lexer.Token.Any) {
+				disjunction(tests, node.left);
+				disjunction(tests, node.right);
+				return;
+			}
+			tests.add(node);
+		}
+
+		// split `value == constant` or `constant == value` into the value and the constant,
+		// the value must be the same as the subject of the previous comparisons, if any.
+		private Parser.Node[] comparison(Parser.Node node, Parser.Node subject) throws Error {
+			node = Parser.unwrap(node);
+			if (node == null || node.token != Lexer.Token.Eq || node.left == null || node.right == null) {
+				return null;
+			}
+			Parser.Node value = Parser.unwrap(node.left);
+			Parser.Node key = Parser.unwrap(node.right);
+			if (constant(key) == null) {
+				Parser.Node swap = value;
+				value = key;
+				key = swap;
+			}
+			Double constant = constant(key);
+			if (constant == null || constant.isNaN() || !isPlain(value)) {
+				return null;
+			}
+			if (subject != null && !same(subject, value)) {
+				return null;
+			}
+			return new Parser.Node[]{value, key};
+		}
+
+		// the value of a literal or a named constant, optionally negated, or null.
+		private Double constant(Parser.Node node) throws Error {
+			node = Parser.unwrap(node);
+			if (node == null) {
+				return null;
+			}
+			if (node.token == Lexer.Token.Neg || node.token == Lexer.Token.Pos) {
+				Double value = constant(node.right);
+				if (value == null) {
+					return null;
+				}
+				return node.token == Lexer.Token.Neg ? -value : value;
+			}
+			if (node.token != Lexer.Token.Value) {
+				return null;
+			}
+			String text = node.getText();
+			char chr = text.charAt(0);
+			if ((chr >= '0' && chr <= '9') || chr == '.') {
+				try {
+					return Double.parseDouble(text);
+				} catch (NumberFormatException e) {
+					// reported when the literal is compiled
+					return null;
+				}
+			}
+			return library.constant(text);
+		}
+
+		// check if evaluating the subtree has no side effects, so it can be evaluated once instead of many times.
+		private static boolean isPlain(Parser.Node node) {
+			if (node == null) {
+				return true;
+			}
+			switch (node.token) {
+				case Fun:
+					if (node.left != null) {
+						return false;
+					}
+					break;
+
+				case Idx:
+					return isPlain(node.right);
+
+				case Set:
+				case SetAdd:
+				case SetSub:
+				case SetMul:
+				case SetDiv:
+				case SetRem:
+					return false;
+			}
+			return isPlain(node.left) && isPlain(node.right);
+		}
+
+		// check if two subtrees are the same expression.
+		private static boolean same(Parser.Node a, Parser.Node b) {
+			a = Parser.unwrap(a);
+			b = Parser.unwrap(b);
+			if (a == null || b == null) {
+				return a == b;
+			}
+			return a.token == b.token && a.getText().equals(b.getText()) && same(a.left, b.left) && same(a.right, b.right);
+		}
+
+		private static double[] keys(List<Double> keys) {
+			double[] result = new double[keys.size()];
+			for (int i = 0; i < result.length; i += 1) {
+				result[i] = keys.get(i);
+			}
+			return result;
+		}
+
+		// emit the assignment if it modifies an accumulator.
+		private boolean emitShared(Parser.Node node) throws Error {
+			Accumulators.Accumulator accumulator = accumulator(node.left);
+			if (accumulator == null) {
+				return false;
+			}
+			if (!accumulator.supports(node.token)) {
+				throw new Error(Error.Code.INVALID_OPERATION, "Invalid accumulator assignment", node);
+			}
+			emitNode(node.right);
+			emit(SHARED_UPDATE, slot(shared, accumulator), node, 0);
+			return true;
+		}
+
+		// resolve the accumulator referenced by the node, or null.
+		private Accumulators.Accumulator accumulator(Parser.Node node) {
+			if (accumulators == null || node == null || node.token != Lexer.Token.Value) {
+				return null;
+			}
+			return accumulators.find(node.getText());
+		}
+
+		// emit the arguments of a function, returning their count.
+		private int emitArguments(Parser.Node arguments) throws Error {
+			if (arguments == null) {
+				return 0;
+			}
+			if (arguments.token != Lexer.Token.Coma) {
+				emitNode(arguments);
+				return 1;
+			}
+			if (Lexer.Token.Coma.right2left) {
+				throw new Error(Error.Code.SYNTAX, "Right to left argument lists are not supported", arguments);
+			}
+			int count = emitArguments(arguments.left);
+			emitNode(arguments.right);
+			return count + 1;
+		}
+
+		// resolve the slot of the variable modified by an assignment.
+		private int target(Parser.Node node) throws Error {
+			Parser.Node variable = node.left;
+			if (variable == null || variable.token != Lexer.Token.Value) {
+				throw new Error(Error.Code.INVALID_OPERATION, "Invalid assignment", node);
+			}
+			String text = variable.getText();
+			char chr = text.charAt(0);
+			if ((chr >= '0' && chr <= '9') || chr == '.' || library.constant(text) != null) {
+				throw new Error(Error.Code.INVALID_OPERATION, "Invalid assignment", node);
+			}
+			return slot(variables, text);
+		}
+
+		private int emit(byte op, int arg, Parser.Node node, int stack) {
+			if (size == ops.length) {
+				ops = Arrays.copyOf(ops, 2 * size);
+				args = Arrays.copyOf(args, 2 * size);
+				nodes = Arrays.copyOf(nodes, 2 * size);
+			}
+			ops[size] = op;
+			args[size] = arg;
+			nodes[size] = node;
+			depth += stack;
+			maxDepth = Math.max(maxDepth, depth);
+			return size++;
+		}
+
+		private static <T> int slot(Map<T, Integer> slots, T name) {
+			Integer slot = slots.get(name);
+			if (slot == null) {
+				slot = slots.size();
+				slots.put(name, slot);
+			}
+			return slot;
+		}
+
+		private static Accumulators.Accumulator[] accumulators(Map<Accumulators.Accumulator, Integer> slots) {
+			Accumulators.Accumulator[] result = new Accumulators.Accumulator[slots.size()];
+			for (Map.Entry<Accumulators.Accumulator, Integer> entry : slots.entrySet()) {
+				result[entry.getValue()] = entry.getKey();
+			}
+			return result;
+		}
+
+		private static String[] names(Map<String, Integer> slots) {
+			String[] result = new String[slots.size()];
+			for (Map.Entry<String, Integer> entry : slots.entrySet()) {
+				result[entry.getValue()] = entry.getKey();
+			}
+			return result;
+		}
+	}
+}
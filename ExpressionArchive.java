@@ -0,0 +1,409 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The ExpressionArchive class stores compiled expressions in a compact, versioned binary format,
+ * so they can be loaded without parsing and compiling their source again.
+ * <p>
+ * An archive starts with a header: the magic number, the version of the format, and the checksum of the payload.
+ * The payload holds a table of all the strings (names, token kinds and node texts), followed by the expressions.
+ * Each expression is stored as columns: opcodes, operands, decoded constants, jump tables, the symbol tables
+ * (variables, arrays, functions with their arities and accumulators), and the token, position and text
+ * of the node each instruction was compiled from, so errors are reported as if the source was compiled.
+ * All numbers are big-endian, strings are UTF-8.
+ * <p>
+ * Loading maps the file, and copies the columns with bulk reads into the arrays of the expressions.
+ * Functions and accumulators are not stored, they are linked again by name while loading.
+ * Constants of the library are stored with their value at compile time.
+ */
+public final class ExpressionArchive {
+	// "EXPR" in ASCII
+	static final int MAGIC = 0x45585052;
+
+	// incremented with each incompatible change of the format or the opcodes
+	static final int VERSION = 2;
+
+	// magic, version and checksum
+	private static final int HEADER = 12;
+
+	private ExpressionArchive() {
+	}
+
+	/**
+	 * Write the expressions to a file.
+	 *
+	 * @param path        the file to write, replaced if it exists.
+	 * @param expressions the named expressions to store.
+	 * @throws IOException if the file can not be written.
+	 */
+	public static void write(Path path, Map<String, Expression> expressions) throws IOException {
+		Files.write(path, encode(expressions));
+	}
+
+	/**
+	 * Load the expressions from a file.
+	 *
+	 * @param path    the file to load, must be smaller than 2GB.
+	 * @param library resolves the functions used by the expressions.
+	 * @return the expressions by name, in the order they were written.
+	 * @throws IOException if the file can not be read, or it is not a valid archive.
+	 * @throws Error if a function can not be linked.
+	 */
+	public static Map<String, Expression> read(Path path, Expression.Library library) throws IOException, Error {
+		return read(path, library, null);
+	}
+
+	/**
+	 * Load the expressions from a file, linking the accumulators they use.
+	 *
+	 * @param path         the file to load, must be smaller than 2GB.
+	 * @param library      resolves the functions used by the expressions.
+	 * @param accumulators the accumulators shared by the evaluations.
+	 * @return the expressions by name, in the order they were written.
+	 * @throws IOException if the file can not be read, or it is not a valid archive.
+	 * @throws Error if a function or an accumulator can not be linked.
+	 */
+	public static Map<String, Expression> read(Path path, Expression.Library library, Accumulators accumulators) throws IOException, Error {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("File too large: " + path);
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		return decode(buffer, library, accumulators);
+	}
+
+	/**
+	 * Encode the expressions into an archive.
+	 */
+	static byte[] encode(Map<String, Expression> expressions) throws IOException {
+		Map<String, Integer> strings = new LinkedHashMap<>();
+		for (Map.Entry<String, Expression> entry : expressions.entrySet()) {
+			Expression expression = entry.getValue();
+			intern(strings, entry.getKey());
+			for (String name : expression.variables) {
+				intern(strings, name);
+			}
+			for (String name : expression.arrays) {
+				intern(strings, name);
+			}
+			for (String name : expression.names) {
+				intern(strings, name);
+			}
+			for (Accumulators.Accumulator accumulator : expression.shared) {
+				intern(strings, accumulator.name);
+			}
+			for (Parser.Node node : expression.nodes) {
+				intern(strings, node.token.name());
+				intern(strings, node.getText());
+			}
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		// checksum, updated after the payload is written
+		out.writeInt(0);
+
+		out.writeInt(strings.size());
+		for (String string : strings.keySet()) {
+			byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(utf8.length);
+			out.write(utf8);
+		}
+
+		out.writeInt(expressions.size());
+		for (Map.Entry<String, Expression> entry : expressions.entrySet()) {
+			Expression expression = entry.getValue();
+			out.writeInt(strings.get(entry.getKey()));
+			out.writeInt(expression.depth);
+
+			writeNames(out, strings, expression.variables);
+			writeNames(out, strings, expression.arrays);
+			writeNames(out, strings, expression.names);
+			for (int arity : expression.arities) {
+				out.writeInt(arity);
+			}
+			out.writeInt(expression.shared.length);
+			for (Accumulators.Accumulator accumulator : expression.shared) {
+				out.writeInt(strings.get(accumulator.name));
+			}
+
+			out.writeInt(expression.constants.length);
+			for (double constant : expression.constants) {
+				out.writeDouble(constant);
+			}
+
+			out.writeInt(expression.tables.length);
+			for (Expression.Table table : expression.tables) {
+				out.writeInt(table.keys.length);
+				for (double key : table.keys) {
+					out.writeDouble(key);
+				}
+				out.writeInt(table.targets.length);
+				for (int target : table.targets) {
+					out.writeInt(target);
+				}
+				out.writeInt(table.otherwise);
+			}
+
+			out.writeInt(expression.ops.length);
+			out.write(expression.ops);
+			for (int arg : expression.args) {
+				out.writeInt(arg);
+			}
+			for (Parser.Node node : expression.nodes) {
+				out.writeInt(strings.get(node.token.name()));
+			}
+			for (Parser.Node node : expression.nodes) {
+				out.writeInt(node.getPosition());
+			}
+			for (Parser.Node node : expression.nodes) {
+				out.writeInt(strings.get(node.getText()));
+			}
+		}
+		out.flush();
+
+		byte[] result = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(result, HEADER, result.length - HEADER);
+		ByteBuffer.wrap(result).putInt(8, (int) crc.getValue());
+		return result;
+	}
+
+	/**
+	 * Decode the expressions of an archive.
+	 */
+	static Map<String, Expression> decode(ByteBuffer buffer, Expression.Library library, Accumulators accumulators) throws IOException, Error {
+		if (buffer.limit() < HEADER || buffer.getInt(0) != MAGIC) {
+			throw new IOException("Invalid archive");
+		}
+		if (buffer.getInt(4) != VERSION) {
+			throw new IOException("Unsupported archive version: " + buffer.getInt(4));
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buffer.duplicate().position(HEADER));
+		if (buffer.getInt(8) != (int) crc.getValue()) {
+			throw new IOException("Invalid archive checksum");
+		}
+
+		ByteBuffer in = buffer.duplicate().position(HEADER);
+		try {
+			String[] strings = new String[count(in)];
+			for (int i = 0; i < strings.length; i += 1) {
+				byte[] utf8 = new byte[count(in)];
+				in.get(utf8);
+				strings[i] = new String(utf8, StandardCharsets.UTF_8);
+			}
+
+			// token kinds are stored by name, so the archive does not depend on the order of the enum
+			Map<String, Lexer.Token> tokens = new HashMap<>();
+			for (Lexer.Token token : Lexer.Token.values()) {
+				tokens.put(token.name(), token);
+			}
+
+			int count = count(in);
+			Map<String, Expression> result = new LinkedHashMap<>();
+			for (int e = 0; e < count; e += 1) {
+				String name = string(strings, in.getInt());
+				int depth = in.getInt();
+				if (depth < 0) {
+					throw new IOException("Invalid stack depth: " + depth);
+				}
+
+				String[] variables = readNames(in, strings);
+				String[] arrays = readNames(in, strings);
+				String[] names = readNames(in, strings);
+				int[] arities = new int[names.length];
+				in.asIntBuffer().get(arities);
+				in.position(in.position() + 4 * arities.length);
+				Expression.Function[] functions = new Expression.Function[names.length];
+				for (int i = 0; i < functions.length; i += 1) {
+					functions[i] = library.function(names[i], arities[i]);
+					if (functions[i] == null) {
+						throw new Error("Invalid function: " + names[i]);
+					}
+				}
+				Accumulators.Accumulator[] shared = new Accumulators.Accumulator[count(in)];
+				for (int i = 0; i < shared.length; i += 1) {
+					String accumulator = string(strings, in.getInt());
+					shared[i] = accumulators == null ? null : accumulators.find(accumulator);
+					if (shared[i] == null) {
+						throw new Error("Invalid accumulator: " + accumulator);
+					}
+				}
+
+				double[] constants = new double[count(in)];
+				in.asDoubleBuffer().get(constants);
+				in.position(in.position() + 8 * constants.length);
+
+				Expression.Table[] tables = new Expression.Table[count(in)];
+				for (int i = 0; i < tables.length; i += 1) {
+					double[] keys = new double[count(in)];
+					in.asDoubleBuffer().get(keys);
+					in.position(in.position() + 8 * keys.length);
+					int[] targets = new int[count(in)];
+					in.asIntBuffer().get(targets);
+					in.position(in.position() + 4 * targets.length);
+					if (targets.length != 0 && targets.length != keys.length) {
+						throw new IOException("Invalid jump table: " + i);
+					}
+					tables[i] = new Expression.Table(keys, targets, in.getInt());
+				}
+
+				byte[] ops = new byte[count(in)];
+				in.get(ops);
+				int[] args = new int[ops.length];
+				in.asIntBuffer().get(args);
+				in.position(in.position() + 4 * args.length);
+
+				int[] columns = new int[3 * ops.length];
+				in.asIntBuffer().get(columns);
+				in.position(in.position() + 4 * columns.length);
+				Parser.Node[] nodes = new Parser.Node[ops.length];
+				for (int pc = 0; pc < ops.length; pc += 1) {
+					Lexer.Token token = tokens.get(string(strings, columns[pc]));
+					if (token == null) {
+						throw new IOException("Invalid token: " + strings[columns[pc]]);
+					}
+					int position = columns[ops.length + pc];
+					String text = string(strings, columns[2 * ops.length + pc]);
+					nodes[pc] = new Parser.Node(token, position, text);
+				}
+
+				Expression expression = new Expression(ops, args, nodes, constants, functions,
+						names, arities, variables, arrays, shared, tables, depth);
+				verify(expression);
+				result.put(name, expression);
+			}
+			if (in.hasRemaining()) {
+				throw new IOException("Invalid archive: trailing data");
+			}
+			return Collections.unmodifiableMap(result);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			throw new IOException("Invalid archive: truncated", e);
+		}
+	}
+
+	// check that the operands of the instructions reference existing entries.
+	private static void verify(Expression expression) throws IOException, Error {
+		int length = expression.ops.length;
+		for (int pc = 0; pc < length; pc += 1) {
+			int arg = expression.args[pc];
+			int limit;
+			switch (expression.ops[pc]) {
+				case Expression.CONST:
+					limit = expression.constants.length;
+					break;
+
+				case Expression.LOAD:
+				case Expression.STORE:
+					limit = expression.variables.length;
+					break;
+
+				case Expression.ARRAY:
+					limit = expression.arrays.length;
+					break;
+
+				case Expression.CALL:
+					limit = expression.functions.length;
+					break;
+
+				case Expression.SHARED_LOAD:
+					limit = expression.shared.length;
+					break;
+
+				case Expression.SHARED_UPDATE:
+					limit = expression.shared.length;
+					if (arg >= 0 && arg < limit && !expression.shared[arg].supports(expression.nodes[pc].token)) {
+						throw new Error("Invalid assignment", expression.nodes[pc]);
+					}
+					break;
+
+				case Expression.JUMP:
+				case Expression.JUMP_ZERO:
+				case Expression.JUMP_ZERO_KEEP:
+				case Expression.JUMP_NONZERO_KEEP:
+					limit = length + 1;
+					break;
+
+				case Expression.SWITCH:
+					limit = expression.tables.length;
+					if (arg >= 0 && arg < limit) {
+						Expression.Table table = expression.tables[arg];
+						boolean valid = table.targets.length == table.keys.length && table.otherwise >= 0 && table.otherwise <= length;
+						for (int target : table.targets) {
+							valid &= target >= 0 && target <= length;
+						}
+						if (!valid) {
+							throw new IOException("Invalid jump table: " + arg + ", at instruction: " + pc);
+						}
+					}
+					break;
+
+				case Expression.IN:
+					limit = expression.tables.length;
+					break;
+
+				default:
+					if (expression.ops[pc] < Expression.CONST || expression.ops[pc] > Expression.IN) {
+						throw new IOException("Invalid opcode: " + expression.ops[pc]);
+					}
+					continue;
+			}
+			if (arg < 0 || arg >= limit) {
+				throw new IOException("Invalid operand: " + arg + ", at instruction: " + pc);
+			}
+		}
+	}
+
+	private static void intern(Map<String, Integer> strings, String value) {
+		strings.putIfAbsent(value, strings.size());
+	}
+
+	private static void writeNames(DataOutputStream out, Map<String, Integer> strings, String[] names) throws IOException {
+		out.writeInt(names.length);
+		for (String name : names) {
+			out.writeInt(strings.get(name));
+		}
+	}
+
+	private static String[] readNames(ByteBuffer in, String[] strings) throws IOException {
+		String[] result = new String[count(in)];
+		for (int i = 0; i < result.length; i += 1) {
+			result[i] = string(strings, in.getInt());
+		}
+		return result;
+	}
+
+	private static String string(String[] strings, int index) throws IOException {
+		if (index < 0 || index >= strings.length) {
+			throw new IOException("Invalid string index: " + index);
+		}
+		return strings[index];
+	}
+
+	// read a length, which can not exceed the remaining bytes.
+	private static int count(ByteBuffer in) throws IOException {
+		int count = in.getInt();
+		if (count < 0 || count > in.remaining()) {
+			throw new IOException("Invalid archive: truncated");
+		}
+		return count;
+	}
+}
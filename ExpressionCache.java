@@ -0,0 +1,162 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The ExpressionCache class keeps compiled expressions in a directory, so a restarted process
+ * loads them instead of compiling them again.
+ * <p>
+ * The cache is content-addressed: each expression is stored as a single-entry {@link ExpressionArchive}
+ * named by the hash of its syntax tree, the versions of the archive format and of the compiler, and the namespace of the cache.
+ * The hash includes only the structure of the tree, the token and text of each node, so the same expression
+ * formatted differently, ex: `x+1` and `(x + 1)`, is compiled once. Errors of an expression loaded from the
+ * cache report the positions of the source first compiled.
+ * Constants of the library are compiled into the expressions, so the namespace must change
+ * whenever the library changes, ex: "math-v2".
+ * <p>
+ * Entries are written to a temporary file, and moved in place, so concurrent processes sharing the
+ * directory never read partial entries. Entries which can not be read are compiled and written again.
+ */
+public final class ExpressionCache {
+	private final Path directory;
+	private final String namespace;
+	private final Expression.Library library;
+	private final Accumulators accumulators;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Constructs a cache.
+	 *
+	 * @param directory the directory of the entries, created if it does not exist.
+	 * @param namespace identifies the library and accumulators, part of the keys.
+	 * @param library   resolves the constants and functions used by the expressions.
+	 * @throws IOException if the directory can not be created.
+	 */
+	public ExpressionCache(Path directory, String namespace, Expression.Library library) throws IOException {
+		this(directory, namespace, library, null);
+	}
+
+	/**
+	 * Constructs a cache of expressions using accumulators.
+	 *
+	 * @param directory    the directory of the entries, created if it does not exist.
+	 * @param namespace    identifies the library and accumulators, part of the keys.
+	 * @param library      resolves the constants and functions used by the expressions.
+	 * @param accumulators the accumulators shared by the evaluations.
+	 * @throws IOException if the directory can not be created.
+	 */
+	public ExpressionCache(Path directory, String namespace, Expression.Library library, Accumulators accumulators) throws IOException {
+		this.directory = Files.createDirectories(directory);
+		this.namespace = namespace;
+		this.library = library;
+		this.accumulators = accumulators;
+	}
+
+	/**
+	 * Load the compiled expression of the tree from the cache, or compile and store it.
+	 *
+	 * @param root root of the syntax tree.
+	 * @return the compiled expression.
+	 * @throws Error if the tree is not a valid expression, or references unknown functions.
+	 * @throws IOException if the entry can not be written.
+	 */
+	public Expression compile(Parser.Node root) throws Error, IOException {
+		String key = key(root);
+		Path path = directory.resolve(key + ".expr");
+		try {
+			Expression expression = ExpressionArchive.read(path, library, accumulators).get(key);
+			if (expression != null) {
+				hits.increment();
+				return expression;
+			}
+		} catch (NoSuchFileException e) {
+			// not cached yet
+		} catch (IOException e) {
+			// corrupted or written by another version, replaced below
+		}
+
+		misses.increment();
+		Expression expression = accumulators == null
+				? Expression.compile(root, library)
+				: Expression.compile(root, library, accumulators);
+		Path temp = Files.createTempFile(directory, key, ".tmp");
+		try {
+			Files.write(temp, ExpressionArchive.encode(Collections.singletonMap(key, expression)));
+			Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		return expression;
+	}
+
+	/**
+	 * Get the number of expressions loaded from the cache.
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Get the number of expressions compiled, because they were not in the cache.
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Compute the key of a syntax tree: the hex encoded SHA-256 hash of the tree,
+	 * the versions of the archive format and of the compiler, and the namespace.
+	 */
+	String key(Parser.Node root) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(ExpressionArchive.VERSION);
+			out.writeInt(Expression.VERSION);
+			out.writeUTF(namespace);
+			hash(out, root);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		StringBuilder result = new StringBuilder();
+		for (byte b : digest.digest(bytes.toByteArray())) {
+			result.append(Character.forDigit((b >> 4) & 0xf, 16));
+			result.append(Character.forDigit(b & 0xf, 16));
+		}
+		return result.toString();
+	}
+
+	// write the tree in prefix order, missing children are written as empty markers.
+	// positions and the parenthesis around subexpressions are skipped, they do not change the compiled code.
+	private static void hash(DataOutputStream out, Parser.Node node) throws IOException {
+		node = Parser.unwrap(node);
+		if (node == null) {
+			out.writeByte(0);
+			return;
+		}
+		byte[] text = node.getText().getBytes(StandardCharsets.UTF_8);
+		out.writeByte(1);
+		out.writeUTF(node.token.name());
+		out.writeInt(text.length);
+		out.write(text);
+		hash(out, node.left);
+		hash(out, node.right);
+	}
+}
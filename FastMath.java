@@ -0,0 +1,151 @@
+/**
+ * The FastMath class approximates the trigonometric functions and their inverses, trading accuracy for speed,
+ * for workloads where a relative error around 1e-7 is acceptable, like rendering or scoring.
+ * <p>
+ * Each function documents the bound of its relative error, verified by the tests against {@code Math}.
+ * Arguments are reduced to a small interval using exact (Cody-Waite) constants or lookup tables,
+ * and the functions are evaluated on the reduced interval with short polynomials.
+ * Special values (NaN, infinities, zeros) are handled as by {@code Math}.
+ * Arguments outside the documented ranges are delegated to {@code Math}, which is correctly rounded within 1 ulp but slower.
+ * <p>
+ * The exponential, logarithm and power are not approximated: HotSpot compiles {@code Math.exp}, {@code Math.log}
+ * and {@code Math.pow} to intrinsics, which are faster than the polynomials.
+ */
+public final class FastMath {
+	private static final double PI_2 = Math.PI / 2;
+	private static final double SIXTEEN_OVER_PI = 16 / Math.PI;
+
+	// pi / 16 split in two 33-bit parts, so k * PI16_1 and k * PI16_2 are exact for |k| < 2^20, and a tail
+	private static final double PI16_1 = 1.57079632673412561417e+00 / 8;
+	private static final double PI16_2 = 6.07710050630396597660e-11 / 8;
+	private static final double PI16_3 = 2.02226624879595063154e-21 / 8;
+
+	// arguments of sin, cos and tan reduced exactly, larger ones are delegated
+	private static final double TRIG_LIMIT = 1e5;
+
+	// sin(i * pi / 16) and cos(i * pi / 16), with exact zeros and ones
+	private static final double[] SIN = new double[32];
+	private static final double[] COS = new double[32];
+
+	// atan(i / 8) for i in [0, 8]
+	private static final double[] ATAN = new double[9];
+
+	static {
+		for (int i = 0; i < SIN.length; i += 1) {
+			SIN[i] = i % 16 == 0 ? 0 : i % 8 == 0 ? 1 - (i & 16) / 8 : Math.sin(i * Math.PI / 16);
+			COS[i] = (i + 8) % 16 == 0 ? 0 : (i + 8) % 8 == 0 ? 1 - ((i + 8) & 16) / 8 : Math.cos(i * Math.PI / 16);
+		}
+		for (int i = 0; i < ATAN.length; i += 1) {
+			ATAN[i] = Math.atan(i / 8.);
+		}
+	}
+
+	private FastMath() {
+	}
+
+	/**
+	 * Sine, relative error below 1e-9 for |x| < 1e5.
+	 */
+	public static double sin(double x) {
+		if (!(Math.abs(x) < TRIG_LIMIT) || x == 0) {
+			// also keeps the sign of zero
+			return Math.sin(x);
+		}
+		double k = Math.rint(x * SIXTEEN_OVER_PI);
+		double r = reduce(x, k);
+		int i = (int) k & 31;
+		// sin(k * pi / 16 + r)
+		return SIN[i] * cosPoly(r) + COS[i] * sinPoly(r);
+	}
+
+	/**
+	 * Cosine, relative error below 1e-9 for |x| < 1e5.
+	 */
+	public static double cos(double x) {
+		if (!(Math.abs(x) < TRIG_LIMIT)) {
+			return Math.cos(x);
+		}
+		double k = Math.rint(x * SIXTEEN_OVER_PI);
+		double r = reduce(x, k);
+		int i = (int) k & 31;
+		// cos(k * pi / 16 + r)
+		return COS[i] * cosPoly(r) - SIN[i] * sinPoly(r);
+	}
+
+	/**
+	 * Tangent, relative error below 1e-8 for |x| < 1e5.
+	 */
+	public static double tan(double x) {
+		if (!(Math.abs(x) < TRIG_LIMIT) || x == 0) {
+			return Math.tan(x);
+		}
+		double k = Math.rint(x * SIXTEEN_OVER_PI);
+		double r = reduce(x, k);
+		int i = (int) k & 31;
+		double sin = sinPoly(r);
+		double cos = cosPoly(r);
+		return (SIN[i] * cos + COS[i] * sin) / (COS[i] * cos - SIN[i] * sin);
+	}
+
+	// x - k * pi / 16, also accurate close to the multiples of pi / 16
+	private static double reduce(double x, double k) {
+		return ((x - k * PI16_1) - k * PI16_2) - k * PI16_3;
+	}
+
+	// sine on [-pi/32, pi/32], the first omitted term is below 2e-10 * r
+	private static double sinPoly(double r) {
+		double r2 = r * r;
+		return r + r * r2 * (-1. / 6 + r2 * (1. / 120));
+	}
+
+	// cosine on [-pi/32, pi/32], the first omitted term is below 3e-13
+	private static double cosPoly(double r) {
+		double r2 = r * r;
+		return 1 + r2 * (-1. / 2 + r2 * (1. / 24 + r2 * (-1. / 720)));
+	}
+
+	/**
+	 * Arc tangent, relative error below 1e-10.
+	 */
+	public static double atan(double x) {
+		if (Double.isNaN(x)) {
+			return x;
+		}
+		double t = Math.abs(x);
+		boolean inverse = t > 1;
+		if (inverse) {
+			t = 1 / t;
+		}
+		// atan(t) = atan(c) + atan((t - c) / (1 + t * c)), with c = i / 8 nearest to t, and |u| < 1 / 16
+		int i = (int) (t * 8 + .5);
+		double c = i / 8.;
+		double u = (t - c) / (1 + t * c);
+		double u2 = u * u;
+		double result = ATAN[i] + (u + u * u2 * (-1. / 3 + u2 * (1. / 5 + u2 * (-1. / 7))));
+		if (inverse) {
+			result = PI_2 - result;
+		}
+		return Math.copySign(result, x);
+	}
+
+	/**
+	 * Arc sine, relative error below 1e-9.
+	 */
+	public static double asin(double x) {
+		if (!(Math.abs(x) <= 1)) {
+			return Double.NaN;
+		}
+		return atan(x / Math.sqrt((1 - x) * (1 + x)));
+	}
+
+	/**
+	 * Arc cosine, relative error below 1e-9.
+	 */
+	public static double acos(double x) {
+		if (!(Math.abs(x) <= 1)) {
+			return Double.NaN;
+		}
+		// avoids the cancellation of pi / 2 - asin(x) near 1
+		return 2 * atan(Math.sqrt((1 - x) / (1 + x)));
+	}
+}
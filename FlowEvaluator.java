@@ -0,0 +1,281 @@
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The FlowEvaluator class is a {@link Flow.Processor} evaluating compiled expressions over a stream of records.
+ * A record holds the values of the variables, in the order given at construction,
+ * and produces the values of the expressions, in the order given at construction.
+ * <p>
+ * Records are evaluated in micro-batches on the executor: a batch reuses a single frame per expression,
+ * and the variables are bound to slots once, at construction.
+ * At most two batches of records are buffered: records are requested from upstream only as
+ * the downstream subscriber consumes the results, so a slow subscriber throttles the publisher.
+ * <p>
+ * Variables of the expressions missing from the records are 0.
+ * <p>
+ * The processor supports a single upstream subscription and a single downstream subscriber.
+ * Evaluation errors cancel the upstream subscription and are forwarded downstream.
+ */
+public final class FlowEvaluator implements Flow.Processor<double[], double[]> {
+	// default number of records evaluated together.
+	static final int BATCH_SIZE = 256;
+
+	private final String[] variables;
+	private final Expression[] expressions;
+	private final Expression.Frame[] frames;
+	private final int[][] slots;
+	private final boolean[] unbound;
+	private final int batchSize;
+	private final Executor executor;
+
+	private final Queue<double[]> inputs = new ConcurrentLinkedQueue<>();
+	private final ArrayDeque<double[]> outputs = new ArrayDeque<>();
+
+	// downstream demand, and the number of running or pending drains
+	private final AtomicLong demand = new AtomicLong();
+	private final AtomicInteger drains = new AtomicInteger();
+
+	private volatile Flow.Subscription upstream;
+	private volatile Flow.Subscriber<? super double[]> downstream;
+	private volatile boolean completed;
+	private volatile Throwable failure;
+	private volatile boolean cancelled;
+	private volatile Throwable invalid;
+
+	// records requested from and consumed from upstream, updated only by the drain
+	private long requested;
+	private long consumed;
+	private boolean terminated;
+
+	/**
+	 * Constructs a processor evaluating on the common fork-join pool.
+	 *
+	 * @param variables   the names of the variables, in the order of the values of the records.
+	 * @param expressions the expressions evaluated for each record.
+	 */
+	public FlowEvaluator(String[] variables, Expression... expressions) {
+		this(variables, expressions, BATCH_SIZE, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Constructs a processor.
+	 *
+	 * @param variables   the names of the variables, in the order of the values of the records.
+	 * @param expressions the expressions evaluated for each record.
+	 * @param batchSize   the maximum number of records evaluated together.
+	 * @param executor    runs the evaluations and the notifications of the subscriber.
+	 */
+	public FlowEvaluator(String[] variables, Expression[] expressions, int batchSize, Executor executor) {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+		}
+		this.variables = variables.clone();
+		this.expressions = expressions.clone();
+		this.frames = new Expression.Frame[expressions.length];
+		this.slots = new int[expressions.length][];
+		this.unbound = new boolean[expressions.length];
+		for (int i = 0; i < expressions.length; i += 1) {
+			frames[i] = expressions[i].newFrame();
+			slots[i] = new int[variables.length];
+			int bound = 0;
+			for (int v = 0; v < variables.length; v += 1) {
+				slots[i][v] = expressions[i].variable(variables[v]);
+				bound += slots[i][v] >= 0 ? 1 : 0;
+			}
+			// variables missing from the records must be reset between evaluations
+			unbound[i] = bound < expressions[i].getVariables().size();
+		}
+		this.batchSize = batchSize;
+		this.executor = executor;
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		if (upstream != null) {
+			subscription.cancel();
+			return;
+		}
+		upstream = subscription;
+		drain();
+	}
+
+	@Override
+	public void onNext(double[] record) {
+		inputs.add(record);
+		drain();
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		failure = throwable;
+		completed = true;
+		drain();
+	}
+
+	@Override
+	public void onComplete() {
+		completed = true;
+		drain();
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super double[]> subscriber) {
+		if (downstream != null) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				@Override
+				public void request(long n) {
+				}
+
+				@Override
+				public void cancel() {
+				}
+			});
+			subscriber.onError(new IllegalStateException("Already subscribed"));
+			return;
+		}
+		downstream = subscriber;
+		subscriber.onSubscribe(new Flow.Subscription() {
+			@Override
+			public void request(long n) {
+				if (n <= 0) {
+					invalid = new IllegalArgumentException("Invalid request: " + n);
+					cancelled = true;
+				} else {
+					demand.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+				}
+				drain();
+			}
+
+			@Override
+			public void cancel() {
+				cancelled = true;
+				drain();
+			}
+		});
+		drain();
+	}
+
+	// schedule the drain on the executor, unless it is already running, which will drain again.
+	private void drain() {
+		if (drains.getAndIncrement() == 0) {
+			executor.execute(this::run);
+		}
+	}
+
+	private void run() {
+		int missed = 1;
+		do {
+			try {
+				step();
+			} catch (RuntimeException e) {
+				// a subscriber throwing from a signal, stop the stream: evaluation failures are forwarded by step
+				terminated = true;
+				cancelUpstream();
+			}
+			missed = drains.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	private void step() {
+		Flow.Subscriber<? super double[]> subscriber = downstream;
+		if (subscriber == null || terminated) {
+			return;
+		}
+		if (cancelled) {
+			terminated = true;
+			inputs.clear();
+			outputs.clear();
+			cancelUpstream();
+			if (invalid != null) {
+				subscriber.onError(invalid);
+			}
+			return;
+		}
+
+		for (;;) {
+			// publish the results of the previous batch, as requested
+			while (!outputs.isEmpty() && demand.get() > 0 && !cancelled) {
+				if (demand.get() != Long.MAX_VALUE) {
+					demand.decrementAndGet();
+				}
+				subscriber.onNext(outputs.poll());
+			}
+			if (cancelled || !outputs.isEmpty() || inputs.isEmpty()) {
+				break;
+			}
+
+			// evaluate the next batch, library functions may also fail with runtime exceptions
+			try {
+				for (int n = 0; n < batchSize && !inputs.isEmpty(); n += 1) {
+					outputs.add(evaluate(inputs.poll()));
+					consumed += 1;
+				}
+			} catch (Error | RuntimeException e) {
+				terminated = true;
+				inputs.clear();
+				outputs.clear();
+				cancelUpstream();
+				subscriber.onError(e);
+				return;
+			}
+		}
+		if (cancelled) {
+			// handled by the drain scheduled by the cancellation
+			return;
+		}
+
+		// request from upstream while there is room for two batches
+		Flow.Subscription subscription = upstream;
+		if (subscription != null && !completed) {
+			long free = 2L * batchSize - (requested - consumed) - outputs.size();
+			if (free >= batchSize) {
+				requested += free;
+				subscription.request(free);
+			}
+		}
+
+		if (completed && inputs.isEmpty() && outputs.isEmpty()) {
+			terminated = true;
+			if (failure != null) {
+				subscriber.onError(failure);
+			} else {
+				subscriber.onComplete();
+			}
+		}
+	}
+
+	// evaluate all the expressions for a record.
+	private double[] evaluate(double[] record) throws Error {
+		if (record.length != variables.length) {
+			throw new Error("Invalid record length: " + record.length + ", expected: " + variables.length);
+		}
+		double[] result = new double[expressions.length];
+		for (int i = 0; i < expressions.length; i += 1) {
+			Expression.Frame frame = frames[i];
+			if (unbound[i]) {
+				frame.reset();
+			}
+			int[] slots = this.slots[i];
+			for (int v = 0; v < slots.length; v += 1) {
+				if (slots[v] >= 0) {
+					frame.set(slots[v], record[v]);
+				}
+			}
+			result[i] = expressions[i].evaluate(frame);
+		}
+		return result;
+	}
+
+	private void cancelUpstream() {
+		Flow.Subscription subscription = upstream;
+		if (subscription != null) {
+			subscription.cancel();
+		}
+	}
+}
@@ -0,0 +1,93 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The Fuel class bounds the work of an evaluation, so an expression submitted by an untrusted source,
+ * like a huge or pathological one, can not hold an evaluation thread for long.
+ * <p>
+ * Each evaluated node, or executed instruction of a compiled expression, consumes a unit of fuel,
+ * and each call of a function consumes the units declared for the function, see {@link #declare}.
+ * The fuel is refilled to its capacity at the start of each evaluation, and the evaluation fails with
+ * {@link FuelExhausted} when it runs out, before evaluating the node or the function exceeding the capacity.
+ * <p>
+ * Fuel is used by a single evaluation at a time, like a {@link Expression.Frame}.
+ * Expressions can also be checked before evaluating them, see {@link Parser#parse(String, int, int)}.
+ */
+public final class Fuel {
+	private final long capacity;
+	private final Map<String, Long> costs = new HashMap<>();
+	long remaining;
+
+	/**
+	 * Constructs a fuel tank.
+	 *
+	 * @param capacity the units available for each evaluation.
+	 */
+	public Fuel(long capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+		this.capacity = capacity;
+		this.remaining = capacity;
+	}
+
+	/**
+	 * Declare the cost of a function, consumed by each call, in addition to the unit of the call.
+	 *
+	 * @param function the name of the function.
+	 * @param units    the cost of a call.
+	 * @return this fuel.
+	 */
+	public Fuel declare(String function, long units) {
+		if (units < 0) {
+			throw new IllegalArgumentException("Invalid cost: " + units);
+		}
+		costs.put(function, units);
+		return this;
+	}
+
+	/**
+	 * Get the units available for each evaluation.
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Get the units left by the last evaluation.
+	 */
+	public long getRemaining() {
+		return remaining;
+	}
+
+	/**
+	 * Get the units consumed by the last evaluation.
+	 */
+	public long getConsumed() {
+		return capacity - remaining;
+	}
+
+	// the declared cost of a function, 0 if not declared.
+	long cost(String function) {
+		Long cost = costs.get(function);
+		return cost == null ? 0 : cost;
+	}
+
+	void refill() {
+		remaining = capacity;
+	}
+
+	// consume the units needed to evaluate the node.
+	void consume(long units, Parser.Node node) throws FuelExhausted {
+		if (units > remaining) {
+			throw exhausted(node);
+		}
+		remaining -= units;
+	}
+
+	// empty the tank, returning the error to be thrown.
+	FuelExhausted exhausted(Parser.Node node) {
+		remaining = 0;
+		return new FuelExhausted(capacity, node);
+	}
+}
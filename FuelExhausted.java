@@ -0,0 +1,26 @@
+/**
+ * Reports an evaluation stopped because it consumed all of its {@link Fuel}.
+ */
+public class FuelExhausted extends Error {
+	private static final long serialVersionUID = 1L;
+
+	private final long capacity;
+
+	/**
+	 * Constructs a new FuelExhausted instance, located at the node whose evaluation exceeds the capacity.
+	 *
+	 * @param capacity The units available for the evaluation.
+	 * @param node The node evaluated when the fuel ran out.
+	 */
+	public FuelExhausted(long capacity, Parser.Node node) {
+		super(Code.FUEL_EXHAUSTED, "Fuel exhausted after " + capacity + " units", node);
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Get the units available for the evaluation.
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+}
@@ -0,0 +1,236 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The FunctionCache class remembers the results of pure functions, which are called many times with the same arguments,
+ * like lookup tables, special functions, or `pow` and `log` with repeated arguments.
+ * <p>
+ * The cache is bounded and shared: entries are split into stripes, each guarded by its own lock,
+ * so threads calling different functions or arguments rarely contend. Each stripe is a two-way set-associative table:
+ * an entry can be stored in one of the two ways of its set, and when both are occupied,
+ * the least recently used one is evicted. Keys are the name of the function and the bits of the arguments,
+ * stored as primitive doubles, so looking up an entry does not allocate.
+ * Calls with more than {@value #MAX_ARGUMENTS} arguments are not cached.
+ * <p>
+ * Functions are identified by name, so a cache must be shared only by evaluators defining the same functions.
+ * An evaluator uses the cache for the functions it declares pure, see {@link Evaluator#setCache},
+ * and compiled expressions use it for functions wrapped by {@link #memoize}.
+ */
+public final class FunctionCache {
+	// maximum number of arguments of the cached calls.
+	static final int MAX_ARGUMENTS = 4;
+
+	// number of entries of each set.
+	private static final int WAYS = 2;
+
+	private final Stripe[] stripes;
+	private final int stripeBits;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Constructs a cache.
+	 *
+	 * @param capacity the maximum number of entries, at least {@value #WAYS}, rounded down to a power of two.
+	 */
+	public FunctionCache(int capacity) {
+		if (capacity < WAYS || capacity > 1 << 30) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+		int entries = Integer.highestOneBit(capacity);
+		int stripes = Math.min(16, entries / WAYS);
+		this.stripeBits = Integer.numberOfTrailingZeros(stripes);
+		this.stripes = new Stripe[stripes];
+		for (int i = 0; i < stripes; i += 1) {
+			this.stripes[i] = new Stripe(entries / stripes / WAYS);
+		}
+	}
+
+	/**
+	 * Wrap a function of a compiled expression, so its results are remembered by this cache.
+	 *
+	 * @param function the name of the function, identifying the cached results.
+	 * @param target   the pure function computing the results.
+	 * @return the memoized function.
+	 */
+	public Expression.Function memoize(String function, Expression.Function target) {
+		return (arguments, offset, count) -> {
+			if (count > MAX_ARGUMENTS) {
+				return target.invoke(arguments, offset, count);
+			}
+			int hash = hash(function, arguments, offset, count);
+			Stripe stripe = stripes[hash & (stripes.length - 1)];
+			int set = (hash >>> stripeBits) & (stripe.sets - 1);
+			synchronized (stripe) {
+				int entry = stripe.find(set, hash, function, arguments, offset, count);
+				if (entry >= 0) {
+					hits.increment();
+					return stripe.values[entry];
+				}
+			}
+			double value = target.invoke(arguments, offset, count);
+			store(stripe, set, hash, function, arguments, offset, count, value);
+			return value;
+		};
+	}
+
+	/**
+	 * Invoke a pure function of the evaluator, unless its result is cached.
+	 */
+	double invoke(Evaluator evaluator, String function, double[] arguments) throws Error {
+		int count = arguments.length;
+		if (count > MAX_ARGUMENTS) {
+			return evaluator.onFunction(function, arguments);
+		}
+		int hash = hash(function, arguments, 0, count);
+		Stripe stripe = stripes[hash & (stripes.length - 1)];
+		int set = (hash >>> stripeBits) & (stripe.sets - 1);
+		synchronized (stripe) {
+			int entry = stripe.find(set, hash, function, arguments, 0, count);
+			if (entry >= 0) {
+				hits.increment();
+				return stripe.values[entry];
+			}
+		}
+		double value = evaluator.onFunction(function, arguments);
+		store(stripe, set, hash, function, arguments, 0, count, value);
+		return value;
+	}
+
+	/**
+	 * Get the number of calls answered from the cache.
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Get the number of entries of the cache, the capacity rounded down to a power of two.
+	 */
+	public int getCapacity() {
+		return stripes.length * stripes[0].sets * WAYS;
+	}
+
+	/**
+	 * Get the number of calls computed and stored in the cache.
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Get the number of entries replaced by newer ones.
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * Get the ratio of the calls answered from the cache, between 0 and 1.
+	 */
+	public double getHitRate() {
+		long hits = getHits();
+		long total = hits + getMisses();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	/**
+	 * Remove all the entries, the statistics are kept.
+	 */
+	public void clear() {
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				Arrays.fill(stripe.functions, null);
+			}
+		}
+	}
+
+	private void store(Stripe stripe, int set, int hash, String function, double[] arguments, int offset, int count, double value) {
+		misses.increment();
+		synchronized (stripe) {
+			// another thread might have stored the same call meanwhile
+			int entry = stripe.find(set, hash, function, arguments, offset, count);
+			if (entry < 0) {
+				entry = stripe.victim(set);
+				if (stripe.functions[entry] != null) {
+					evictions.increment();
+				}
+				stripe.hashes[entry] = hash;
+				stripe.functions[entry] = function;
+				stripe.counts[entry] = count;
+				for (int i = 0; i < count; i += 1) {
+					stripe.keys[entry * MAX_ARGUMENTS + i] = Double.doubleToRawLongBits(arguments[offset + i]);
+				}
+			}
+			stripe.values[entry] = value;
+			stripe.recent[set] = entry;
+		}
+	}
+
+	private static int hash(String function, double[] arguments, int offset, int count) {
+		long hash = function.hashCode();
+		for (int i = 0; i < count; i += 1) {
+			hash = 31 * hash + Double.doubleToRawLongBits(arguments[offset + i]);
+		}
+		// mix the bits, so similar arguments are spread across the sets
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		return (int) hash;
+	}
+
+	/**
+	 * A two-way set-associative table of entries, accessed holding its lock.
+	 */
+	private static final class Stripe {
+		final int sets;
+		final int[] hashes;
+		final String[] functions;
+		final int[] counts;
+		final long[] keys;
+		final double[] values;
+
+		// the most recently used entry of each set
+		final int[] recent;
+
+		Stripe(int sets) {
+			this.sets = sets;
+			this.hashes = new int[WAYS * sets];
+			this.functions = new String[WAYS * sets];
+			this.counts = new int[WAYS * sets];
+			this.keys = new long[WAYS * sets * MAX_ARGUMENTS];
+			this.values = new double[WAYS * sets];
+			this.recent = new int[sets];
+		}
+
+		// find the entry of a call in the set, or -1 if it is not cached.
+		int find(int set, int hash, String function, double[] arguments, int offset, int count) {
+			for (int entry = WAYS * set; entry < WAYS * set + WAYS; entry += 1) {
+				if (hashes[entry] != hash || counts[entry] != count || !function.equals(functions[entry])) {
+					continue;
+				}
+				boolean equal = true;
+				for (int i = 0; i < count && equal; i += 1) {
+					equal = keys[entry * MAX_ARGUMENTS + i] == Double.doubleToRawLongBits(arguments[offset + i]);
+				}
+				if (equal) {
+					recent[set] = entry;
+					return entry;
+				}
+			}
+			return -1;
+		}
+
+		// choose the entry to be replaced: an empty one, or the least recently used of the two.
+		int victim(int set) {
+			for (int entry = WAYS * set; entry < WAYS * set + WAYS; entry += 1) {
+				if (functions[entry] == null) {
+					return entry;
+				}
+			}
+			return recent[set] == WAYS * set ? WAYS * set + 1 : WAYS * set;
+		}
+	}
+}
@@ -0,0 +1,445 @@
+/**
+ * The IntervalEvaluator class is an abstract class designed for evaluating expressions
+ * over ranges of values instead of single values, using interval arithmetic.
+ * The result of the evaluation is a conservative range: evaluating the same expression
+ * with the {@code Evaluator} for any combination of values inside the input ranges
+ * produces a value inside the resulting range.
+ * Operations which can not be evaluated on ranges (bitwise operations, remainder) raise an error.
+ * @see <a href="https://en.wikipedia.org/wiki/Interval_arithmetic">Interval arithmetic</a>
+ */
+public abstract class IntervalEvaluator {
+
+	protected static final Interval[] EMPTY_ARGS = {};
+
+	/**
+	 * Invoked on every value node for lookup or to be parsed.
+	 *
+	 * @param value the variable or number represented as text.
+	 * @return range of values to be used for this token.
+	 */
+	protected abstract Interval onValue(String value) throws Error;
+
+	/**
+	 * Invoked on nodes parsed as function call operator(`function(...arguments)`).
+	 * Implementations must return a range containing every result of the function
+	 * for arguments inside the given ranges.
+	 *
+	 * @param function  the name of the function.
+	 * @param arguments range of the arguments of the invocation.
+	 * @return range of the expression.
+	 */
+	protected abstract Interval onFunction(String function, Interval[] arguments) throws Error;
+
+	/**
+	 * Invoked on nodes parsed as index operator(`array[subscript]`).
+	 *
+	 * @param array     the array which is indexed.
+	 * @param subscript range of the subscript to be used.
+	 * @return range of the expression.
+	 */
+	protected Interval onArray(String array, Interval subscript) throws Error {
+		throw new Error("Arrays are not supported");
+	}
+
+	/**
+	 * Evaluate the arguments of a function invocation and forward them to {@link #onFunction(String, Interval[])}.
+	 *
+	 * @param function  the name of the function.
+	 * @param arguments arguments of the invocation.
+	 * @return range of the expression.
+	 */
+	protected Interval onFunction(String function, Parser.Node arguments) throws Error {
+		if (arguments == null) {
+			return onFunction(function, EMPTY_ARGS);
+		}
+
+		int n = 1;
+		for (Parser.Node node = arguments; node.token == Lexer.Token.Coma; n += 1) {
+			if (Lexer.Token.Coma.right2left) {
+				node = node.right;
+			} else {
+				node = node.left;
+			}
+		}
+
+		Interval[] args = new Interval[n];
+		evaluateArguments(args, 0, arguments);
+		return onFunction(function, args);
+	}
+
+	private int evaluateArguments(Interval[] args, int pos, Parser.Node arguments) throws Error {
+		if (arguments.token != Lexer.Token.Coma) {
+			args[pos] = evaluate(arguments);
+			return pos;
+		}
+		if (Lexer.Token.Coma.right2left) {
+			evaluateArguments(args, pos + 1, arguments.right);
+			args[pos] = evaluate(arguments.left);
+		} else {
+			pos = evaluateArguments(args, pos, arguments.left) + 1;
+			args[pos] = evaluate(arguments.right);
+		}
+		return pos;
+	}
+
+	/**
+	 * Evaluate the range of the expression starting with the given node as the root.
+	 *
+	 * @param node      root of the syntax tree.
+	 * @return range of the expression.
+	 */
+	public Interval evaluate(Parser.Node node) throws Error {
+		Interval left, right;
+		switch (node.token) {
+			case Value:
+				try {
+					return onValue(node.getText());
+				} catch (Error e) {
+					throw e;
+				} catch (Exception e) {
+					throw new Error("Invalid value", node, e);
+				}
+
+			case Fun:
+				if (node.left == null) {
+					if (node.right == null) {
+						// empty parenthesis: `()`
+						throw new Error("Invalid function call", node);
+					}
+
+					// subexpression with parenthesis: `(3 + 2)`
+					return evaluate(node.right);
+				}
+				if (node.left.token != Lexer.Token.Value) {
+					// invalid function name: `9()`
+					throw new Error("Invalid function call", node);
+				}
+				return onFunction(node.left.getText(), node.right);
+
+			case Idx:
+				if (node.left == null || node.right == null) {
+					// empty index: `[]` or `values[]` or `[values]`
+					throw new Error("Invalid array subscript", node);
+				}
+				if (node.left.token != Lexer.Token.Value) {
+					// invalid array variable: `(9-8)[9]`
+					throw new Error("Invalid array subscript", node);
+				}
+				return onArray(node.left.getText(), evaluate(node.right));
+
+			case Pos:
+				return evaluate(node.right);
+
+			case Neg:
+				return evaluate(node.right).neg();
+
+			case Not:
+				right = evaluate(node.right);
+				if (!right.contains(0)) {
+					return Interval.FALSE;
+				}
+				if (right.isPoint()) {
+					return Interval.TRUE;
+				}
+				return Interval.BOOLEAN;
+
+			case Pow:
+				left = evaluate(node.left);
+				right = evaluate(node.right);
+				return left.pow(right, node);
+
+			case Mul:
+				left = evaluate(node.left);
+				right = evaluate(node.right);
+				return left.mul(right);
+
+			case Div:
+				left = evaluate(node.left);
+				right = evaluate(node.right);
+				return left.div(right);
+
+			case Add:
+				left = evaluate(node.left);
+				right = evaluate(node.right);
+				return left.add(right);
+
+			case Sub:
+				left = evaluate(node.left);
+				right = evaluate(node.right);
+				return left.sub(right);
+
+			case Lt:
+				left = evaluate(node.left);
+				right = evaluate(node.right);
+				return Interval.compare(left, right, left.max < right.min, left.min >= right.max);
+
+			case Leq:
+				left = evaluate(node.left);
+				right = evaluate(node.right);
+				return Interval.compare(left, right, left.max <= right.min, left.min > right.max);
+
+			case Gt:
+				left = evaluate(node.left);
+				right = evaluate(node.right);
+				return Interval.compare(left, right, left.min > right.max, left.max <= right.min);
+
+			case Geq:
+				left = evaluate(node.left);
+				right = evaluate(node.right);
+				return Interval.compare(left, right, left.min >= right.max, left.max < right.min);
+
+			case Eq:
+				left = evaluate(node.left);
+				right = evaluate(node.right);
+				return Interval.compare(left, right, left.isPoint() && right.isPoint() && left.min == right.min, left.max < right.min || left.min > right.max);
+
+			case Neq:
+				left = evaluate(node.left);
+				right = evaluate(node.right);
+				return Interval.compare(left, right, left.max < right.min || left.min > right.max, left.isPoint() && right.isPoint() && left.min == right.min);
+
+			case All:
+				left = evaluate(node.left);
+				if (left.isZero()) {
+					// stop at the first zero value
+					return left;
+				}
+				if (!left.contains(0)) {
+					return evaluate(node.right);
+				}
+				return Interval.ZERO.hull(evaluate(node.right));
+
+			case Any:
+				left = evaluate(node.left);
+				if (!left.contains(0)) {
+					// stop at the first non-zero value
+					return left;
+				}
+				if (left.isZero()) {
+					return evaluate(node.right);
+				}
+				return left.hull(evaluate(node.right));
+
+			case Chk:
+				if (node.right == null || node.right.token != Lexer.Token.Sel) {
+					throw new Error("Invalid operation", node);
+				}
+				left = evaluate(node.left);
+				if (!left.contains(0)) {
+					return evaluate(node.right.left);
+				}
+				if (left.isZero()) {
+					return evaluate(node.right.right);
+				}
+				return evaluate(node.right.left).hull(evaluate(node.right.right));
+
+			case Cmt:
+			case Rem:
+			case Shl:
+			case Shr:
+			case Sar:
+			case And:
+			case Xor:
+			case Ior:
+				throw new Error("Operation is not interval-safe", node);
+		}
+		throw new Error("Invalid operation", node);
+	}
+
+	/**
+	 * Represents an immutable range of values, including both the minimum and the maximum.
+	 * The range from negative to positive infinity is also used to represent an unknown value,
+	 * and it is the only range which may contain the not-a-number value.
+	 * Results of inexact operations are rounded outward, so they always contain the exact result.
+	 */
+	public static final class Interval {
+		public static final Interval ENTIRE = new Interval(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+		public static final Interval ZERO = new Interval(0, 0);
+		public static final Interval FALSE = ZERO;
+		public static final Interval TRUE = new Interval(1, 1);
+		public static final Interval BOOLEAN = new Interval(0, 1);
+
+		/**
+		 * Lower bound of the range.
+		 */
+		public final double min;
+
+		/**
+		 * Upper bound of the range.
+		 */
+		public final double max;
+
+		private Interval(double min, double max) {
+			this.min = min;
+			this.max = max;
+		}
+
+		/**
+		 * Creates a range containing the values between min and max.
+		 *
+		 * @param min lower bound of the range.
+		 * @param max upper bound of the range.
+		 * @return the range, or the entire range if any of the bounds is not a number.
+		 */
+		public static Interval of(double min, double max) {
+			if (Double.isNaN(min) || Double.isNaN(max)) {
+				return ENTIRE;
+			}
+			if (min > max) {
+				throw new IllegalArgumentException("Invalid interval: [" + min + ", " + max + "]");
+			}
+			return new Interval(min, max);
+		}
+
+		/**
+		 * Creates a range containing a single value.
+		 *
+		 * @param value the value of the range.
+		 * @return the range, or the entire range if the value is not a number.
+		 */
+		public static Interval of(double value) {
+			return of(value, value);
+		}
+
+		// Creates a range from the result of an inexact operation, rounding the bounds outward.
+		private static Interval rounded(double min, double max) {
+			return of(Math.nextDown(min), Math.nextUp(max));
+		}
+
+		// Creates the result of a comparison, which is known to be true, false, or any of them.
+		private static Interval compare(Interval left, Interval right, boolean isTrue, boolean isFalse) {
+			if (left.isEntire() || right.isEntire()) {
+				// comparing with not-a-number is always false, except for `<>`
+				return BOOLEAN;
+			}
+			if (isTrue) {
+				return TRUE;
+			}
+			if (isFalse) {
+				return FALSE;
+			}
+			return BOOLEAN;
+		}
+
+		public boolean isPoint() {
+			return min == max;
+		}
+
+		public boolean isZero() {
+			return min == 0 && max == 0;
+		}
+
+		public boolean isEntire() {
+			return this == ENTIRE || (min == Double.NEGATIVE_INFINITY && max == Double.POSITIVE_INFINITY);
+		}
+
+		public boolean contains(double value) {
+			return isEntire() || (min <= value && value <= max);
+		}
+
+		/**
+		 * Smallest range containing both this and the other range.
+		 */
+		public Interval hull(Interval other) {
+			if (isEntire() || other.isEntire()) {
+				return ENTIRE;
+			}
+			return of(Math.min(min, other.min), Math.max(max, other.max));
+		}
+
+		public Interval neg() {
+			if (isEntire()) {
+				return ENTIRE;
+			}
+			return of(-max, -min);
+		}
+
+		public Interval abs() {
+			if (isEntire() || min >= 0) {
+				return this;
+			}
+			if (max <= 0) {
+				return neg();
+			}
+			return of(0, Math.max(-min, max));
+		}
+
+		public Interval add(Interval other) {
+			if (isPoint() && other.isPoint()) {
+				return of(min + other.min);
+			}
+			return rounded(min + other.min, max + other.max);
+		}
+
+		public Interval sub(Interval other) {
+			if (isPoint() && other.isPoint()) {
+				return of(min - other.min);
+			}
+			return rounded(min - other.max, max - other.min);
+		}
+
+		public Interval mul(Interval other) {
+			if (isPoint() && other.isPoint()) {
+				return of(min * other.min);
+			}
+			double a = min * other.min;
+			double b = min * other.max;
+			double c = max * other.min;
+			double d = max * other.max;
+			if (Double.isNaN(a) || Double.isNaN(b) || Double.isNaN(c) || Double.isNaN(d)) {
+				return ENTIRE;
+			}
+			return rounded(Math.min(Math.min(a, b), Math.min(c, d)), Math.max(Math.max(a, b), Math.max(c, d)));
+		}
+
+		public Interval div(Interval other) {
+			if (isPoint() && other.isPoint()) {
+				return of(min / other.min);
+			}
+			if (other.contains(0)) {
+				return ENTIRE;
+			}
+			double a = min / other.min;
+			double b = min / other.max;
+			double c = max / other.min;
+			double d = max / other.max;
+			if (Double.isNaN(a) || Double.isNaN(b) || Double.isNaN(c) || Double.isNaN(d)) {
+				return ENTIRE;
+			}
+			return rounded(Math.min(Math.min(a, b), Math.min(c, d)), Math.max(Math.max(a, b), Math.max(c, d)));
+		}
+
+		/**
+		 * Raise this range to a power, which must be a single integer value.
+		 */
+		public Interval pow(Interval power, Parser.Node node) throws Error {
+			if (isPoint() && power.isPoint()) {
+				return of(Math.pow(min, power.min));
+			}
+			if (!power.isPoint() || power.min != Math.rint(power.min) || Math.abs(power.min) > (1L << 53)) {
+				throw new Error("Operation is not interval-safe", node);
+			}
+			if (power.min == 0) {
+				// Math.pow(nan, 0) is also 1
+				return TRUE;
+			}
+			if (isEntire()) {
+				return ENTIRE;
+			}
+			if (power.min < 0) {
+				return TRUE.div(pow(power.neg(), node));
+			}
+			if (power.min % 2 != 0) {
+				// odd powers are monotonic
+				return rounded(Math.pow(min, power.min), Math.pow(max, power.min));
+			}
+			Interval abs = abs();
+			return rounded(Math.max(0, Math.pow(abs.min, power.min)), Math.pow(abs.max, power.min));
+		}
+
+		@Override
+		public String toString() {
+			return "[" + min + ", " + max + "]";
+		}
+	}
+}
@@ -1,3 +1,5 @@
+import java.util.Arrays;
+
 /**
  * Lexer class provides functionality to tokenize an input string based on predefined token rules.
  * The Lexer identifies tokens, their type, and their positions within the input.
@@ -7,11 +9,38 @@ public class Lexer {
 	// Cache token values to avoid creating new arrays each time {@code Token.values()} is called.
 	private static final Token[] TOKEN_VALUES = Token.values();
 
-	// contains the separator characters of tokens
-	private final boolean[] delimiters;
+	// contains the separator characters of tokens, shared by all the lexers
+	private static final boolean[] DELIMITERS = new boolean[256];
+
+	// contains the tokens starting with each separator character, in the order of their declaration
+	private static final Token[][] CANDIDATES = new Token[256][];
+
+	static {
+		// use whitespace and operator's first character as separator
+		for (int i = 0; i < DELIMITERS.length; i++) {
+			DELIMITERS[i] = Character.isWhitespace((char) i);
+		}
+
+		for (Token token : TOKEN_VALUES) {
+			if (!token.text.isEmpty()) {
+				DELIMITERS[token.text.charAt(0)] = true;
+			}
+		}
+
+		for (char chr = 0; chr < CANDIDATES.length; chr++) {
+			int count = 0;
+			Token[] candidates = new Token[TOKEN_VALUES.length];
+			for (Token token : TOKEN_VALUES) {
+				if (!token.text.isEmpty() && token.text.charAt(0) == chr) {
+					candidates[count++] = token;
+				}
+			}
+			CANDIDATES[chr] = Arrays.copyOf(candidates, count);
+		}
+	}
 
 	// contains the input string.
-	private final String input;
+	private String input;
 
 	// slice of the current token.
 	private int previous = 0;
@@ -19,22 +48,22 @@ public class Lexer {
 	private int end = 0;
 
 	public Lexer(String input) {
+		reset(input);
+	}
+
+	/**
+	 * Start tokenizing another input, so the lexer can be reused without allocating.
+	 *
+	 * @param input the text to be tokenized.
+	 */
+	void reset(String input) {
 		if (input == null) {
 			throw new IllegalArgumentException("Input cannot be null");
 		}
 		this.input = input;
-		this.delimiters = new boolean[256];
-
-		// use whitespace and operator's first character as separator
-		for (int i = 0; i < delimiters.length; i++) {
-			delimiters[i] = Character.isWhitespace((char) i);
-		}
-
-		for (Token token : TOKEN_VALUES) {
-			if (!token.text.isEmpty()) {
-				delimiters[token.text.charAt(0)] = true;
-			}
-		}
+		this.previous = 0;
+		this.start = 0;
+		this.end = 0;
 	}
 
 	/**
@@ -77,7 +106,8 @@ public class Lexer {
 		Token match = matchToken();
 		if (!match.text.isEmpty()) {
 			end += match.text.length();
-		} else {
+		} else if (end < input.length()) {
+			// do not advance beyond the end of the input
 			end += 1;
 		}
 		return match;
@@ -86,7 +116,10 @@ public class Lexer {
 	// Matches the longest token from the input starting at the current position.
 	private Token matchToken() {
 		Token match = Token.Undefined;
-		for (Token token : TOKEN_VALUES) {
+		if (start >= input.length() || input.charAt(start) >= CANDIDATES.length) {
+			return match;
+		}
+		for (Token token : CANDIDATES[input.charAt(start)]) {
 			if (!input.startsWith(token.text, start)) {
 				// text must start with token text
 				continue;
@@ -110,7 +143,7 @@ public class Lexer {
 	 */
 	public void backToken() throws Error {
 		if (previous == start) {
-			throw new Error("can not push back: ", Token.Undefined, this);
+			throw new Error(Error.Code.INTERNAL, "can not push back: ", Token.Undefined, this);
 		}
 		end = start;
 		start = previous;
@@ -125,6 +158,24 @@ public class Lexer {
 		return start;
 	}
 
+	/**
+	 * Get the end position of the current token, exclusive.
+	 *
+	 * @return position after the current token.
+	 */
+	public int getEnd() {
+		return end;
+	}
+
+	/**
+	 * Get the input of the lexer.
+	 *
+	 * @return the text being tokenized.
+	 */
+	public String getInput() {
+		return input;
+	}
+
 	/**
 	 * Get the text of the current token.
 	 *
@@ -141,7 +192,7 @@ public class Lexer {
 	 * @return true if the character is a delimiter, false otherwise
 	 */
 	private boolean isDelimiter(char chr) {
-		return chr < delimiters.length && delimiters[chr];
+		return chr < DELIMITERS.length && DELIMITERS[chr];
 	}
 
 	@Override
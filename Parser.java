@@ -1,3 +1,10 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * The Parser class provides functionality to build the abstract syntax tree (AST).
  * It uses the {@code Lexer} class to read and tokenize the input.
@@ -25,29 +32,120 @@ public class Parser {
 	 * @throws Error If there are any parsing errors.
 	 */
 	public static Node parse(Lexer lexer) throws Error {
-		Node node = parseBinary(lexer, 0);
+		return parse(lexer, Integer.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Parses the given expression string, rejecting expressions exceeding the given size,
+	 * before they are evaluated, or before their nesting exhausts the stack of the parser.
+	 *
+	 * @param expression The input expression in string format to be parsed.
+	 * @param maxNodes The maximum number of nodes of the tree.
+	 * @param maxDepth The maximum depth of the tree, the root has depth 1.
+	 * @return The root node of the resulting abstract syntax tree.
+	 * @throws Error If there are any parsing errors, or the tree exceeds the limits.
+	 */
+	public static Node parse(String expression, int maxNodes, int maxDepth) throws Error {
+		return parse(new Lexer(expression), maxNodes, maxDepth);
+	}
+
+	/**
+	 * Parses the input provided by the lexer, rejecting expressions exceeding the given size.
+	 *
+	 * @param lexer The lexer instance that tokenizes the input stream for parsing.
+	 * @param maxNodes The maximum number of nodes of the tree.
+	 * @param maxDepth The maximum depth of the tree, the root has depth 1.
+	 * @return The root node of the resulting abstract syntax tree.
+	 * @throws Error If there are any parsing errors, or the tree exceeds the limits.
+	 */
+	public static Node parse(Lexer lexer, int maxNodes, int maxDepth) throws Error {
+		Limits limits = new Limits(maxNodes, maxDepth);
+		Node node = parseBinary(lexer, 0, limits);
 		if (lexer.hasNext()) {
-			throw new Error("End of input expected, got", lexer.nextToken(), lexer);
+			throw new Error(Error.Code.SYNTAX, "End of input expected, got", lexer.nextToken(), lexer);
+		}
+		if (maxDepth < Integer.MAX_VALUE) {
+			checkDepth(node, maxDepth);
+		}
+		return node;
+	}
+
+	/**
+	 * Checks the syntax of the expression without building the syntax tree, collecting the symbols it references.
+	 * The grammar is the same as of {@link #parse(String)}, so the expression is valid if and only if it can be parsed,
+	 * and the errors are the same, reported without stack traces.
+	 * Expressions checked in bulk should reuse an {@link Analysis}, which allocates nothing for most expressions.
+	 *
+	 * @param expression The input expression in string format to be checked.
+	 * @return The validity of the expression and the symbols it references.
+	 */
+	public static Analysis analyze(String expression) {
+		return analyze(expression, Integer.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Checks the syntax of the expression without building the syntax tree, rejecting expressions exceeding the given size.
+	 * Expressions too deep are reported at the end of the first subexpression exceeding the depth.
+	 *
+	 * @param expression The input expression in string format to be checked.
+	 * @param maxNodes The maximum number of nodes of the tree.
+	 * @param maxDepth The maximum depth of the tree, the root has depth 1.
+	 * @return The validity of the expression and the symbols it references.
+	 */
+	public static Analysis analyze(String expression, int maxNodes, int maxDepth) {
+		return new Analysis(maxNodes, maxDepth).analyze(expression);
+	}
+
+	// skip the parenthesis around a subexpression: `((x))` is `x`.
+	static Node unwrap(Node node) {
+		while (node != null && node.token == Lexer.Token.Fun && node.left == null && node.right != null) {
+			node = node.right;
 		}
 		return node;
 	}
 
+	// check the depth of the tree without recursion, left nested operators are not limited by the parser.
+	private static void checkDepth(Node root, int maxDepth) throws Error {
+		ArrayDeque<Node> nodes = new ArrayDeque<>();
+		ArrayDeque<Integer> depths = new ArrayDeque<>();
+		nodes.push(root);
+		depths.push(1);
+		while (!nodes.isEmpty()) {
+			Node node = nodes.pop();
+			int depth = depths.pop();
+			if (depth > maxDepth) {
+				throw new Error(Error.Code.LIMIT, "Expression too deep, at most " + maxDepth + " levels allowed", node);
+			}
+			if (node.left != null) {
+				nodes.push(node.left);
+				depths.push(depth + 1);
+			}
+			if (node.right != null) {
+				nodes.push(node.right);
+				depths.push(depth + 1);
+			}
+		}
+	}
+
 	/**
 	 * Parses unary expressions from the input provided by the lexer. It evaluates tokens
 	 * representing unary operators, values, functions, or indexed elements and creates
 	 * corresponding abstract syntax tree nodes.
 	 *
 	 * @param lexer The lexer instance that tokenizes the input stream for parsing.
+	 * @param limits The limits of the size of the tree.
 	 * @return A node representing the parsed unary expression or structure in the abstract syntax tree.
 	 * @throws Error If the syntax of the input fails to match the expected unary expression.
 	 */
-	private static Node parseUnary(Lexer lexer) throws Error {
+	private static Node parseUnary(Lexer lexer, Limits limits) throws Error {
 		Lexer.Token token = lexer.nextToken();
 		switch (token) {
 			case Value:
+				limits.node(token, lexer);
 				return new Node(token, lexer.getPosition(), lexer.getText());
 
 			case Fun:
+				limits.node(token, lexer);
 				int position = lexer.getPosition();
 				if (lexer.nextToken() == Lexer.Token.RParen) {
 					// allow empty list arguments: '(' ')'
@@ -56,27 +154,35 @@ public class Parser {
 
 				lexer.backToken();
 				Node fun = new Node(token, position, token.text);
-				fun.right = parseBinary(lexer, 0);
+				limits.enter(token, lexer);
+				fun.right = parseBinary(lexer, 0, limits);
+				limits.leave();
 				if (lexer.nextToken() != Lexer.Token.RParen) {
-					throw new Error("Right parenthesis expected, got", token, lexer);
+					throw new Error(Error.Code.SYNTAX, "Right parenthesis expected, got", token, lexer);
 				}
 				return fun;
 
 			case Idx:
+				limits.node(token, lexer);
 				Node idx = new Node(token, lexer.getPosition(), token.text);
-				idx.right = parseBinary(lexer, 0);
+				limits.enter(token, lexer);
+				idx.right = parseBinary(lexer, 0, limits);
+				limits.leave();
 				if (lexer.nextToken() != Lexer.Token.RBracket) {
-					throw new Error("Right bracket expected, got", token, lexer);
+					throw new Error(Error.Code.SYNTAX, "Right bracket expected, got", token, lexer);
 				}
 				return idx;
 		}
 
 		if (token.getUnary() == null) {
-			throw new Error("Unary operator expected", token, lexer);
+			throw new Error(Error.Code.SYNTAX, "Unary operator expected", token, lexer);
 		}
 
+		limits.node(token, lexer);
 		Node node = new Node(token.getUnary(), lexer.getPosition(), token.text);
-		node.right = parseUnary(lexer);
+		limits.enter(token, lexer);
+		node.right = parseUnary(lexer, limits);
+		limits.leave();
 		return node;
 	}
 
@@ -89,11 +195,12 @@ public class Parser {
 	 * @param lexer The lexer instance that tokenizes the input stream for parsing.
 	 * @param minPrecedence The minimum operator precedence allowed for this parsing.
 	 *                       Operators with precedence below this value will not be parsed.
+	 * @param limits The limits of the size of the tree.
 	 * @return A node representing the parsed binary expression or structure in the abstract syntax tree.
 	 * @throws Error If the syntax of the input fails to match the expected binary expression.
 	 */
-	private static Node parseBinary(Lexer lexer, int minPrecedence) throws Error {
-		Node root = parseUnary(lexer);
+	private static Node parseBinary(Lexer lexer, int minPrecedence, Limits limits) throws Error {
+		Node root = parseUnary(lexer, limits);
 		while (lexer.hasNext()) {
 			Lexer.Token token = lexer.nextToken();
 			switch (token) {
@@ -107,19 +214,19 @@ public class Parser {
 				case Fun:
 				case Idx:
 					lexer.backToken();
-					Node node = parseUnary(lexer);
+					Node node = parseUnary(lexer, limits);
 					node.left = root;
 					root = node;
 					continue;
 			}
 
 			if (!token.isBinaryOperator()) {
-				throw new Error("Binary operator expected, got", token, lexer);
+				throw new Error(Error.Code.SYNTAX, "Binary operator expected, got", token, lexer);
 			}
 
 			if (token.precedence >= root.token.precedence && root.token.isUnaryOperator()) {
 				if (token.precedence > root.token.precedence || token.right2left) {
-					throw new Error("Precedence error, consider using parenthesis around", token, lexer);
+					throw new Error(Error.Code.SYNTAX, "Precedence error, consider using parenthesis around", token, lexer);
 				}
 			}
 
@@ -134,8 +241,11 @@ public class Parser {
 				}
 			}
 
+			limits.node(token, lexer);
 			Node node = new Node(token, lexer.getPosition(), token.text);
-			node.right = parseBinary(lexer, token.precedence);
+			limits.enter(token, lexer);
+			node.right = parseBinary(lexer, token.precedence, limits);
+			limits.leave();
 			node.left = root;
 			root = node;
 		}
@@ -143,6 +253,408 @@ public class Parser {
 		return root;
 	}
 
+	/**
+	 * Checks the syntax of unary expressions, following the rules of {@link #parseUnary}.
+	 *
+	 * @param analysis The state of the analysis, updated with the depth of the subexpression.
+	 * @return The token of the root of the subexpression.
+	 * @throws Error If the syntax of the input fails to match the expected unary expression.
+	 */
+	private static Lexer.Token analyzeUnary(Analysis analysis) throws Error {
+		Lexer lexer = analysis.lexer;
+		Limits limits = analysis.limits;
+		Lexer.Token token = analysis.next();
+		switch (token) {
+			case Value:
+				limits.node(token, lexer);
+				analysis.start = lexer.getPosition();
+				analysis.end = lexer.getEnd();
+				analysis.depth = 1;
+				return token;
+
+			case Fun:
+				limits.node(token, lexer);
+				Lexer.Token next = analysis.next();
+				if (next == Lexer.Token.RParen) {
+					// allow empty list arguments: '(' ')'
+					analysis.arity = 0;
+					analysis.depth = 1;
+					return token;
+				}
+
+				analysis.back(next);
+				int commas = analysis.commas;
+				analysis.commas = 0;
+				limits.enter(token, lexer);
+				analyzeBinary(analysis, 0);
+				limits.leave();
+				if (analysis.next() != Lexer.Token.RParen) {
+					throw analysis.error(Error.Code.SYNTAX, "Right parenthesis expected, got", token);
+				}
+				analysis.arity = analysis.commas + 1;
+				analysis.commas = commas;
+				analysis.depth(1 + analysis.depth, token);
+				return token;
+
+			case Idx:
+				limits.node(token, lexer);
+				commas = analysis.commas;
+				limits.enter(token, lexer);
+				analyzeBinary(analysis, 0);
+				limits.leave();
+				if (analysis.next() != Lexer.Token.RBracket) {
+					throw analysis.error(Error.Code.SYNTAX, "Right bracket expected, got", token);
+				}
+				analysis.commas = commas;
+				analysis.depth(1 + analysis.depth, token);
+				return token;
+		}
+
+		if (token.getUnary() == null) {
+			throw analysis.error(Error.Code.SYNTAX, "Unary operator expected", token);
+		}
+
+		limits.node(token, lexer);
+		limits.enter(token, lexer);
+		if (analyzeUnary(analysis) == Lexer.Token.Value) {
+			analysis.value(analysis.start, analysis.end);
+		}
+		limits.leave();
+		analysis.depth(1 + analysis.depth, token);
+		return token.getUnary();
+	}
+
+	/**
+	 * Checks the syntax of binary expressions, following the rules of {@link #parseBinary}.
+	 *
+	 * @param analysis The state of the analysis, updated with the depth of the subexpression.
+	 * @param minPrecedence The minimum operator precedence allowed for this parsing.
+	 * @return The token of the root of the subexpression.
+	 * @throws Error If the syntax of the input fails to match the expected binary expression.
+	 */
+	private static Lexer.Token analyzeBinary(Analysis analysis, int minPrecedence) throws Error {
+		Lexer lexer = analysis.lexer;
+		Limits limits = analysis.limits;
+		Lexer.Token root = analyzeUnary(analysis);
+		int depth = analysis.depth;
+
+		// a value is the name of a function or of an array if it is followed by arguments or by a subscript
+		boolean value = root == Lexer.Token.Value;
+		int start = analysis.start;
+		int end = analysis.end;
+		while (analysis.hasNext()) {
+			Lexer.Token token = analysis.next();
+			if (value && token != Lexer.Token.Fun && token != Lexer.Token.Idx) {
+				analysis.value(start, end);
+				value = false;
+			}
+			switch (token) {
+				case RParen:
+				case RBracket:
+				case Undefined:
+					// stop parsing
+					analysis.back(token);
+					analysis.depth = depth;
+					return root;
+
+				case Fun:
+				case Idx:
+					analysis.back(token);
+					analyzeUnary(analysis);
+					if (value && token == Lexer.Token.Fun) {
+						analysis.function(start, end, analysis.arity);
+					} else if (value) {
+						analysis.array(start, end);
+					}
+					value = false;
+					analysis.depth(Math.max(depth + 1, analysis.depth), token);
+					depth = analysis.depth;
+					root = token;
+					continue;
+			}
+
+			if (!token.isBinaryOperator()) {
+				throw analysis.error(Error.Code.SYNTAX, "Binary operator expected, got", token);
+			}
+
+			if (token.precedence >= root.precedence && root.isUnaryOperator()) {
+				if (token.precedence > root.precedence || token.right2left) {
+					throw analysis.error(Error.Code.SYNTAX, "Precedence error, consider using parenthesis around", token);
+				}
+			}
+
+			if (token.precedence <= minPrecedence) {
+				if (token.precedence < minPrecedence) {
+					analysis.back(token);
+					break;
+				}
+				if (!token.right2left) {
+					analysis.back(token);
+					break;
+				}
+			}
+
+			limits.node(token, lexer);
+			if (token == Lexer.Token.Coma) {
+				analysis.commas += 1;
+			}
+			limits.enter(token, lexer);
+			analyzeBinary(analysis, token.precedence);
+			limits.leave();
+			analysis.depth(1 + Math.max(depth, analysis.depth), token);
+			depth = analysis.depth;
+			root = token;
+		}
+
+		if (value) {
+			analysis.value(start, end);
+		}
+		analysis.depth = depth;
+		return root;
+	}
+
+	/**
+	 * Counts the nodes and the nesting of the parser, rejecting trees exceeding the limits.
+	 */
+	private static final class Limits {
+		private final int maxNodes;
+		private final int maxDepth;
+		private final int maxNesting;
+		private final boolean stackTrace;
+		private int nodes = 0;
+		private int nesting = 0;
+
+		Limits(int maxNodes, int maxDepth) {
+			this(maxNodes, maxDepth, true);
+		}
+
+		Limits(int maxNodes, int maxDepth, boolean stackTrace) {
+			this.maxNodes = maxNodes;
+			this.maxDepth = maxDepth;
+			this.stackTrace = stackTrace;
+			// each level of the tree is parsed by at most two nested calls of the parser
+			this.maxNesting = (int) Math.min(Integer.MAX_VALUE, 2L * maxDepth + 2);
+		}
+
+		void reset() {
+			nodes = 0;
+			nesting = 0;
+		}
+
+		void node(Lexer.Token token, Lexer lexer) throws Error {
+			nodes += 1;
+			if (nodes > maxNodes) {
+				throw new Error(Error.Code.LIMIT, "Expression too large, at most " + maxNodes + " nodes allowed", token, lexer, stackTrace);
+			}
+		}
+
+		void enter(Lexer.Token token, Lexer lexer) throws Error {
+			nesting += 1;
+			if (nesting > maxNesting) {
+				throw new Error(Error.Code.LIMIT, "Expression too deep, at most " + maxDepth + " levels allowed", token, lexer, stackTrace);
+			}
+		}
+
+		void leave() {
+			nesting -= 1;
+		}
+	}
+
+	/**
+	 * The result of a syntax check: the validity of the expression, and the symbols it references.
+	 * Values starting with a digit or a dot are literals, other values are variables,
+	 * or names of functions and arrays if followed by arguments or by a subscript.
+	 * The symbols are recorded as spans of the input, the names are extracted only when requested,
+	 * in the order of their first reference.
+	 * <p>
+	 * An analysis can be reused to check many expressions, keeping its lexer and buffers, ex: one for each thread.
+	 * The results are replaced by each check, and an analysis must not be used by many threads at once.
+	 */
+	public static final class Analysis {
+		// kinds of the recorded symbols
+		private static final int VARIABLE = 0;
+		private static final int ARRAY = 1;
+		private static final int FUNCTION = 2;
+
+		private final Lexer lexer = new Lexer("");
+		private final Limits limits;
+		private Error error;
+
+		// kind, start, end and arity of each referenced symbol
+		private int[] symbols;
+		private int size;
+
+		// state of the analysis: span of the last value, depth of the last subexpression,
+		// arguments of the last call, and separators of the arguments of the enclosing call
+		private int start;
+		private int end;
+		private int depth;
+		private int arity;
+		private int commas;
+
+		// the token put back, to be read again, or null
+		private Lexer.Token next;
+
+		/**
+		 * Constructs a reusable analysis, see {@link #analyze(String)}.
+		 */
+		public Analysis() {
+			this(Integer.MAX_VALUE, Integer.MAX_VALUE);
+		}
+
+		/**
+		 * Constructs a reusable analysis, rejecting expressions exceeding the given size.
+		 *
+		 * @param maxNodes The maximum number of nodes of the tree.
+		 * @param maxDepth The maximum depth of the tree, the root has depth 1.
+		 */
+		public Analysis(int maxNodes, int maxDepth) {
+			this.limits = new Limits(maxNodes, maxDepth, false);
+		}
+
+		/**
+		 * Check the syntax of the expression, replacing the results of the previous check.
+		 * The buffers of the analysis are kept, so checking many expressions allocates only their errors.
+		 *
+		 * @param expression The input expression in string format to be checked.
+		 * @return This analysis, with the validity of the expression and the symbols it references.
+		 */
+		public Analysis analyze(String expression) {
+			lexer.reset(expression);
+			limits.reset();
+			error = null;
+			size = 0;
+			commas = 0;
+			next = null;
+			try {
+				analyzeBinary(this, 0);
+				if (hasNext()) {
+					throw error(Error.Code.SYNTAX, "End of input expected, got", next());
+				}
+			} catch (Error e) {
+				error = e;
+			}
+			return this;
+		}
+
+		/**
+		 * Check if the expression is valid, and can be parsed.
+		 */
+		public boolean isValid() {
+			return error == null;
+		}
+
+		/**
+		 * Get the syntax error of the expression, or null if the expression is valid.
+		 */
+		public Error getError() {
+			return error;
+		}
+
+		/**
+		 * Get the names of the variables, referenced before the error if the expression is invalid.
+		 */
+		public Set<String> getVariables() {
+			return names(VARIABLE);
+		}
+
+		/**
+		 * Get the names of the arrays, referenced before the error if the expression is invalid.
+		 */
+		public Set<String> getArrays() {
+			return names(ARRAY);
+		}
+
+		/**
+		 * Get the names of the called functions, with the number of arguments of their calls,
+		 * referenced before the error if the expression is invalid.
+		 */
+		public Map<String, Set<Integer>> getFunctions() {
+			Map<String, Set<Integer>> result = new LinkedHashMap<>();
+			for (int i = 0; i < size; i += 4) {
+				if (symbols[i] == FUNCTION) {
+					String name = lexer.getInput().substring(symbols[i + 1], symbols[i + 2]);
+					result.computeIfAbsent(name, key -> new LinkedHashSet<>()).add(symbols[i + 3]);
+				}
+			}
+			return result;
+		}
+
+		private Set<String> names(int kind) {
+			Set<String> result = new LinkedHashSet<>();
+			for (int i = 0; i < size; i += 4) {
+				if (symbols[i] == kind) {
+					result.add(lexer.getInput().substring(symbols[i + 1], symbols[i + 2]));
+				}
+			}
+			return result;
+		}
+
+		private void record(int kind, int start, int end, int arity) {
+			char chr = lexer.getInput().charAt(start);
+			if ((chr >= '0' && chr <= '9') || chr == '.') {
+				// literal
+				return;
+			}
+			if (symbols == null) {
+				symbols = new int[4 * 16];
+			} else if (size == symbols.length) {
+				symbols = Arrays.copyOf(symbols, 2 * size);
+			}
+			symbols[size] = kind;
+			symbols[size + 1] = start;
+			symbols[size + 2] = end;
+			symbols[size + 3] = arity;
+			size += 4;
+		}
+
+		private void value(int start, int end) {
+			record(VARIABLE, start, end, 0);
+		}
+
+		private void array(int start, int end) {
+			record(ARRAY, start, end, 0);
+		}
+
+		private void function(int start, int end, int arity) {
+			record(FUNCTION, start, end, arity);
+		}
+
+		private void depth(int depth, Lexer.Token token) throws Error {
+			if (depth > limits.maxDepth) {
+				throw error(Error.Code.LIMIT, "Expression too deep, at most " + limits.maxDepth + " levels allowed", token);
+			}
+			this.depth = depth;
+		}
+
+		// read the next token, or the one put back, without scanning it again
+		private Lexer.Token next() {
+			Lexer.Token token = next;
+			if (token == null) {
+				return lexer.nextToken();
+			}
+			next = null;
+			return token;
+		}
+
+		// put back the token read last, the lexer stays positioned on it for the errors
+		private void back(Lexer.Token token) {
+			next = token;
+		}
+
+		private boolean hasNext() {
+			if (next == null) {
+				return lexer.hasNext();
+			}
+			return lexer.getPosition() < lexer.getInput().length();
+		}
+
+		// errors are reported as results, so they are created without stack traces
+		private Error error(Error.Code code, String reason, Lexer.Token token) {
+			return new Error(code, reason, token, lexer, false);
+		}
+	}
+
 	/**
 	 * Represents a node in the abstract syntax tree.
 	 * Each node contains details about its token (kind, text, position), and links to its left and right child nodes.
@@ -0,0 +1,254 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The Raster class holds the samples of a grayscale or color image, and writes them as netpbm files.
+ * Binary formats (P5, P6) are written directly from the sample buffer through a {@code FileChannel},
+ * or the samples can be stored directly into a memory-mapped file using {@link #map}.
+ * Ascii formats (P2, P3) are still available, they are encoded into a reusable byte buffer without creating strings.
+ * @see <a href="https://netpbm.sourceforge.net/doc/pgm.html">Format</a>
+ */
+public class Raster implements AutoCloseable {
+	// size of the buffer used to encode ascii images.
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// largest buffer of samples, some virtual machines reserve a few words of the largest arrays.
+	private static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+	/**
+	 * Width of the image in pixels.
+	 */
+	public final int width;
+
+	/**
+	 * Height of the image in pixels.
+	 */
+	public final int height;
+
+	/**
+	 * Number of samples per pixel: 1 for grayscale and 3 for rgb images.
+	 */
+	public final int channels;
+
+	/**
+	 * Maximum value of a sample: up to 255 uses one byte, up to 65535 uses two bytes per sample.
+	 */
+	public final int maxValue;
+
+	// samples of the image, in big-endian order as required by the binary formats.
+	private final ByteBuffer samples;
+
+	// channel of the memory-mapped file, or null if the samples are on the heap.
+	private final FileChannel mapped;
+
+	/**
+	 * Constructs a new raster with samples allocated on the heap.
+	 *
+	 * @param width the width of the image.
+	 * @param height the height of the image.
+	 * @param channels number of samples per pixel: 1 or 3.
+	 * @param maxValue maximum value of a sample: between 1 and 65535.
+	 */
+	public Raster(int width, int height, int channels, int maxValue) {
+		this(width, height, channels, maxValue, null, null);
+	}
+
+	private Raster(int width, int height, int channels, int maxValue, ByteBuffer samples, FileChannel mapped) {
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("Invalid size: " + width + "x" + height);
+		}
+		if (channels != 1 && channels != 3) {
+			throw new IllegalArgumentException("Invalid number of channels: " + channels);
+		}
+		if (maxValue < 1 || maxValue > 65535) {
+			throw new IllegalArgumentException("Invalid maximum value: " + maxValue);
+		}
+		this.width = width;
+		this.height = height;
+		this.channels = channels;
+		this.maxValue = maxValue;
+		if (samples == null) {
+			samples = ByteBuffer.allocate(size(width, height, channels, maxValue));
+		}
+		this.samples = samples.order(ByteOrder.BIG_ENDIAN);
+		this.mapped = mapped;
+	}
+
+	/**
+	 * Creates a binary image file and maps its samples into memory,
+	 * every sample set is stored directly into the file, no write is needed.
+	 *
+	 * @param path the file to be created or overwritten.
+	 * @param width the width of the image.
+	 * @param height the height of the image.
+	 * @param channels number of samples per pixel: 1 or 3.
+	 * @param maxValue maximum value of a sample: between 1 and 65535.
+	 * @return the raster backed by the file, which should be closed to release the file.
+	 * @throws IOException if the file can not be created or mapped.
+	 */
+	public static Raster map(Path path, int width, int height, int channels, int maxValue) throws IOException {
+		byte[] header = header(channels == 1 ? "P5" : "P6", width, height, maxValue);
+		long size = header.length + (long) size(width, height, channels, maxValue);
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			channel.write(ByteBuffer.wrap(header), 0);
+			ByteBuffer samples = channel.map(FileChannel.MapMode.READ_WRITE, header.length, size - header.length);
+			return new Raster(width, height, channels, maxValue, samples, channel);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	// size of the samples in bytes, rejecting images which can not be indexed by a buffer.
+	private static int size(int width, int height, int channels, int maxValue) {
+		long size = (long) width * height * channels * bytesPerSample(maxValue);
+		if (size > MAX_SIZE) {
+			throw new IllegalArgumentException("Image too large: " + width + "x" + height + "x" + channels
+					+ " samples need " + size + " bytes, at most " + MAX_SIZE + " allowed");
+		}
+		return (int) size;
+	}
+
+	/**
+	 * Set the value of a sample, values outside the range are clamped to 0 and {@code maxValue}.
+	 *
+	 * @param x the column of the pixel.
+	 * @param y the row of the pixel.
+	 * @param channel the channel of the pixel: 0 for grayscale, 0, 1 or 2 for rgb.
+	 * @param value the value of the sample.
+	 */
+	public void set(int x, int y, int channel, int value) {
+		if (value < 0) {
+			value = 0;
+		} else if (value > maxValue) {
+			value = maxValue;
+		}
+		int index = (y * width + x) * channels + channel;
+		if (maxValue < 256) {
+			samples.put(index, (byte) value);
+		} else {
+			samples.putShort(2 * index, (short) value);
+		}
+	}
+
+	/**
+	 * Get the value of a sample.
+	 *
+	 * @param x the column of the pixel.
+	 * @param y the row of the pixel.
+	 * @param channel the channel of the pixel: 0 for grayscale, 0, 1 or 2 for rgb.
+	 * @return the value of the sample.
+	 */
+	public int get(int x, int y, int channel) {
+		int index = (y * width + x) * channels + channel;
+		if (maxValue < 256) {
+			return samples.get(index) & 0xff;
+		}
+		return samples.getShort(2 * index) & 0xffff;
+	}
+
+	/**
+	 * Write the image in binary format: P5 for grayscale, P6 for rgb images.
+	 *
+	 * @param path the file to be created or overwritten.
+	 * @throws IOException if the file can not be written.
+	 */
+	public void writeBinary(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			channel.write(ByteBuffer.wrap(header(channels == 1 ? "P5" : "P6", width, height, maxValue)));
+			ByteBuffer buffer = samples.duplicate();
+			buffer.clear();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Write the image in ascii format: P2 for grayscale, P3 for rgb images.
+	 * Each row of the image is written on a separate line.
+	 *
+	 * @param path the file to be created or overwritten.
+	 * @throws IOException if the file can not be written.
+	 */
+	public void writeAscii(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			buffer.put(header(channels == 1 ? "P2" : "P3", width, height, maxValue));
+
+			// the longest sample is 5 digits followed by a separator
+			final int reserve = 6;
+			for (int y = 0; y < height; y += 1) {
+				for (int x = 0; x < width; x += 1) {
+					for (int c = 0; c < channels; c += 1) {
+						if (buffer.remaining() < reserve) {
+							flush(channel, buffer);
+						}
+						if (x > 0 || c > 0) {
+							buffer.put((byte) ' ');
+						}
+						putDigits(buffer, get(x, y, c));
+					}
+				}
+				if (!buffer.hasRemaining()) {
+					flush(channel, buffer);
+				}
+				buffer.put((byte) '\n');
+			}
+			flush(channel, buffer);
+		}
+	}
+
+	/**
+	 * Flush the samples to the memory-mapped file, and release the file.
+	 * Has no effect on rasters allocated on the heap.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (mapped == null) {
+			return;
+		}
+		mapped.force(false);
+		mapped.close();
+	}
+
+	// Encodes the decimal digits of a non-negative value directly into the buffer.
+	private static void putDigits(ByteBuffer buffer, int value) {
+		int digits = 1;
+		for (int i = value; i >= 10; i /= 10) {
+			digits += 1;
+		}
+		int end = buffer.position() + digits;
+		for (int i = end - 1; i >= buffer.position(); i -= 1) {
+			buffer.put(i, (byte) ('0' + value % 10));
+			value /= 10;
+		}
+		buffer.position(end);
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private static byte[] header(String magic, int width, int height, int maxValue) {
+		String header = magic + "\n" + width + " " + height + "\n" + maxValue + "\n";
+		return header.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static int bytesPerSample(int maxValue) {
+		return maxValue < 256 ? 1 : 2;
+	}
+}
@@ -0,0 +1,232 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * The ReactiveEvaluator class evaluates a set of named expressions (cells) over a set of variables,
+ * and keeps their values up to date while the variables change, like a spreadsheet.
+ * The value of every node of the cells is cached, changing a variable invalidates only the nodes
+ * which depend on it, and only the cells containing invalidated nodes are recomputed.
+ * Cells can reference variables and previously defined cells, so the order of definition
+ * is also a topological order, in which the changes are propagated.
+ * Functions and arrays are expected to be pure, their values are cached as any other node.
+ */
+public abstract class ReactiveEvaluator extends Evaluator {
+	private final Map<String, Source> sources = new HashMap<>();
+	private final PriorityQueue<Cell> pending = new PriorityQueue<>((a, b) -> Integer.compare(a.rank, b.rank));
+	private int cells = 0;
+
+	/**
+	 * Declare a variable with its initial value.
+	 *
+	 * @param name  the name of the variable.
+	 * @param value initial value of the variable.
+	 * @throws Error if the name is already used by a variable or a cell.
+	 */
+	public void declare(String name, double value) throws Error {
+		if (sources.containsKey(name)) {
+			throw new Error("Already defined: " + name);
+		}
+		Source variable = new Source();
+		variable.value = value;
+		sources.put(name, variable);
+	}
+
+	/**
+	 * Define a cell, and compute its initial value.
+	 *
+	 * @param name       the name of the cell.
+	 * @param expression root of the syntax tree of the cell.
+	 * @throws Error if the name is already used or the evaluation of the expression fails.
+	 */
+	public void define(String name, Parser.Node expression) throws Error {
+		if (sources.containsKey(name)) {
+			throw new Error("Already defined: " + name);
+		}
+		List<Node> readers = new ArrayList<>();
+		Node root = copy(expression, null, readers);
+		Cell cell = new Cell(cells, root);
+		root.cell = cell;
+		cell.value = evaluate(root);
+
+		// subscribe to the changes only after the cell was successfully evaluated
+		for (Node reader : readers) {
+			reader.source.readers.add(reader);
+		}
+		sources.put(name, cell);
+		cells += 1;
+	}
+
+	/**
+	 * Change the value of a variable, invalidating the nodes which depend on it.
+	 * The dependent cells are recomputed on the next {@link #update} or {@link #get} call.
+	 *
+	 * @param name  the name of the variable.
+	 * @param value new value of the variable.
+	 * @throws Error if the variable was not declared.
+	 */
+	public void set(String name, double value) throws Error {
+		Source variable = sources.get(name);
+		if (variable == null || variable instanceof Cell) {
+			throw new Error("Invalid variable: " + name);
+		}
+		if (Double.compare(variable.value, value) == 0) {
+			return;
+		}
+		variable.value = value;
+		invalidate(variable);
+	}
+
+	/**
+	 * Get the value of a variable or a cell, recomputing the pending cells if needed.
+	 *
+	 * @param name the name of the variable or cell.
+	 * @return value of the variable or cell.
+	 * @throws Error if there is no such variable or cell, or the recomputation fails.
+	 */
+	public double get(String name) throws Error {
+		Source source = sources.get(name);
+		if (source == null) {
+			throw new Error("Invalid variable: " + name);
+		}
+		update();
+		return source.value;
+	}
+
+	/**
+	 * Recompute the cells affected by the changes, in the order of their definition.
+	 * Only the invalidated nodes of each cell are evaluated again,
+	 * and cells depending on a cell are affected only if its value changes.
+	 *
+	 * @return the number of cells recomputed.
+	 * @throws Error if the evaluation of a cell fails, the cell remains pending.
+	 */
+	public int update() throws Error {
+		int count = 0;
+		while (!pending.isEmpty()) {
+			Cell cell = pending.peek();
+			double value = evaluate(cell.root);
+			pending.poll();
+			cell.queued = false;
+			count += 1;
+			if (Double.compare(cell.value, value) != 0) {
+				cell.value = value;
+				invalidate(cell);
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public double evaluate(Parser.Node node) throws Error {
+		if (!(node instanceof Node)) {
+			// not part of a cell
+			return super.evaluate(node);
+		}
+		Node cached = (Node) node;
+		if (cached.valid) {
+			return cached.value;
+		}
+		if (cached.source != null) {
+			cached.value = cached.source.value;
+		} else {
+			cached.value = super.evaluate(node);
+		}
+		cached.valid = true;
+		return cached.value;
+	}
+
+	// invalidate the readers of the source and all their ancestors, queueing the affected cells.
+	private void invalidate(Source source) {
+		for (Node reader : source.readers) {
+			for (Node node = reader; node != null; node = node.parent) {
+				if (!node.valid && node.token != Lexer.Token.Coma && node.token != Lexer.Token.Sel) {
+					// stop at the first invalid node: either its ancestors are also invalid,
+					// or it was not used by the last evaluation of its parent (short-circuit).
+					// arguments of functions and branches of the conditional operator
+					// are evaluated by their parent, so they may be invalid while their parent is not
+					break;
+				}
+				node.valid = false;
+				if (node.cell != null && !node.cell.queued) {
+					node.cell.queued = true;
+					pending.add(node.cell);
+				}
+			}
+		}
+	}
+
+	// copy the syntax tree, linking the variables and cells referenced by the value nodes.
+	private Node copy(Parser.Node node, Node parent, List<Node> readers) {
+		if (node == null) {
+			return null;
+		}
+		Node result = new Node(node, parent);
+		switch (node.token) {
+			case Value:
+				result.source = sources.get(node.getText());
+				if (result.source != null) {
+					readers.add(result);
+				}
+				return result;
+
+			case Fun:
+			case Idx:
+				if (node.left != null && node.left.token == Lexer.Token.Value) {
+					// function and array names are not values
+					result.left = new Node(node.left, result);
+					result.right = copy(node.right, result, readers);
+					return result;
+				}
+				break;
+		}
+		result.left = copy(node.left, result, readers);
+		result.right = copy(node.right, result, readers);
+		return result;
+	}
+
+	/**
+	 * A variable, or the base of a cell, which can be referenced by name from the cells.
+	 */
+	private static class Source {
+		final List<Node> readers = new ArrayList<>();
+		double value;
+	}
+
+	/**
+	 * A named expression which is recomputed when its dependencies change.
+	 */
+	private static class Cell extends Source {
+		final int rank;
+		final Node root;
+		boolean queued = false;
+
+		Cell(int rank, Node root) {
+			this.rank = rank;
+			this.root = root;
+		}
+	}
+
+	/**
+	 * Node of a cell, caching its last evaluated value.
+	 */
+	private static class Node extends Parser.Node {
+		final Node parent;
+
+		// the variable or cell referenced by a value node
+		Source source = null;
+
+		// the cell of the root node
+		Cell cell = null;
+
+		boolean valid = false;
+		double value;
+
+		Node(Parser.Node node, Node parent) {
+			super(node.token, node.getPosition(), node.getText());
+			this.parent = parent;
+		}
+	}
+}
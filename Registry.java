@@ -0,0 +1,255 @@
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * The Registry class holds named compiled expressions, which can be replaced while they are evaluated.
+ * The expressions are published as immutable versions: readers never block, they either read the
+ * current version, or retain it for the duration of their evaluations.
+ * Writers prepare a {@link Batch} of changes, which is published atomically as a new version
+ * (copy-on-write), so readers see either all the changes of a batch, or none of them.
+ * A replaced version is released, notifying the listener, once all its readers are done.
+ * The readers are counted on striped cells ({@code LongAdder}), so acquiring and closing versions
+ * from many cores does not contend on a single memory location.
+ */
+public final class Registry {
+	private final Consumer<Version> onRelease;
+	private volatile Version current;
+
+	/**
+	 * Constructs an empty registry.
+	 */
+	public Registry() {
+		this(version -> { });
+	}
+
+	/**
+	 * Constructs an empty registry.
+	 *
+	 * @param onRelease invoked with each replaced version, after its last reader released it.
+	 */
+	public Registry(Consumer<Version> onRelease) {
+		this.onRelease = onRelease;
+		this.current = new Version(new State(this, 0, Collections.emptyMap()));
+	}
+
+	/**
+	 * Get an expression from the current version, without retaining the version.
+	 *
+	 * @param name the name of the expression.
+	 * @return the expression, or null if there is no expression with the given name.
+	 */
+	public Expression get(String name) {
+		return current.state.expressions.get(name);
+	}
+
+	/**
+	 * Get the number of the current version.
+	 */
+	public long version() {
+		return current.state.number;
+	}
+
+	/**
+	 * Retain the current version, which must be closed after the evaluations are done.
+	 * All expressions read from a retained version belong to the same batch of changes.
+	 *
+	 * @return the current version.
+	 */
+	public Version acquire() {
+		for (;;) {
+			Version version = current;
+			State state = version.state;
+			state.acquired.increment();
+			if (current == version) {
+				return new Version(state);
+			}
+			// the version was replaced meanwhile, the current one is newer
+			state.release();
+		}
+	}
+
+	/**
+	 * Start a new batch of changes.
+	 */
+	public Batch batch() {
+		return new Batch(this);
+	}
+
+	// publish the changes of the batch as a new version.
+	private synchronized Version publish(Map<String, Expression> changes) {
+		Version previous = current;
+		Map<String, Expression> expressions = new HashMap<>(previous.state.expressions);
+		for (Map.Entry<String, Expression> entry : changes.entrySet()) {
+			if (entry.getValue() == null) {
+				expressions.remove(entry.getKey());
+			} else {
+				expressions.put(entry.getKey(), entry.getValue());
+			}
+		}
+		Version version = new Version(new State(this, previous.state.number + 1, Collections.unmodifiableMap(expressions)));
+		current = version;
+
+		// drop the reference held by the registry
+		previous.state.replaced = true;
+		previous.close();
+		return version;
+	}
+
+	/**
+	 * An immutable set of named expressions, as seen by one reader.
+	 * Each call of {@link Registry#acquire()} returns a new handle, which is used by a single thread,
+	 * and releases its reference only once, even if it is closed multiple times.
+	 */
+	public static final class Version implements AutoCloseable {
+		private final State state;
+		private boolean closed;
+
+		private Version(State state) {
+			this.state = state;
+		}
+
+		/**
+		 * Get the number of the version, incremented by each published batch.
+		 */
+		public long getNumber() {
+			return state.number;
+		}
+
+		/**
+		 * Get an expression of this version.
+		 *
+		 * @param name the name of the expression.
+		 * @return the expression, or null if there is no expression with the given name.
+		 */
+		public Expression get(String name) {
+			return state.expressions.get(name);
+		}
+
+		/**
+		 * Get the names of the expressions of this version.
+		 */
+		public Set<String> names() {
+			return state.expressions.keySet();
+		}
+
+		/**
+		 * Release the version, the last release notifies the listener of the registry.
+		 */
+		@Override
+		public void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			state.release();
+		}
+
+		@Override
+		public String toString() {
+			return "Version(" + state.number + "): " + state.expressions.keySet();
+		}
+	}
+
+	/**
+	 * The expressions of a version shared by all its handles, with the count of their references.
+	 * A version is released when it was replaced, and every acquire was matched by a release.
+	 */
+	private static final class State {
+		private final Registry registry;
+		private final long number;
+		private final Map<String, Expression> expressions;
+
+		// the registry holds a reference while the version is current.
+		private final LongAdder acquired = new LongAdder();
+		private final LongAdder released = new LongAdder();
+		private final AtomicBoolean notified = new AtomicBoolean();
+		private volatile boolean replaced;
+
+		private State(Registry registry, long number, Map<String, Expression> expressions) {
+			this.registry = registry;
+			this.number = number;
+			this.expressions = expressions;
+			this.acquired.increment();
+		}
+
+		private void release() {
+			released.increment();
+			if (!replaced) {
+				return;
+			}
+
+			// both counters only grow: reading the releases first, equal sums mean there were no references left.
+			long releases = released.sum();
+			if (releases == acquired.sum() && notified.compareAndSet(false, true)) {
+				registry.onRelease.accept(new Version(this));
+			}
+		}
+	}
+
+	/**
+	 * Changes to be published together, a batch is used by a single thread.
+	 */
+	public static final class Batch {
+		private final Registry registry;
+		private final Map<String, Expression> changes = new LinkedHashMap<>();
+		private boolean committed;
+
+		private Batch(Registry registry) {
+			this.registry = registry;
+		}
+
+		/**
+		 * Add or replace an expression.
+		 *
+		 * @param name       the name of the expression.
+		 * @param expression the compiled expression.
+		 * @return this batch.
+		 * @throws IllegalStateException if the batch was already committed.
+		 */
+		public Batch put(String name, Expression expression) {
+			if (expression == null) {
+				throw new IllegalArgumentException("Expression cannot be null");
+			}
+			checkOpen();
+			changes.put(name, expression);
+			return this;
+		}
+
+		/**
+		 * Remove an expression.
+		 *
+		 * @param name the name of the expression.
+		 * @return this batch.
+		 * @throws IllegalStateException if the batch was already committed.
+		 */
+		public Batch remove(String name) {
+			checkOpen();
+			changes.put(name, null);
+			return this;
+		}
+
+		/**
+		 * Publish all the changes of the batch as a new version, a batch can be committed only once.
+		 *
+		 * @return the number of the published version.
+		 * @throws IllegalStateException if the batch was already committed.
+		 */
+		public long commit() {
+			checkOpen();
+			committed = true;
+			return registry.publish(changes).state.number;
+		}
+
+		private void checkOpen() {
+			if (committed) {
+				throw new IllegalStateException("Batch already committed");
+			}
+		}
+	}
+}
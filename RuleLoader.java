@@ -0,0 +1,248 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The RuleLoader class loads named expressions (rules) from a file, one rule per line:
+ * <pre>
+ * # comment
+ * name: expression
+ * </pre>
+ * The file is memory-mapped and split into records by recording their offsets, without copying.
+ * Rules are parsed and compiled in parallel on a fork-join pool, or lazily, on their first use.
+ * Errors are reported with the name of the file and the line of the rule.
+ */
+public final class RuleLoader {
+	// records of small files are compiled on the calling thread.
+	private static final int SEQUENTIAL_THRESHOLD = 256;
+
+	private RuleLoader() {
+	}
+
+	/**
+	 * Load the rules of the file.
+	 *
+	 * @param path    the file to load, must be smaller than 2GB.
+	 * @param library resolves the constants and functions used by the rules.
+	 * @param lazy    defer parsing and compiling each rule until it is first used.
+	 * @return the rules of the file by name, in the order of the file.
+	 * @throws IOException if the file can not be read.
+	 * @throws Error if a name is defined multiple times, or, if not lazy, an expression is invalid.
+	 */
+	public static Map<String, Rule> load(Path path, Expression.Library library, boolean lazy) throws IOException, Error {
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("File too large: " + path);
+			}
+			// the mapping remains valid after the channel is closed
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		String file = path.toString();
+
+		// split the file into records: name start, separator, end and line number
+		int[] records = new int[4 * 64];
+		int count = 0;
+		int line = 0;
+		for (int start = 0; start < buffer.limit(); ) {
+			int end = start;
+			int separator = -1;
+			while (end < buffer.limit() && buffer.get(end) != '\n') {
+				if (separator < 0 && buffer.get(end) == ':') {
+					separator = end;
+				}
+				end += 1;
+			}
+			line += 1;
+
+			int first = skipSpaces(buffer, start, end);
+			if (first < end && buffer.get(first) != '#') {
+				if (separator < 0) {
+					throw new Error(file, line, new Error("Rule expected: `name: expression`"));
+				}
+				if (4 * count == records.length) {
+					records = Arrays.copyOf(records, 2 * records.length);
+				}
+				records[4 * count] = first;
+				records[4 * count + 1] = separator;
+				records[4 * count + 2] = end;
+				records[4 * count + 3] = line;
+				count += 1;
+			}
+			start = end + 1;
+		}
+
+		Rule[] rules = new Rule[count];
+		Map<String, Rule> result = new LinkedHashMap<>();
+		for (int i = 0; i < count; i += 1) {
+			int start = records[4 * i];
+			int separator = records[4 * i + 1];
+			String name = decode(buffer, start, trimEnd(buffer, start, separator));
+			rules[i] = new Rule(name, file, records[4 * i + 3], library, buffer, separator + 1, records[4 * i + 2]);
+			if (result.put(name, rules[i]) != null) {
+				throw new Error(file, rules[i].line, new Error("Already defined: " + name));
+			}
+		}
+
+		if (!lazy) {
+			Compile task = new Compile(rules, 0, rules.length);
+			if (rules.length < SEQUENTIAL_THRESHOLD) {
+				task.compute();
+			} else {
+				ForkJoinPool.commonPool().invoke(task);
+			}
+			// report the first invalid rule of the file
+			for (Rule rule : rules) {
+				if (rule.error != null) {
+					throw rule.error;
+				}
+			}
+		}
+		return Collections.unmodifiableMap(result);
+	}
+
+	private static int skipSpaces(ByteBuffer buffer, int start, int end) {
+		while (start < end && Character.isWhitespace(buffer.get(start))) {
+			start += 1;
+		}
+		return start;
+	}
+
+	private static int trimEnd(ByteBuffer buffer, int start, int end) {
+		while (end > start && Character.isWhitespace(buffer.get(end - 1))) {
+			end -= 1;
+		}
+		return end;
+	}
+
+	private static String decode(ByteBuffer buffer, int start, int end) {
+		byte[] bytes = new byte[end - start];
+		buffer.get(start, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * A named expression loaded from a file, compiled on the first use if loaded lazily.
+	 */
+	public static final class Rule {
+		private final String name;
+		private final String file;
+		private final int line;
+
+		// source of the expression, released after compiling
+		private Expression.Library library;
+		private ByteBuffer buffer;
+		private final int start;
+		private final int end;
+
+		private volatile Expression expression;
+		private Error error;
+
+		private Rule(String name, String file, int line, Expression.Library library, ByteBuffer buffer, int start, int end) {
+			this.name = name;
+			this.file = file;
+			this.line = line;
+			this.library = library;
+			this.buffer = buffer;
+			this.start = start;
+			this.end = end;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getLine() {
+			return line;
+		}
+
+		/**
+		 * Check if the rule was already compiled.
+		 */
+		public boolean isCompiled() {
+			return expression != null;
+		}
+
+		/**
+		 * Get the compiled expression of the rule, parsing and compiling it on the first call.
+		 *
+		 * @return the compiled expression.
+		 * @throws Error if the expression is invalid, with the file and line of the rule.
+		 */
+		public Expression getExpression() throws Error {
+			Expression result = expression;
+			if (result == null) {
+				result = compile();
+			}
+			return result;
+		}
+
+		private synchronized Expression compile() throws Error {
+			if (expression != null) {
+				return expression;
+			}
+			if (error != null) {
+				throw error;
+			}
+			try {
+				String source = decode(buffer, start, end);
+				expression = Expression.compile(Parser.parse(source), library);
+				return expression;
+			} catch (Error e) {
+				error = new Error(file, line, e);
+				throw error;
+			} finally {
+				library = null;
+				buffer = null;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return file + ":" + line + ": " + name;
+		}
+	}
+
+	/**
+	 * Compiles a range of rules, splitting it in halves on the fork-join pool.
+	 */
+	private static class Compile extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Rule[] rules;
+		private final int start;
+		private final int end;
+
+		Compile(Rule[] rules, int start, int end) {
+			this.rules = rules;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > SEQUENTIAL_THRESHOLD) {
+				int middle = (start + end) >>> 1;
+				invokeAll(new Compile(rules, start, middle), new Compile(rules, middle, end));
+				return;
+			}
+			for (int i = start; i < end; i += 1) {
+				try {
+					rules[i].getExpression();
+				} catch (Error e) {
+					// reported after all rules are compiled
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,604 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The RuleSet class matches many boolean rules against a record, evaluating only the rules which might match.
+ * <p>
+ * Each rule is a conjunction of operands, ex: `price > 100 && region == 3`, so every operand is a necessary condition.
+ * Operands comparing a variable to a constant are indexed, using a single comparison for each rule, its key:
+ * an equality is preferred, then a range of the variable bounded on both sides (combining all the comparisons
+ * of the variable, ex: `x > 1 && x <= 5`), then a range bounded on one side.
+ * Equalities are indexed by hash maps, and ranges by interval trees, for each variable.
+ * A match looks up the values of the record in the indexes of their variables, collecting the rules
+ * whose key is satisfied, then evaluates only these candidates. Rules without comparisons to index
+ * are evaluated for each record, and rules whose comparisons can not be satisfied together are never evaluated.
+ * Rules with side effects or changing their variables, ex: `(x = y) && x > 5`, are not indexed:
+ * rules making assignments, sequences, or calling functions not declared pure by the library, see {@link Expression.Library#isPure}.
+ * <p>
+ * Matching costs a lookup for each indexed variable, plus the evaluation of the candidates,
+ * which grow with the number of matched rules, not with the total number of rules.
+ * Since the rules are evaluated only for records satisfying their key, errors of rules which can not match
+ * a record, like an invalid subscript, are not reported.
+ * <p>
+ * A rule set is immutable and can be shared by many threads, each matching records with its own {@link Matcher}.
+ */
+public final class RuleSet {
+	private final String[] names;
+	private final Expression[] expressions;
+
+	// slot of each variable of each rule in the records
+	private final int[][] slots;
+
+	// rules evaluated for each record, in order
+	private final int[] unindexed;
+
+	// indexes of each variable: rules whose key is an equality, and rules whose key is a range
+	private final Map<Double, int[]>[] equalities;
+	private final IntervalTree[] ranges;
+
+	// names of the variables of the records
+	private final String[] variables;
+	private final Map<String, Integer> variableSlots;
+
+	private RuleSet(String[] names, Expression[] expressions, int[][] slots, int[] unindexed,
+			Map<Double, int[]>[] equalities, IntervalTree[] ranges, Map<String, Integer> variableSlots) {
+		this.names = names;
+		this.expressions = expressions;
+		this.slots = slots;
+		this.unindexed = unindexed;
+		this.equalities = equalities;
+		this.ranges = ranges;
+		this.variableSlots = variableSlots;
+		this.variables = variableSlots.keySet().toArray(new String[0]);
+	}
+
+	/**
+	 * Compile and index the rules.
+	 *
+	 * @param rules   the syntax trees of the rules by name, matches are reported in this order.
+	 * @param library resolves the constants and functions used by the rules.
+	 * @return the rule set.
+	 * @throws Error if a rule is not a valid expression, or references unknown functions.
+	 */
+	public static RuleSet compile(Map<String, Parser.Node> rules, Expression.Library library) throws Error {
+		int count = rules.size();
+		String[] names = new String[count];
+		Expression[] expressions = new Expression[count];
+		int[][] slots = new int[count][];
+		Map<String, Integer> variables = new LinkedHashMap<>();
+		List<Integer> unindexed = new ArrayList<>();
+		Map<Integer, Map<Double, List<Integer>>> equalities = new HashMap<>();
+		Map<Integer, List<Interval>> ranges = new HashMap<>();
+
+		int rule = 0;
+		for (Map.Entry<String, Parser.Node> entry : rules.entrySet()) {
+			names[rule] = entry.getKey();
+			expressions[rule] = Expression.compile(entry.getValue(), library);
+			List<String> used = expressions[rule].getVariables();
+			slots[rule] = new int[used.size()];
+			for (int i = 0; i < slots[rule].length; i += 1) {
+				slots[rule][i] = variables.computeIfAbsent(used.get(i), name -> variables.size());
+			}
+
+			Key key = key(entry.getValue(), library);
+			if (key == null) {
+				unindexed.add(rule);
+			} else if (key.equality != null) {
+				int slot = variables.get(key.variable);
+				equalities.computeIfAbsent(slot, k -> new HashMap<>())
+						.computeIfAbsent(key.equality + 0., k -> new ArrayList<>())
+						.add(rule);
+			} else if (!key.range.isEmpty()) {
+				int slot = variables.get(key.variable);
+				ranges.computeIfAbsent(slot, k -> new ArrayList<>()).add(key.range);
+				key.range.rule = rule;
+			}
+			// else the comparisons can not be satisfied together, the rule never matches
+			rule += 1;
+		}
+
+		@SuppressWarnings({"rawtypes", "unchecked"})
+		Map<Double, int[]>[] equalityIndex = new Map[variables.size()];
+		for (Map.Entry<Integer, Map<Double, List<Integer>>> entry : equalities.entrySet()) {
+			Map<Double, int[]> index = new HashMap<>();
+			for (Map.Entry<Double, List<Integer>> value : entry.getValue().entrySet()) {
+				index.put(value.getKey(), toArray(value.getValue()));
+			}
+			equalityIndex[entry.getKey()] = index;
+		}
+		IntervalTree[] rangeIndex = new IntervalTree[variables.size()];
+		for (Map.Entry<Integer, List<Interval>> entry : ranges.entrySet()) {
+			rangeIndex[entry.getKey()] = IntervalTree.build(entry.getValue());
+		}
+		return new RuleSet(names, expressions, slots, toArray(unindexed), equalityIndex, rangeIndex, variables);
+	}
+
+	/**
+	 * Get the slot of a variable in the records.
+	 *
+	 * @param name the name of the variable.
+	 * @return the slot of the variable, or -1 if no rule uses it.
+	 */
+	public int variable(String name) {
+		Integer slot = variableSlots.get(name);
+		return slot == null ? -1 : slot;
+	}
+
+	/**
+	 * Get the names of the variables used by the rules, indexed by slot.
+	 */
+	public List<String> getVariables() {
+		return Collections.unmodifiableList(Arrays.asList(variables));
+	}
+
+	/**
+	 * Get the number of rules.
+	 */
+	public int size() {
+		return names.length;
+	}
+
+	/**
+	 * Create a matcher, holding a record and the frames of the rules, for use by a single thread at a time.
+	 */
+	public Matcher newMatcher() {
+		return new Matcher(this);
+	}
+
+	/**
+	 * The values of a record and the scratch space of the matches, owned by a single thread at a time.
+	 * Variables not set are 0.
+	 */
+	public static final class Matcher {
+		private final RuleSet rules;
+		private final double[] values;
+		private final Expression.Frame[] frames;
+		private int[] candidates = new int[16];
+		private int count = 0;
+
+		private Matcher(RuleSet rules) {
+			this.rules = rules;
+			this.values = new double[rules.variables.length];
+			this.frames = new Expression.Frame[rules.names.length];
+		}
+
+		/**
+		 * Set the value of the variable in the given slot.
+		 *
+		 * @param slot  the slot of the variable, see {@link RuleSet#variable}.
+		 * @param value the new value of the variable.
+		 * @return this matcher.
+		 */
+		public Matcher set(int slot, double value) {
+			values[slot] = value;
+			return this;
+		}
+
+		/**
+		 * Set the value of the variable, ignored if no rule uses it.
+		 *
+		 * @param name  the name of the variable.
+		 * @param value the new value of the variable.
+		 * @return this matcher.
+		 */
+		public Matcher set(String name, double value) {
+			int slot = rules.variable(name);
+			if (slot >= 0) {
+				values[slot] = value;
+			}
+			return this;
+		}
+
+		/**
+		 * Find the rules matching the record: the rules evaluating to a non-zero value.
+		 *
+		 * @return the names of the matching rules, in the order of the rule set.
+		 * @throws Error if the evaluation of a candidate rule fails.
+		 */
+		public List<String> match() throws Error {
+			count = 0;
+			for (int rule : rules.unindexed) {
+				add(rule);
+			}
+			for (int slot = 0; slot < values.length; slot += 1) {
+				double value = values[slot];
+				Map<Double, int[]> equality = rules.equalities[slot];
+				if (equality != null) {
+					int[] matches = equality.get(value + 0.);
+					if (matches != null) {
+						for (int rule : matches) {
+							add(rule);
+						}
+					}
+				}
+				IntervalTree range = rules.ranges[slot];
+				if (range != null) {
+					range.query(value, this);
+				}
+			}
+
+			// each rule has a single key, so candidates are distinct
+			Arrays.sort(candidates, 0, count);
+			List<String> result = new ArrayList<>();
+			for (int i = 0; i < count; i += 1) {
+				int rule = candidates[i];
+				Expression expression = rules.expressions[rule];
+				Expression.Frame frame = frames[rule];
+				if (frame == null) {
+					frame = frames[rule] = expression.newFrame();
+				}
+				int[] slots = rules.slots[rule];
+				for (int v = 0; v < slots.length; v += 1) {
+					frame.set(v, values[slots[v]]);
+				}
+				if (expression.evaluate(frame) != 0) {
+					result.add(rules.names[rule]);
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * Get the number of rules evaluated by the last match.
+		 */
+		public int getCandidates() {
+			return count;
+		}
+
+		private void add(int rule) {
+			if (count == candidates.length) {
+				candidates = Arrays.copyOf(candidates, 2 * count);
+			}
+			candidates[count++] = rule;
+		}
+	}
+
+	/**
+	 * The comparison used to index a rule: an equality, or a range of a variable.
+	 */
+	private static final class Key {
+		final String variable;
+		final Double equality;
+		final Interval range;
+
+		Key(String variable, Double equality, Interval range) {
+			this.variable = variable;
+			this.equality = equality;
+			this.range = range;
+		}
+	}
+
+	// choose the key of the rule, or null if it has no comparisons to index.
+	private static Key key(Parser.Node root, Expression.Library library) throws Error {
+		if (!isPure(root, library)) {
+			// the comparisons may not hold on the values of the record
+			return null;
+		}
+		List<Parser.Node> operands = new ArrayList<>();
+		conjunction(operands, root);
+		Map<String, Interval> ranges = new LinkedHashMap<>();
+		for (Parser.Node operand : operands) {
+			operand = Parser.unwrap(operand);
+			if (operand == null || operand.left == null || operand.right == null || flip(operand.token) == null) {
+				continue;
+			}
+			Lexer.Token token = operand.token;
+			String variable = variable(operand.left, library);
+			Double constant = constant(operand.right, library);
+			if (variable == null || constant == null) {
+				// `constant < variable` is `variable > constant`
+				variable = variable(operand.right, library);
+				constant = constant(operand.left, library);
+				token = flip(token);
+			}
+			if (variable == null || constant == null) {
+				continue;
+			}
+			if (token == Lexer.Token.Eq && !constant.isNaN()) {
+				return new Key(variable, constant, new Interval(constant, false, constant, false));
+			}
+			ranges.computeIfAbsent(variable, k -> new Interval(Double.NEGATIVE_INFINITY, false, Double.POSITIVE_INFINITY, false))
+					.restrict(token, constant);
+		}
+
+		Map.Entry<String, Interval> result = null;
+		for (Map.Entry<String, Interval> entry : ranges.entrySet()) {
+			if (entry.getValue().isEmpty()) {
+				// never matches
+				return new Key(entry.getKey(), null, entry.getValue());
+			}
+			if (result == null || entry.getValue().isBounded() && !result.getValue().isBounded()) {
+				result = entry;
+			}
+		}
+		if (result == null) {
+			return null;
+		}
+		return new Key(result.getKey(), null, result.getValue());
+	}
+
+	// collect the operands of nested `&&` operators.
+	private static void conjunction(List<Parser.Node> operands, Parser.Node node) {
+		Parser.Node inner = Parser.unwrap(node);
+		if (inner != null && inner.token == Lexer.Token.All) {
+			conjunction(operands, inner.left);
+			conjunction(operands, inner.right);
+			return;
+		}
+		operands.add(node);
+	}
+
+	// check if the subtree calls only pure functions, and makes no assignments or sequences.
+	private static boolean isPure(Parser.Node node, Expression.Library library) {
+		if (node == null) {
+			return true;
+		}
+		switch (node.token) {
+			case Fun:
+				if (node.left != null) {
+					// the commas separate the arguments
+					return library.isPure(node.left.getText()) && isPureArguments(node.right, library);
+				}
+				break;
+
+			case Idx:
+				return isPure(node.left, library) && isPureArguments(node.right, library);
+
+			case Set:
+			case SetAdd:
+			case SetSub:
+			case SetMul:
+			case SetDiv:
+			case SetRem:
+			case Coma:
+				return false;
+		}
+		return isPure(node.left, library) && isPure(node.right, library);
+	}
+
+	private static boolean isPureArguments(Parser.Node node, Expression.Library library) {
+		if (node != null && node.token == Lexer.Token.Coma) {
+			return isPureArguments(node.left, library) && isPureArguments(node.right, library);
+		}
+		return isPure(node, library);
+	}
+
+	// the comparison with the operands swapped, or null if it can not be indexed.
+	private static Lexer.Token flip(Lexer.Token token) {
+		switch (token) {
+			case Lt:
+				return Lexer.Token.Gt;
+
+			case Leq:
+				return Lexer.Token.Geq;
+
+			case Gt:
+				return Lexer.Token.Lt;
+
+			case Geq:
+				return Lexer.Token.Leq;
+
+			case Eq:
+				return Lexer.Token.Eq;
+		}
+		return null;
+	}
+
+	// the name of the variable, or null if the node is not a variable.
+	private static String variable(Parser.Node node, Expression.Library library) throws Error {
+		node = Parser.unwrap(node);
+		if (node == null || node.token != Lexer.Token.Value) {
+			return null;
+		}
+		String text = node.getText();
+		if (!Character.isJavaIdentifierStart(text.charAt(0)) || library.constant(text) != null) {
+			return null;
+		}
+		return text;
+	}
+
+	// the value of a literal or a named constant, optionally negated, or null.
+	private static Double constant(Parser.Node node, Expression.Library library) throws Error {
+		node = Parser.unwrap(node);
+		if (node == null) {
+			return null;
+		}
+		if (node.token == Lexer.Token.Neg || node.token == Lexer.Token.Pos) {
+			Double value = constant(node.right, library);
+			if (value == null) {
+				return null;
+			}
+			return node.token == Lexer.Token.Neg ? -value : value;
+		}
+		if (node.token != Lexer.Token.Value) {
+			return null;
+		}
+		String text = node.getText();
+		char chr = text.charAt(0);
+		if ((chr >= '0' && chr <= '9') || chr == '.') {
+			try {
+				return Double.parseDouble(text);
+			} catch (NumberFormatException e) {
+				// reported when the rule is compiled
+				return null;
+			}
+		}
+		return library.constant(text);
+	}
+
+	private static int[] toArray(List<Integer> values) {
+		int[] result = new int[values.size()];
+		for (int i = 0; i < result.length; i += 1) {
+			result[i] = values.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * A range of values, the bounds can be open or closed, and infinite.
+	 */
+	private static final class Interval {
+		double low;
+		boolean lowOpen;
+		double high;
+		boolean highOpen;
+		int rule;
+
+		Interval(double low, boolean lowOpen, double high, boolean highOpen) {
+			this.low = low;
+			this.lowOpen = lowOpen;
+			this.high = high;
+			this.highOpen = highOpen;
+		}
+
+		// intersect with the values satisfying `value <token> constant`.
+		void restrict(Lexer.Token token, double constant) {
+			if (Double.isNaN(constant)) {
+				// comparisons with NaN are false
+				low = Double.POSITIVE_INFINITY;
+				high = Double.NEGATIVE_INFINITY;
+				return;
+			}
+			switch (token) {
+				case Gt:
+					if (constant > low || constant == low && !lowOpen) {
+						low = constant;
+						lowOpen = true;
+					}
+					break;
+
+				case Geq:
+					if (constant > low) {
+						low = constant;
+						lowOpen = false;
+					}
+					break;
+
+				case Lt:
+					if (constant < high || constant == high && !highOpen) {
+						high = constant;
+						highOpen = true;
+					}
+					break;
+
+				case Leq:
+					if (constant < high) {
+						high = constant;
+						highOpen = false;
+					}
+					break;
+			}
+		}
+
+		boolean contains(double value) {
+			return (lowOpen ? value > low : value >= low) && (highOpen ? value < high : value <= high);
+		}
+
+		boolean isEmpty() {
+			return !(low < high || low == high && !lowOpen && !highOpen);
+		}
+
+		boolean isBounded() {
+			return low != Double.NEGATIVE_INFINITY && high != Double.POSITIVE_INFINITY;
+		}
+	}
+
+	/**
+	 * A static centered interval tree: each node holds the intervals containing its center,
+	 * sorted by their low and by their high bounds, the other intervals are in the left or right subtrees.
+	 * Finding the intervals containing a value visits a path of the tree, and scans only the matching intervals
+	 * of each node, except the ones having an open bound equal to the value.
+	 */
+	private static final class IntervalTree {
+		private final double center;
+		private final Interval[] byLow;
+		private final Interval[] byHigh;
+		private final IntervalTree left;
+		private final IntervalTree right;
+
+		private IntervalTree(double center, Interval[] byLow, Interval[] byHigh, IntervalTree left, IntervalTree right) {
+			this.center = center;
+			this.byLow = byLow;
+			this.byHigh = byHigh;
+			this.left = left;
+			this.right = right;
+		}
+
+		static IntervalTree build(List<Interval> intervals) {
+			if (intervals.isEmpty()) {
+				return null;
+			}
+			// the median of the bounds is the bound of an interval, so each node holds at least one interval
+			double[] bounds = new double[2 * intervals.size()];
+			for (int i = 0; i < intervals.size(); i += 1) {
+				bounds[2 * i] = intervals.get(i).low;
+				bounds[2 * i + 1] = intervals.get(i).high;
+			}
+			Arrays.sort(bounds);
+			double center = bounds[bounds.length / 2];
+
+			List<Interval> left = new ArrayList<>();
+			List<Interval> right = new ArrayList<>();
+			List<Interval> overlap = new ArrayList<>();
+			for (Interval interval : intervals) {
+				if (interval.high < center) {
+					left.add(interval);
+				} else if (interval.low > center) {
+					right.add(interval);
+				} else {
+					overlap.add(interval);
+				}
+			}
+			Interval[] byLow = overlap.toArray(new Interval[0]);
+			Interval[] byHigh = overlap.toArray(new Interval[0]);
+			Arrays.sort(byLow, Comparator.comparingDouble(interval -> interval.low));
+			Arrays.sort(byHigh, Comparator.comparingDouble(interval -> -interval.high));
+			return new IntervalTree(center, byLow, byHigh, build(left), build(right));
+		}
+
+		// add the rules of the intervals containing the value to the candidates of the matcher.
+		void query(double value, Matcher matcher) {
+			for (IntervalTree node = this; node != null; ) {
+				if (value < node.center) {
+					// the intervals of the node end after the value
+					for (Interval interval : node.byLow) {
+						if (interval.low > value) {
+							break;
+						}
+						if (interval.contains(value)) {
+							matcher.add(interval.rule);
+						}
+					}
+					node = node.left;
+				} else if (value > node.center) {
+					// the intervals of the node start before the value
+					for (Interval interval : node.byHigh) {
+						if (interval.high < value) {
+							break;
+						}
+						if (interval.contains(value)) {
+							matcher.add(interval.rule);
+						}
+					}
+					node = node.right;
+				} else {
+					// NaN is not contained by any interval, and the value equals the center
+					if (value == node.center) {
+						for (Interval interval : node.byLow) {
+							if (interval.contains(value)) {
+								matcher.add(interval.rule);
+							}
+						}
+					}
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,288 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The ShortCircuitProfile class reorders the operands of logical conjunctions and disjunctions ({@code &&}, {@code ||}),
+ * so the operands deciding the result cheaply are evaluated first.
+ * <p>
+ * Chains of the same operator are flattened into a list of operands, ex: `a && b && c` has three operands.
+ * A sample of the evaluations of each chain measures the cost of the operands, and how often they decide the result:
+ * a zero operand decides a conjunction, a non-zero one decides a disjunction. Periodically, the operands are sorted by
+ * their cost divided by the probability of deciding the result, and the statistics are halved, so the order follows
+ * the changes of the data.
+ * <p>
+ * Only the chains whose operands are pure and evaluate to 0 or 1 (comparisons, negations, and chains of them)
+ * are reordered, so the result is the same in any order. Other chains, like `1 && 2`, are evaluated left to right.
+ * Identifiers and arrays are expected to be read without side effects, and functions must be declared pure
+ * by the evaluator, see {@link Evaluator#isPure}. If an operand fails when evaluated out of order,
+ * like `vec[i] > 0` guarded by `i < n`, the chain is evaluated again in the original order, and it is no longer reordered.
+ * <p>
+ * A profile is thread-safe, and can be shared by evaluators defining the same functions.
+ * The statistics are kept for each node, so a profile should be used for a bounded set of expressions.
+ */
+public final class ShortCircuitProfile {
+	// one of this many evaluations of a chain is measured.
+	static final int SAMPLE = 16;
+
+	// number of measured evaluations between reorderings.
+	static final int PERIOD = 64;
+
+	private final Map<Parser.Node, Chain> chains = new ConcurrentHashMap<>();
+	private final LongAdder reorderings = new LongAdder();
+
+	/**
+	 * Evaluate the conjunction or disjunction of the node, in the order of the profile.
+	 */
+	double evaluate(Evaluator evaluator, Parser.Node node) throws Error {
+		Chain chain = chains.get(node);
+		if (chain == null) {
+			chain = chains.computeIfAbsent(node, key -> new Chain(evaluator, key));
+		}
+		return chain.evaluate(evaluator);
+	}
+
+	/**
+	 * Get the number of times the operands of a chain were reordered.
+	 */
+	public long getReorderings() {
+		return reorderings.sum();
+	}
+
+	/**
+	 * Get the operands of a chain, in the order they are evaluated.
+	 *
+	 * @param node the root of the chain.
+	 * @return the operands, or null if the chain was not evaluated.
+	 */
+	List<Parser.Node> getOrder(Parser.Node node) {
+		Chain chain = chains.get(node);
+		if (chain == null) {
+			return null;
+		}
+		List<Parser.Node> result = new ArrayList<>();
+		for (int i : chain.order) {
+			result.add(chain.operands[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * The operands of a chain of the same operator, their order and their statistics.
+	 */
+	private final class Chain {
+		private final boolean conjunction;
+		private final Parser.Node[] operands;
+		private final boolean adaptive;
+
+		// the order of the evaluation, replaced when reordering
+		private volatile int[] order;
+
+		// an operand failed out of order, so the chain is evaluated in the original order
+		private volatile boolean pinned;
+
+		// measured evaluations, guarded by the lock of the chain
+		private final long[] reached;
+		private final long[] decided;
+		private final long[] nanos;
+		private int samples;
+
+		Chain(Evaluator evaluator, Parser.Node node) {
+			List<Parser.Node> operands = new ArrayList<>();
+			flatten(operands, node.token, node);
+			boolean adaptive = true;
+			for (Parser.Node operand : operands) {
+				adaptive &= isBoolean(operand) && isPure(evaluator, operand);
+			}
+			this.conjunction = node.token == Lexer.Token.All;
+			this.operands = operands.toArray(new Parser.Node[0]);
+			this.adaptive = adaptive;
+			this.order = new int[this.operands.length];
+			for (int i = 0; i < order.length; i += 1) {
+				order[i] = i;
+			}
+			this.reached = new long[this.operands.length];
+			this.decided = new long[this.operands.length];
+			this.nanos = new long[this.operands.length];
+		}
+
+		double evaluate(Evaluator evaluator) throws Error {
+			if (!adaptive || pinned) {
+				return evaluateInOrder(evaluator);
+			}
+			int[] order = this.order;
+			try {
+				if (ThreadLocalRandom.current().nextInt(SAMPLE) == 0) {
+					return measure(evaluator, order);
+				}
+				for (int i : order) {
+					double value = evaluator.evaluate(operands[i]);
+					if (decides(value)) {
+						return value;
+					}
+				}
+			} catch (Error e) {
+				if (isOriginal(order)) {
+					throw e;
+				}
+				// the operand might be guarded by another one, ex: `i < n && vec[i] > 0`
+				pinned = true;
+				return evaluateInOrder(evaluator);
+			}
+			// all the operands are 1 for conjunctions, or 0 for disjunctions
+			return conjunction ? 1 : 0;
+		}
+
+		// evaluate left to right, as the nested operators would, returning the deciding or the last value.
+		private double evaluateInOrder(Evaluator evaluator) throws Error {
+			double value = 0;
+			for (Parser.Node operand : operands) {
+				value = evaluator.evaluate(operand);
+				if (decides(value)) {
+					return value;
+				}
+			}
+			return value;
+		}
+
+		private double measure(Evaluator evaluator, int[] order) throws Error {
+			double result = conjunction ? 1 : 0;
+			int last = order.length - 1;
+			long[] nanos = new long[order.length];
+			for (int n = 0; n < order.length; n += 1) {
+				long start = System.nanoTime();
+				double value = evaluator.evaluate(operands[order[n]]);
+				nanos[n] = System.nanoTime() - start;
+				if (decides(value)) {
+					result = value;
+					last = n;
+					break;
+				}
+			}
+			record(order, nanos, last, result);
+			return result;
+		}
+
+		private synchronized void record(int[] order, long[] nanos, int last, double result) {
+			for (int n = 0; n <= last; n += 1) {
+				int i = order[n];
+				reached[i] += 1;
+				this.nanos[i] += nanos[n];
+			}
+			if (decides(result)) {
+				decided[order[last]] += 1;
+			}
+			samples += 1;
+			if (samples >= PERIOD && order == this.order) {
+				reorder();
+			}
+		}
+
+		// sort the operands by cost per decision, halving the statistics.
+		private void reorder() {
+			double[] ranks = new double[operands.length];
+			Integer[] sorted = new Integer[operands.length];
+			for (int i = 0; i < operands.length; i += 1) {
+				sorted[i] = order[i];
+				if (reached[i] == 0) {
+					// never evaluated, keep it after the measured ones
+					ranks[i] = Double.POSITIVE_INFINITY;
+				} else {
+					double cost = (double) nanos[i] / reached[i];
+					double probability = (decided[i] + 1.) / (reached[i] + 2.);
+					ranks[i] = cost / probability;
+				}
+				reached[i] /= 2;
+				decided[i] /= 2;
+				nanos[i] /= 2;
+			}
+			// the sort is stable, so equal operands keep their order
+			Arrays.sort(sorted, (a, b) -> Double.compare(ranks[a], ranks[b]));
+			int[] result = new int[operands.length];
+			boolean changed = false;
+			for (int n = 0; n < result.length; n += 1) {
+				result[n] = sorted[n];
+				changed |= result[n] != order[n];
+			}
+			samples = 0;
+			if (changed) {
+				order = result;
+				reorderings.increment();
+			}
+		}
+
+		private boolean decides(double value) {
+			return conjunction ? value == 0 : value != 0;
+		}
+
+		private boolean isOriginal(int[] order) {
+			for (int i = 0; i < order.length; i += 1) {
+				if (order[i] != i) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	// collect the operands of nested operators of the same kind.
+	private static void flatten(List<Parser.Node> operands, Lexer.Token token, Parser.Node node) {
+		Parser.Node inner = Parser.unwrap(node);
+		if (inner != null && inner.token == token) {
+			flatten(operands, token, inner.left);
+			flatten(operands, token, inner.right);
+			return;
+		}
+		operands.add(node);
+	}
+
+	// check if the subtree evaluates to 0 or 1.
+	private static boolean isBoolean(Parser.Node node) {
+		node = Parser.unwrap(node);
+		if (node == null) {
+			return false;
+		}
+		switch (node.token) {
+			case Lt:
+			case Leq:
+			case Gt:
+			case Geq:
+			case Eq:
+			case Neq:
+			case Not:
+				return true;
+
+			case All:
+			case Any:
+				return isBoolean(node.left) && isBoolean(node.right);
+		}
+		return false;
+	}
+
+	// check if the subtree calls only pure functions, and makes no assignments.
+	private static boolean isPure(Evaluator evaluator, Parser.Node node) {
+		if (node == null) {
+			return true;
+		}
+		switch (node.token) {
+			case Fun:
+				if (node.left != null && !evaluator.isPure(node.left.getText())) {
+					return false;
+				}
+				break;
+
+			case Set:
+			case SetAdd:
+			case SetSub:
+			case SetMul:
+			case SetDiv:
+			case SetRem:
+				return false;
+		}
+		return isPure(evaluator, node.left) && isPure(evaluator, node.right);
+	}
+}
@@ -1,3 +1,24 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.DoubleUnaryOperator;
+import java.util.stream.Stream;
+
 public class TestExpr {
 	private static final double epsilon = 0;
 	private static final double epsilonTrig = 1e-15;
@@ -17,6 +38,29 @@ public class TestExpr {
 		testPrecedence();
 		testShortCircuit();
 		testPrimary();
+		testReactive();
+		testDerivatives();
+		testIntegers();
+		testCompiled();
+		testAccumulators();
+		testRegistry();
+		testRuleLoader();
+		testArchive();
+		testCache();
+		testCsvPipeline();
+		testFlow();
+		testColumns();
+		testBatchResolution();
+		testLazyArguments();
+		testFunctionCache();
+		testFastMath();
+		testSwitch();
+		testAdaptiveOrder();
+		testRuleSet();
+		testFuel();
+		testCostModel();
+		testValidation();
+		testAnalysis();
 
 		// test recursive parser
 		assertEquals(3, "0?2:3", epsilon, false, "0 3 ?");
@@ -239,38 +283,87 @@ public class TestExpr {
 		assertEquals(w, "min(vec)", epsilon, false, "vec min(#1)");
 	}
 
-	public static void testPowers() throws Error {
-		if (!Lexer.Token.Pow.right2left) {
-			// Pow should be right to left associative, with higher precedence than unary operators:
-			// https://developer.mozilla.org/en-US/docs/Web/JavaScript/Reference/Operators/Exponentiation
-			assertEquals(Math.pow(Math.pow(2, 3), 4), "2 ** 3 ** 4", epsilon, false, "2 3 ** 4 **");
-			assertEquals(4, "-2 ** 2", epsilon, false, "2 - 2 **");
-			assertEquals(4, "(-2) ** 2", epsilon, false, "2 - 2 **");
-			assertEquals(.25, "-2 ** -2", epsilon, false, "2 - 2 - **");
-			assertEquals(.25, "(-2) ** -2", epsilon, false, "2 - 2 - **");
-			return;
-		}
+	public static void testReactive() throws Error {
+		ReactiveEvaluator evaluator = new ReactiveEvaluator() {
+			final EvaluatorMath math = new EvaluatorMath();
 
-		assertEquals(Math.pow(2, Math.pow(3, 4)), "2 ** 3 ** 4", epsilon, false, "2 3 4 ** **");
-		assertEquals(4, "2 ** 2", epsilon, false, "2 2 **");
-		assertEquals(.25, "2 ** -2", epsilon, false, "2 2 - **");
+			@Override
+			protected double onValue(String value) throws Error {
+				return math.onValue(value);
+			}
 
-		assertError("-2 ** 2", "Precedence error, consider using parenthesis around: Token.Pow(`**`), at position: 3");
-		assertEquals(-4, "-(2 ** 2)", epsilon, false, "2 2 ** -");
-		assertError("-2 ** -2", "Precedence error, consider using parenthesis around: Token.Pow(`**`), at position: 3");
-		assertEquals(-.25, "-(2 ** -2)", epsilon, false, "2 2 - ** -");
-		assertEquals(1, "ln(e)", epsilon, false, "e ln(#1)");
-		assertEquals(1, "log(e)", epsilon, false, "e log(#1)");
-		assertEquals(1, "log(10, 10)", epsilon, false, "10 10 log(#2)");
-		assertEquals(2, "log(100, 10)", epsilon, false, "100 10 log(#2)");
-		assertEquals(8, "log(256, 2)", epsilon, false, "256 2 log(#2)");
+			@Override
+			protected double onArray(String array, int subscript) throws Error {
+				return math.onArray(array, subscript);
+			}
+
+			@Override
+			protected double onFunction(String function, double[] arguments) throws Error {
+				return math.onFunction(function, arguments);
+			}
+		};
+		evaluator.declare("a", 1);
+		evaluator.declare("b", 2);
+		evaluator.declare("c", 0);
+		evaluator.define("sum", Parser.parse("a + b"));
+		evaluator.define("twice", Parser.parse("sum * 2"));
+		evaluator.define("guard", Parser.parse("c && max(sum, twice)"));
+		evaluator.define("other", Parser.parse("sin(pi / 2) + b"));
+		assertReactive(evaluator, 3, "sum", 0);
+		assertReactive(evaluator, 6, "twice", 0);
+		assertReactive(evaluator, 0, "guard", 0);
+		assertReactive(evaluator, 3, "other", 0);
+
+		// sum and twice are affected, guard did not evaluate them (short-circuit), other does not depend on them
+		evaluator.set("a", 2);
+		assertReactive(evaluator, 8, "twice", 2);
+
+		// guard is affected by the condition, it evaluates sum and twice
+		evaluator.set("c", 1);
+		assertReactive(evaluator, 8, "guard", 1);
+
+		// the value of sum does not change, so twice and guard are not recomputed
+		evaluator.set("a", 3);
+		evaluator.set("b", 1);
+		assertReactive(evaluator, 4, "sum", 2);
+		assertReactive(evaluator, 2, "other", 0);
+
+		// the short-circuit hides changes until the condition changes
+		evaluator.set("c", 0);
+		evaluator.set("a", 5);
+		assertReactive(evaluator, 0, "guard", 3);
+		evaluator.set("c", 1);
+		assertReactive(evaluator, 12, "guard", 1);
+
+		// branches of the conditional operator are also tracked
+		evaluator.define("pick", Parser.parse("c ? a : b"));
+		evaluator.set("a", 7);
+		assertReactive(evaluator, 7, "pick", 4);
+		evaluator.set("c", 0);
+		evaluator.set("b", 3);
+		assertReactive(evaluator, 3, "pick", 5);
+
+		assertReactiveError(evaluator, "sum", "b", "Already defined: sum");
+		assertReactiveError(evaluator, "invalid", "b + x", "Invalid value: Token.Value(`x`), at position: 4");
 	}
 
-	private static void assertError(String expression, String message) throws Error {
+	private static void assertReactive(ReactiveEvaluator evaluator, double expected, String name, int updates) throws Error {
+		int count = evaluator.update();
+		double value = evaluator.get(name);
+		if (value != expected) {
+			throw new Error("Expected value: `" + expected + "`, got: `" + value + "`");
+		}
+		if (count != updates) {
+			throw new Error("Expected updates: `" + updates + "`, got: `" + count + "`");
+		}
+		System.out.println(value + " == cell: `" + name + "`, updates: " + count);
+	}
+
+	private static void assertReactiveError(ReactiveEvaluator evaluator, String name, String expression, String message) throws Error {
 		try {
-			assertEquals(Double.NaN, expression, 0, false, null);
-		} catch (Exception e) {
-			if (message != null && message.equals(e.getMessage())) {
+			evaluator.define(name, Parser.parse(expression));
+		} catch (Error e) {
+			if (message.equals(e.getMessage())) {
 				return;
 			}
 			throw e;
@@ -278,14 +371,177 @@ public class TestExpr {
 		throw new Error("Error expected");
 	}
 
-	private static void assertEquals(double expected, String expression, double epsilon, boolean group, String rpn) throws Error {
-		Parser.Node root = Parser.parse(expression);
-		// Evaluator which appends to the out buffer the evaluated values (in reverse polish notation)
-		// also allows evaluation of invalid structures like: `[]`, `()`, `[x]`, `x[]`, ...
-		Evaluator evaluator = new EvaluatorMath() {
+	public static void testDerivatives() throws Error {
+		String[] expressions = {
+				"u * v + u / v - v % u", "-(u ** 3) + v ** u", "u < v ? u * u : v", "u > v || v * 2", "vec[1] * u + (6 << 2) * v",
+				"min(u, v) + max(u, v) + avg(u, v, 1)", "abs(u - v) + sign(u) + floor(v) + ceil(u) + round(v)",
+				"exp(u) + ln(v) + log(u) + log(v, u) + sqrt(u) + pow(u, v)",
+				"sin(u) + cos(v) + tan(u) + sinh(v) + cosh(u) + tanh(v)",
+				"asin(u) + acos(v) + atan(u) + asinh(v) + acosh(1 + u) + atanh(v)",
+				"sec(u) + csc(v) + cot(u) + sech(v) + csch(u) + coth(v)",
+				"asec(1 + u) + acsc(1 + v) + acot(u) + asech(v) + acsch(u) + acoth(1 + v)",
+				"(u - .3) ** 0 + pow(v - .7, 0) + (u - .3) ** 2",
+		};
+		for (String expression : expressions) {
+			Parser.Node root = Parser.parse(expression);
+			double[] lanes = new DualMath(new EvaluatorDual(.3, .7), "u", "v").evaluate(root);
+			double value = new EvaluatorDual(.3, .7).evaluate(root);
+			if (value != lanes[0]) {
+				throw new Error("Expected value: `" + value + "`, got: `" + lanes[0] + "`");
+			}
 
-			final StringBuilder rpn = new StringBuilder();
+			// compare with central differences
+			final double h = 1e-6;
+			double du = (new EvaluatorDual(.3 + h, .7).evaluate(root) - new EvaluatorDual(.3 - h, .7).evaluate(root)) / (2 * h);
+			double dv = (new EvaluatorDual(.3, .7 + h).evaluate(root) - new EvaluatorDual(.3, .7 - h).evaluate(root)) / (2 * h);
+			if (!(Math.abs(du - lanes[1]) <= 1e-6 * Math.max(1, Math.abs(du)))) {
+				throw new Error("Expected derivative: `" + du + "`, got: `" + lanes[1] + "` for: " + expression);
+			}
+			if (!(Math.abs(dv - lanes[2]) <= 1e-6 * Math.max(1, Math.abs(dv)))) {
+				throw new Error("Expected derivative: `" + dv + "`, got: `" + lanes[2] + "` for: " + expression);
+			}
+			System.out.println(value + " == expr: `" + expression + "`, d/du: `" + lanes[1] + "`, d/dv: `" + lanes[2] + "`");
+		}
+
+		// assignments and sequences carry the derivatives of the assigned values: h = u * v + u
+		double[] lanes = new DualMath(new EvaluatorDual(.3, .7), "u", "v").evaluate(Parser.parse("h = u * v, h += u, h * h + v"));
+		double h = .3 * .7 + .3;
+		assertLanes(new double[]{h * h + .7, 2 * h * (.7 + 1), 2 * h * .3 + 1}, lanes);
+
+		// values are resolved through the evaluate method of the evaluator, including its overrides
+		Evaluator evaluator = new EvaluatorDual(.3, .7) {
+			@Override
+			public double evaluate(Parser.Node node) throws Error {
+				if (node.getToken() == Lexer.Token.Value && "w".equals(node.getText())) {
+					return 2;
+				}
+				return super.evaluate(node);
+			}
+		};
+		lanes = new DualMath(evaluator, "u", "w").evaluate(Parser.parse("w * u + sin(w) + cos(w + 1)"));
+		assertLanes(new double[]{2 * .3 + Math.sin(2) + Math.cos(3), 2, .3 + Math.cos(2) - Math.sin(3)}, lanes);
+
+		// lazy functions are evaluated by the evaluator when their arguments do not depend on the parameters
+		evaluator = new EvaluatorDual(.3, .7) {
+			@Override
+			protected boolean isLazy(String function) {
+				return function.equals("iif");
+			}
+
+			@Override
+			protected double onFunction(String function, Arguments arguments) throws Error {
+				return arguments.get(0) != 0 ? arguments.get(1) : arguments.get(2);
+			}
+		};
+		lanes = new DualMath(evaluator, "u", "v").evaluate(Parser.parse("iif(1 < 2, vec[1], vec[9]) * u"));
+		assertLanes(new double[]{vec[1] * .3, vec[1], 0}, lanes);
+		try {
+			new DualMath(evaluator, "u", "v").evaluate(Parser.parse("iif(u < v, u, vec[9])"));
+			throw new Error("Error expected");
+		} catch (Error e) {
+			if (e.getCode() != Error.Code.INVALID_FUNCTION || !"Derivative not defined for lazy function: iif".equals(e.getMessage())) {
+				throw e;
+			}
+		}
+	}
+
+	private static void assertLanes(double[] expected, double[] lanes) throws Error {
+		for (int i = 0; i < expected.length; i += 1) {
+			if (!(Math.abs(expected[i] - lanes[i]) <= 1e-12)) {
+				throw new Error("Expected lanes: " + Arrays.toString(expected) + ", got: " + Arrays.toString(lanes));
+			}
+		}
+	}
+
+	public static void testIntegers() throws Error {
+		String[] expressions = {
+				"~4", "27 & 89", "27 | 9", "27 ^ 63", "-1 >>> 30", "23 >> 5", "23 << 5", "198475 >>> 6",
+				"(flags & 4) <> 0 && (flags >> 2 | mask) ^ ~mask", "flags & (x < y) << 3", "(x > y ? 1 : 2) | flags",
+				"!flags | (mask & 0 || 12)", "flags & 3.0", "flags & x >> 2",
+				"((1 << 60) | 1) & 1", "9007199254740993 & 1", "-(1 << 63) >> 1", "(~(1 << 60) ^ flags) & 15 | mask << 50",
+		};
+		EvaluatorMath evaluator = new EvaluatorMath() {
+			@Override
+			protected double onValue(String value) throws Error {
+				switch (value) {
+					case "flags":
+						return 13;
+
+					case "mask":
+						return 0xff00;
+
+					case "x":
+						return x;
+
+					case "y":
+						return y;
+				}
+				return super.onValue(value);
+			}
+		};
+		for (String expression : expressions) {
+			Parser.Node root = Parser.parse(expression);
+			TypeInference.Node typed = TypeInference.infer(root, name -> name.equals("flags") || name.equals("mask"));
+			double expected = 0;
+			String error = null;
+			try {
+				expected = evaluator.evaluate(root);
+			} catch (Error e) {
+				error = e.getMessage();
+			}
+			try {
+				double value = evaluator.evaluate(typed);
+				if (error != null || value != expected) {
+					throw new Error("Expected value: `" + expected + "`, got: `" + value + "`");
+				}
+			} catch (Error e) {
+				if (error == null || !error.equals(e.getMessage())) {
+					throw e;
+				}
+			}
+			System.out.println(expected + " == expr: `" + expression + "`, integral: " + typed.integral + (error != null ? ", error: " + error : ""));
+		}
 
+		// the integer path of a bitmask rule, compared to the double path of the same tree without annotations
+		Parser.Node rule = Parser.parse("(flags & 4) <> 0 && (flags >> 2 | mask) ^ ~mask & 4080 >> 4");
+		Parser.Node typedRule = TypeInference.infer(rule, name -> name.equals("flags") || name.equals("mask"));
+		assertCompiled(evaluator.evaluate(rule), evaluator.evaluate(typedRule));
+		long doubleTime = Long.MAX_VALUE;
+		long longTime = Long.MAX_VALUE;
+		double sum = 0;
+		for (int round = 0; round < 100; round += 1) {
+			long start = System.nanoTime();
+			for (int i = 0; i < 1000; i += 1) {
+				sum += evaluator.evaluate(rule);
+			}
+			doubleTime = Math.min(doubleTime, System.nanoTime() - start);
+			start = System.nanoTime();
+			for (int i = 0; i < 1000; i += 1) {
+				sum -= evaluator.evaluate(typedRule);
+			}
+			longTime = Math.min(longTime, System.nanoTime() - start);
+		}
+		assertCompiled(0, sum);
+		System.out.printf("%.2f == speedup of integer path on a bitmask rule: %.1f ns, double path: %.1f ns%n",
+				(double) doubleTime / longTime, longTime / 1000., doubleTime / 1000.);
+
+		if (TypeInference.infer(Parser.parse("1.5 & 1")).integral) {
+			throw new Error("Expected non integral expression");
+		}
+		if (TypeInference.infer(Parser.parse("flags + 1"), name -> true).integral) {
+			throw new Error("Expected non integral expression");
+		}
+	}
+
+	public static void testCompiled() throws Exception {
+		String[] expressions = {
+				"4", "4.", "e", "x", "pi / 4", "~4", "27 & 89", "27 ^ 63", "-1 >>> 30", "23 << 5", "5 / 4 / 3 / 2",
+				"(1 + 2) * 3", "2 ** 3 ** 4", "(.1 + .2) + .3 <> .1 + (.2 + .3)", "3 +-~!5", "!nan", "1 && 2", "0 && 2",
+				"1 || 2", "0 || 2", "1 && 2 && 0", "0 || 2 || 3", "x < y ? y - x * w : w * x - y", "0?2:3", "1?2:3",
+				"min(vec[0], vec[1], vec[2], vec[3])", "min(1., .9, 4., .4, .8)", "log(256, 2)", "sin(3 * pi / 2)",
+				"x < y && (y < z || w)", "vec[x < y] + vec[2 + (x > y)]",
+		};
+		EvaluatorMath evaluator = new EvaluatorMath() {
 			@Override
 			protected double onValue(String value) throws Error {
 				switch (value) {
@@ -306,167 +562,2136 @@ public class TestExpr {
 
 			@Override
 			protected double onArray(String array, int subscript) throws Error {
-				// allow `vec` to be indexed with numbers: vec[0], vec[1], vec[2], vec[3]
 				if ("vec".equals(array)) {
 					return vec[subscript];
 				}
 				return super.onArray(array, subscript);
 			}
+		};
 
-			@Override
-			protected double onArray(String array, Parser.Node property) throws Error {
-				// allow `vec` to be indexed with x, y, z, w: vec[x], vec[y], vec[z], vec[w]
-				if ("vec".equals(array)) {
-					switch (property.getText()) {
-						case "x":
-							rpn.append(property.getText()).append(" ");
-							return vec[0];
-
-						case "y":
-							rpn.append(property.getText()).append(" ");
-							return vec[1];
-
-						case "z":
-							rpn.append(property.getText()).append(" ");
-							return vec[2];
-
-						case "w":
-							rpn.append(property.getText()).append(" ");
-							return vec[3];
-					}
-				}
-				return super.onArray(array, property);
-			}
-
-			@Override
-			protected double onFunction(String function, Parser.Node arguments) throws Error {
-				// allow `vec` to be passed to functions as an array: min(vec), max(vec), ...
-				if (arguments != null && arguments.getText().equals("vec")) {
-					rpn.append(arguments.getText()).append(" ");
-					return onFunction(function, vec);
-				}
-				return super.onFunction(function, arguments);
+		for (String expression : expressions) {
+			Parser.Node root = Parser.parse(expression);
+			Expression compiled = Expression.compile(root, mathLibrary());
+			Expression.Frame frame = compiled.newFrame()
+					.set("x", x).set("y", y).set("z", z).set("w", w)
+					.setArray("vec", vec);
+			double expected = evaluator.evaluate(root);
+			double value = compiled.evaluate(frame);
+			if (Double.compare(expected, value) != 0) {
+				throw new Error("Expected value: `" + expected + "`, got: `" + value + "` for: " + expression);
 			}
+			System.out.println(value + " == compiled: `" + expression + "`");
+		}
 
-			int countArgs(Parser.Node node) {
-				if (node == null) {
-					return 0;
-				}
-				int count = 1;
-				while (node.getToken() == Lexer.Token.Coma) {
-					if (Lexer.Token.Coma.right2left) {
-						node = node.getRight();
-					} else {
-						node = node.getLeft();
+		// assignments and chains, see TestImage
+		Expression compiled = Expression.compile(Parser.parse("a = x * 2, a += 1, a *= a, b = a % 7, a / b"), mathLibrary());
+		Expression.Frame frame = compiled.newFrame().set("x", 3);
+		assertCompiled(49. / 0, compiled.evaluate(frame));
+		assertCompiled(49, frame.get(compiled.variable("a")));
+
+		assertCompiledError("3x", "Invalid value: Token.Value(`3x`), at position: 0");
+		assertCompiledError("3.14 & 1", "Invalid integer operation: Token.And(`&`), at position: 5");
+		assertCompiledError("vec[4]", "Index 4 out of bounds for length 4");
+		assertCompiledError("vec[.5]", "Invalid integer subscript: Token.Value(`.5`), at position: 4");
+		assertCompiledError("(0 ? 50) ? x : y", "Invalid operation: Token.Chk(`?`), at position: 3");
+		assertCompiledError("()", "Invalid function call: Token.Fun(`(`), at position: 0");
+		assertCompiledError("pi = 3", "Invalid assignment: Token.Set(`=`), at position: 3");
+		assertCompiledError("pow(1, 2, 3)", "Two arguments expected");
+		assertCompiledError("foo(1)", "Invalid function: foo");
+
+		// the same expression evaluated concurrently, each thread with its own frame
+		Expression shared = Expression.compile(Parser.parse("t = x * x + y, t < 50 ? sqrt(t) : t % 50"), mathLibrary());
+		Thread[] threads = new Thread[8];
+		Exception[] errors = new Exception[threads.length];
+		for (int i = 0; i < threads.length; i += 1) {
+			final int id = i;
+			threads[i] = new Thread(() -> {
+				Expression.Frame local = shared.newFrame();
+				try {
+					for (int n = 0; n < 100000; n += 1) {
+						double value = shared.evaluate(local.set("x", n % 13).set("y", id));
+						double t = (n % 13) * (n % 13) + id;
+						assertCompiled(t < 50 ? Math.sqrt(t) : t % 50, value);
 					}
-					count += 1;
+				} catch (Exception e) {
+					errors[id] = e;
 				}
-				return count;
+			});
+			threads[i].start();
+		}
+		for (int i = 0; i < threads.length; i += 1) {
+			threads[i].join();
+			if (errors[i] != null) {
+				throw errors[i];
 			}
+		}
+	}
 
-			@Override
-			public double evaluate(Parser.Node node) throws Error {
-				if (node.getToken() == Lexer.Token.Fun && node.getLeft() == null) {
-					return super.evaluate(node);
-				}
-
-				if (node.getToken() == Lexer.Token.Fun && node.getLeft() != null) {
-					double value = super.evaluate(node);
-					rpn.append(node.getLeft().getText()).append("(#").append(countArgs(node.getRight())).append(") ");
-					return value;
-				}
-
-				if (node.getToken() == Lexer.Token.Idx && node.getLeft() != null) {
-					double value = super.evaluate(node);
-					rpn.append(node.getLeft().getText()).append("[] ");
-					return value;
-				}
-
-				if (group && node != root) {
-					if (node.getLeft() != null || node.getRight() != null) {
-						rpn.append("(");
+	public static void testAccumulators() throws Exception {
+		Accumulators accumulators = new Accumulators();
+		accumulators.declareSum("total");
+		accumulators.declareSum("count");
+		accumulators.declare("calls", 0);
+		accumulators.declare("scale", 1);
+
+		Expression shared = Expression.compile(Parser.parse("total += x, count += 1, calls += 1, total -= 1, x"), mathLibrary(), accumulators);
+		Thread[] threads = new Thread[8];
+		Exception[] errors = new Exception[threads.length];
+		for (int i = 0; i < threads.length; i += 1) {
+			final int id = i;
+			threads[i] = new Thread(() -> {
+				Expression.Frame local = shared.newFrame();
+				try {
+					for (int n = 0; n < 10000; n += 1) {
+						shared.evaluate(local.set("x", n));
 					}
+				} catch (Exception e) {
+					errors[id] = e;
 				}
+			});
+			threads[i].start();
+		}
+		for (int i = 0; i < threads.length; i += 1) {
+			threads[i].join();
+			if (errors[i] != null) {
+				throw errors[i];
+			}
+		}
 
-				double value = super.evaluate(node);
-				rpn.append(node.getText());
+		Map<String, Double> snapshot = accumulators.snapshot();
+		assertCompiled(threads.length * (10000. * 9999 / 2 - 10000), snapshot.get("total"));
+		assertCompiled(threads.length * 10000., snapshot.get("count"));
+		assertCompiled(threads.length * 10000., snapshot.get("calls"));
 
-				if (group && node != root) {
-					if (node.getLeft() != null || node.getRight() != null) {
-						rpn.append(")");
-					}
-				}
-				if (node != root) {
-					rpn.append(" ");
-				}
-				return value;
-			}
+		// compare-and-set accumulators support all assignments, and can be read by the expressions
+		Expression scale = Expression.compile(Parser.parse("scale *= 4, scale /= 2, scale %= 7, scale + count"), mathLibrary(), accumulators);
+		assertCompiled(2 + threads.length * 10000., scale.evaluate(scale.newFrame()));
+		assertCompiled(2, accumulators.get("scale"));
 
-			@Override
-			public String toString() {
-				return rpn.toString().trim();
+		try {
+			Expression.compile(Parser.parse("total *= 2"), mathLibrary(), accumulators);
+			throw new Exception("Error expected");
+		} catch (Error e) {
+			if (!"Invalid accumulator assignment: Token.SetMul(`*=`), at position: 6".equals(e.getMessage())) {
+				throw e;
 			}
-		};
-		double value = evaluator.evaluate(root);
-		String evaluation = evaluator.toString();
+		}
+		System.out.println(snapshot + " == accumulators");
+	}
 
-		if (!(Math.abs(expected - value) <= epsilon)) {
-			if (!(Double.isNaN(expected) && Double.isNaN(value))) {
-				throw new Error("Expected value: `" + expected + "`, got: `" + value + "`");
+	public static void testRegistry() throws Exception {
+		List<Long> released = new ArrayList<>();
+		Registry registry = new Registry(version -> {
+			synchronized (released) {
+				released.add(version.getNumber());
 			}
+		});
+		registry.batch()
+				.put("a", Expression.compile(Parser.parse("0"), mathLibrary()))
+				.put("b", Expression.compile(Parser.parse("0"), mathLibrary()))
+				.commit();
+
+		// readers must always see both rules from the same batch
+		final int updates = 1000;
+		Thread[] readers = new Thread[4];
+		Exception[] errors = new Exception[readers.length];
+		for (int i = 0; i < readers.length; i += 1) {
+			final int id = i;
+			readers[i] = new Thread(() -> {
+				try {
+					double value = 0;
+					while (value < updates) {
+						try (Registry.Version version = registry.acquire()) {
+							Expression a = version.get("a");
+							Expression b = version.get("b");
+							value = a.evaluate(a.newFrame());
+							assertCompiled(value, b.evaluate(b.newFrame()));
+						}
+					}
+				} catch (Exception e) {
+					errors[id] = e;
+				}
+			});
+			readers[i].start();
 		}
-		if (rpn != null && !rpn.contentEquals(evaluation)) {
-			throw new Error("Expected value: `" + rpn + "`, got: `" + evaluation + "`");
+
+		Registry.Version retained = registry.acquire();
+		for (int n = 1; n <= updates; n += 1) {
+			registry.batch()
+					.put("a", Expression.compile(Parser.parse(String.valueOf(n)), mathLibrary()))
+					.put("b", Expression.compile(Parser.parse(n + " * 1"), mathLibrary()))
+					.commit();
 		}
-		if (!compare(root, ParserIterative.parse(new Lexer(expression)))) {
-			throw new Error("Expected same tree for recursive and iterative parsing");
+		for (int i = 0; i < readers.length; i += 1) {
+			readers[i].join();
+			if (errors[i] != null) {
+				throw errors[i];
+			}
 		}
-		System.out.println(value + " == expr: `" + expression + "`, eval: `" + evaluation + "`");
-	}
 
-	private static boolean compare(Parser.Node a, Parser.Node b) throws Error {
-		if (a == b) {
-			return true;
+		// versions are released when the last reader is done: all but the current and the retained one
+		synchronized (released) {
+			assertCompiled(updates, released.size());
+			assertCompiled(0, released.contains(retained.getNumber()) ? 1 : 0);
 		}
-		if (a == null || b == null) {
-			return false;
+		assertCompiled(0, retained.get("a").evaluate(retained.get("a").newFrame()));
+		retained.close();
+		retained.close();
+		synchronized (released) {
+			assertCompiled(updates + 1, released.size());
 		}
-		if (a.getToken() != b.getToken()) {
-			return false;
+
+		// closing a handle twice must not release the version of other readers
+		Registry.Version first = registry.acquire();
+		Registry.Version second = registry.acquire();
+		first.close();
+		first.close();
+		Registry.Batch batch = registry.batch().remove("b");
+		batch.commit();
+		synchronized (released) {
+			assertCompiled(updates + 1, released.size());
 		}
-		if (a.getLeft() != null && !compare(a.getLeft(), b.getLeft())) {
-			return false;
+		second.close();
+		synchronized (released) {
+			assertCompiled(updates + 2, released.size());
 		}
-		if (a.getRight() != null && !compare(a.getRight(), b.getRight())) {
-			return false;
+		try {
+			batch.commit();
+			throw new Error("Expected the second commit to fail");
+		} catch (IllegalStateException expected) {
+			// a batch is published only once
 		}
 
-		if (!a.getText().equals(b.getText())) {
-			throw new Error("Text does not match");
-		}
-		if (a.getPosition() != b.getPosition()) {
-			throw new Error("Position does not match");
+		if (registry.get("b") != null || registry.get("a") == null || registry.version() != updates + 2) {
+			throw new Error("Expected rule `b` to be removed");
 		}
-		return true;
+		System.out.println(registry.version() + " == registry versions");
 	}
 
-	static class EvaluatorMath extends Evaluator {
-		protected static final double nan = Double.NaN;
-		protected static final double inf = Double.POSITIVE_INFINITY;
-		protected static final double pi = Math.PI;
-		protected static final double e = Math.E;
+	public static void testRuleLoader() throws Exception {
+		Path file = Files.createTempFile("rules", ".txt");
+		try {
+			StringBuilder rules = new StringBuilder("# generated rules\n\n");
+			for (int i = 0; i < 10000; i += 1) {
+				rules.append("rule").append(i).append(": x > ").append(i).append(" ? x - ").append(i).append(" : 0\r\n");
+			}
+			Files.writeString(file, rules);
+
+			for (boolean lazy : new boolean[]{false, true}) {
+				Map<String, RuleLoader.Rule> loaded = RuleLoader.load(file, mathLibrary(), lazy);
+				assertCompiled(10000, loaded.size());
+				RuleLoader.Rule rule = loaded.get("rule42");
+				assertCompiled(45, rule.getLine());
+				assertCompiled(lazy ? 0 : 1, loaded.get("rule9999").isCompiled() ? 1 : 0);
+				Expression expression = rule.getExpression();
+				assertCompiled(58, expression.evaluate(expression.newFrame().set("x", 100)));
+				assertCompiled(lazy ? 0 : 1, loaded.get("rule9999").isCompiled() ? 1 : 0);
+			}
 
-		@Override
-		protected double onValue(String value) throws Error {
-			switch (value) {
-				case "nan":
-					return nan;
+			Files.writeString(file, "a: 1 + 2\nb: (1 + \n");
+			assertRuleError(file, false, file + ":2: Unary operator expected: Token.Undefined(``), at position: 6");
+			RuleLoader.load(file, mathLibrary(), true);
+			Files.writeString(file, "a: 1\n# comment\na: 2\n");
+			assertRuleError(file, true, file + ":3: Already defined: a");
+			Files.writeString(file, "a: 1\nb = 2\n");
+			assertRuleError(file, true, file + ":2: Rule expected: `name: expression`");
+		} finally {
+			Files.delete(file);
+		}
+	}
 
-				case "inf":
-					return inf;
+	public static void testArchive() throws Exception {
+		Path file = Files.createTempFile("expressions", ".bin");
+		try {
+			Accumulators accumulators = new Accumulators();
+			accumulators.declareSum("total");
+			Map<String, Expression> expressions = new LinkedHashMap<>();
+			expressions.put("select", Expression.compile(Parser.parse("x < y ? sin(x) * pi : vec[y] + 1.5e3"), mathLibrary()));
+			expressions.put("logic", Expression.compile(Parser.parse("(x && y) || 7 << 2, x += y, x"), mathLibrary()));
+			ExpressionArchive.write(file, expressions);
+
+			Map<String, Expression> loaded = ExpressionArchive.read(file, mathLibrary());
+			assertCompiled(2, loaded.size());
+			for (String name : expressions.keySet()) {
+				Expression expected = expressions.get(name);
+				Expression actual = loaded.get(name);
+				assertCompiled(expected.evaluate(expected.newFrame().set("x", 2).set("y", 3).setArray("vec", vec)),
+						actual.evaluate(actual.newFrame().set("x", 2).set("y", 3).setArray("vec", vec)));
+				assertCompiled(expected.evaluate(expected.newFrame().set("x", 5).set("y", 1).setArray("vec", vec)),
+						actual.evaluate(actual.newFrame().set("x", 5).set("y", 1).setArray("vec", vec)));
+			}
 
-				case "pi":
-					return pi;
+			expressions.put("shared", Expression.compile(Parser.parse("total += x * 2, total"), mathLibrary(), accumulators));
+			ExpressionArchive.write(file, expressions);
+			Expression shared = ExpressionArchive.read(file, mathLibrary(), accumulators).get("shared");
+			assertCompiled(4, shared.evaluate(shared.newFrame().set("x", 2)));
+			assertCompiled(10, shared.evaluate(shared.newFrame().set("x", 3)));
+
+			// errors are reported on the original nodes
+			Expression select = loaded.get("select");
+			try {
+				select.evaluate(select.newFrame().set("x", 5).set("y", 0.5).setArray("vec", vec));
+				throw new Error("Error expected");
+			} catch (Error e) {
+				if (!"Invalid integer subscript: Token.Value(`y`), at position: 26".equals(e.getMessage())) {
+					throw e;
+				}
+			}
+
+			// unknown functions, accumulators, and corrupted archives are rejected
+			try {
+				ExpressionArchive.read(file, mathLibrary(), new Accumulators());
+				throw new Error("Error expected");
+			} catch (Error e) {
+				if (!"Invalid accumulator: total".equals(e.getMessage())) {
+					throw e;
+				}
+			}
+			byte[] bytes = Files.readAllBytes(file);
+			bytes[bytes.length / 2] ^= 1;
+			Files.write(file, bytes);
+			try {
+				ExpressionArchive.read(file, mathLibrary(), accumulators);
+				throw new Error("Error expected");
+			} catch (IOException e) {
+				if (!"Invalid archive checksum".equals(e.getMessage())) {
+					throw e;
+				}
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	public static void testCache() throws Exception {
+		Path directory = Files.createTempDirectory("cache");
+		try {
+			ExpressionCache cache = new ExpressionCache(directory, "math", mathLibrary());
+			String source = "x < y ? sin(x) * pi : vec[y] + 1";
+			Expression compiled = cache.compile(Parser.parse(source));
+			Expression cached = new ExpressionCache(directory, "math", mathLibrary()).compile(Parser.parse(source));
+			assertCompiled(compiled.evaluate(compiled.newFrame().set("x", 2).set("y", 3)),
+					cached.evaluate(cached.newFrame().set("x", 2).set("y", 3)));
+
+			// the structure of the tree and the namespace are part of the key, positions and parenthesis are not
+			String key = cache.key(Parser.parse(source));
+			assertCompiled(1, key.equals(cache.key(Parser.parse(" " + source))) ? 1 : 0);
+			assertCompiled(1, key.equals(cache.key(Parser.parse("x<y?(sin(x)*pi):(vec[y]+1)"))) ? 1 : 0);
+			assertCompiled(0, key.equals(cache.key(Parser.parse("x < y ? sin(x) * pi : vec[y] - 1"))) ? 1 : 0);
+			assertCompiled(0, key.equals(new ExpressionCache(directory, "math-v2", mathLibrary()).key(Parser.parse(source))) ? 1 : 0);
+
+			cache.compile(Parser.parse(source));
+			assertCompiled(1, cache.getHits());
+			assertCompiled(1, cache.getMisses());
+
+			// corrupted entries are compiled and written again
+			Files.write(directory.resolve(key + ".expr"), new byte[]{1, 2, 3});
+			cache.compile(Parser.parse(source));
+			cache.compile(Parser.parse(source));
+			assertCompiled(2, cache.getHits());
+			assertCompiled(2, cache.getMisses());
+		} finally {
+			try (Stream<Path> files = Files.list(directory)) {
+				for (Path path : (Iterable<Path>) files::iterator) {
+					Files.delete(path);
+				}
+			}
+			Files.delete(directory);
+		}
+	}
+
+	public static void testCsvPipeline() throws Exception {
+		for (String number : new String[]{"0", "-0", "42", "+3.25", "1e3", "1.5E-7", "0.1", "000.000123", "123456789012345",
+				"1234567890123456789", "9007199254740993", "2.2250738585072014E-308", "1e400", "NaN", "-Infinity"}) {
+			ByteBuffer buffer = ByteBuffer.wrap((" " + number + " \r").getBytes());
+			assertCompiled(Double.parseDouble(number), CsvPipeline.parse(buffer, 0, buffer.limit()));
+		}
+		for (String number : new String[]{"", "-", ".", "e5", "1e", "0x10", "1d", "12a"}) {
+			try {
+				CsvPipeline.parse(ByteBuffer.wrap(number.getBytes()), 0, number.length());
+				throw new Error("Error expected");
+			} catch (Error e) {
+				if (!("Invalid number: `" + number + "`").equals(e.getMessage())) {
+					throw e;
+				}
+			}
+		}
+
+		Path input = Files.createTempFile("input", ".csv");
+		Path output = Files.createTempFile("output", ".csv");
+		try {
+			Expression expression = Expression.compile(Parser.parse("x < y ? y - x : x * y"), mathLibrary());
+			StringBuilder csv = new StringBuilder("id, y, name, x\r\n");
+			StringBuilder expected = new StringBuilder();
+			for (int i = 0; i < 1000; i += 1) {
+				double a = i * 0.25;
+				double b = 100 - i;
+				csv.append(i).append(',').append(b).append(",row").append(i).append(',').append(a).append("\r\n");
+				expected.append(a < b ? b - a : a * b).append('\n');
+			}
+			Files.writeString(input, csv);
+
+			// small chunks split the file into many parallel tasks
+			CsvPipeline pipeline = new CsvPipeline(expression, ',', 256, ForkJoinPool.commonPool());
+			assertCompiled(1000, pipeline.evaluate(input, output));
+			if (!expected.toString().equals(Files.readString(output))) {
+				throw new Error("Invalid output");
+			}
+
+			csv.setLength(0);
+			csv.append("x,y\n");
+			for (int i = 0; i < 100; i += 1) {
+				csv.append(i).append(',').append(i == 57 ? "?" : "1").append('\n');
+			}
+			Files.writeString(input, csv);
+			try {
+				pipeline.evaluate(input, output);
+				throw new Error("Error expected");
+			} catch (Error e) {
+				if (!(input + ":59: Invalid number: `?`").equals(e.getMessage())) {
+					throw e;
+				}
+			}
+
+			Files.writeString(input, "x,z\n1,2\n");
+			try {
+				pipeline.evaluate(input, output);
+				throw new Error("Error expected");
+			} catch (Error e) {
+				if (!(input + ":1: Missing column: y").equals(e.getMessage())) {
+					throw e;
+				}
+			}
+		} finally {
+			Files.delete(input);
+			Files.delete(output);
+		}
+	}
+
+	public static void testFlow() throws Exception {
+		Expression sum = Expression.compile(Parser.parse("x + y"), mathLibrary());
+		Expression count = Expression.compile(Parser.parse("n += 1"), mathLibrary());
+		// run the drains on the calling thread, so the buffering can be checked between the requests
+		FlowEvaluator processor = new FlowEvaluator(new String[]{"y", "x"}, new Expression[]{sum, count}, 16, Runnable::run);
+
+		long[] requested = {0};
+		processor.onSubscribe(new Flow.Subscription() {
+			@Override
+			public void request(long n) {
+				requested[0] += n;
+			}
+
+			@Override
+			public void cancel() {
+				throw new IllegalStateException("Not cancelled");
+			}
+		});
+
+		List<double[]> results = new ArrayList<>();
+		boolean[] complete = {false};
+		Flow.Subscription[] subscription = {null};
+		processor.subscribe(new Flow.Subscriber<>() {
+			@Override
+			public void onSubscribe(Flow.Subscription s) {
+				subscription[0] = s;
+			}
+
+			@Override
+			public void onNext(double[] item) {
+				results.add(item);
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				throw new IllegalStateException(throwable);
+			}
+
+			@Override
+			public void onComplete() {
+				complete[0] = true;
+			}
+		});
+
+		// without demand downstream, only two batches are requested upstream
+		assertCompiled(32, requested[0]);
+		int sent = 0;
+		while (sent < requested[0]) {
+			processor.onNext(new double[]{sent, 2 * sent});
+			sent += 1;
+		}
+		assertCompiled(32, requested[0]);
+		assertCompiled(0, results.size());
+
+		// the results are published in order as they are requested
+		for (int i = 0; i < 1000; i += 1) {
+			subscription[0].request(1);
+			while (sent < Math.min(requested[0], 1000)) {
+				processor.onNext(new double[]{sent, 2 * sent});
+				sent += 1;
+			}
+			if (requested[0] - results.size() > 32) {
+				throw new Error("Unbounded buffering: " + (requested[0] - results.size()));
+			}
+		}
+		processor.onComplete();
+		assertCompiled(1000, results.size());
+		assertCompiled(1, complete[0] ? 1 : 0);
+		for (int i = 0; i < results.size(); i += 1) {
+			assertCompiled(3 * i, results.get(i)[0]);
+			// variables missing from the records are reset for each record
+			assertCompiled(1, results.get(i)[1]);
+		}
+
+		// runtime exceptions of library functions are forwarded downstream
+		Expression failing = Expression.compile(Parser.parse("div(x, 0)"), new Expression.Library() {
+			@Override
+			public Double constant(String name) {
+				return null;
+			}
+
+			@Override
+			public Expression.Function function(String name, int arguments) {
+				return (args, offset, count) -> Math.floorDiv((long) args[offset], (long) args[offset + 1]);
+			}
+		});
+		FlowEvaluator failed = new FlowEvaluator(new String[]{"x"}, new Expression[]{failing}, 16, Runnable::run);
+		boolean[] cancelled = {false};
+		failed.onSubscribe(new Flow.Subscription() {
+			@Override
+			public void request(long n) {
+			}
+
+			@Override
+			public void cancel() {
+				cancelled[0] = true;
+			}
+		});
+		Throwable[] error = {null};
+		failed.subscribe(new Flow.Subscriber<>() {
+			@Override
+			public void onSubscribe(Flow.Subscription s) {
+				s.request(1);
+			}
+
+			@Override
+			public void onNext(double[] item) {
+				throw new IllegalStateException("Unexpected result");
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				error[0] = throwable;
+			}
+
+			@Override
+			public void onComplete() {
+				throw new IllegalStateException("Unexpected completion");
+			}
+		});
+		failed.onNext(new double[]{1});
+		if (!(error[0] instanceof ArithmeticException) || !cancelled[0]) {
+			throw new Error("Failure not forwarded: " + error[0]);
+		}
+	}
+
+	public static void testColumns() throws Exception {
+		// interleaved records of `x, y, weight` stored off-heap
+		int count = 100;
+		ByteBuffer records = ByteBuffer.allocateDirect(24 * count).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < count; i += 1) {
+			records.putDouble(i * 0.5).putDouble(count - i).putDouble(i % 4);
+		}
+		Column xs = Column.of(records, 0, 24, count);
+		Column ys = Column.of(records, 8, 24, count);
+		Column weights = Column.of(records, 16, 24, count);
+
+		Expression expression = Expression.compile(Parser.parse("(x < y ? y - x : x * y) * w[i]"), mathLibrary());
+		Expression.Frame frame = expression.newFrame()
+				.setColumn("x", xs)
+				.setColumn("y", ys)
+				.setArray("w", weights);
+		for (int i = 0; i < count; i += 1) {
+			double x = i * 0.5;
+			double y = count - i;
+			assertCompiled((x < y ? y - x : x * y) * (i % 4), expression.evaluate(frame.setRow(i).set("i", i)));
+		}
+
+		frame.set("i", count);
+		try {
+			expression.evaluate(frame);
+			throw new Error("Error expected");
+		} catch (Error e) {
+			if (!"Index 100 out of bounds for length 100".equals(e.getMessage())) {
+				throw e;
+			}
+		}
+		for (int row : new int[]{-1, count}) {
+			try {
+				frame.setRow(row);
+				throw new Error("Error expected");
+			} catch (Error e) {
+				if (e.getCode() != Error.Code.INVALID_SUBSCRIPT || !e.getMessage().equals("Index " + row + " out of bounds for length 100")) {
+					throw e;
+				}
+			}
+		}
+		try {
+			Column.of(records, 16, 24, count + 1);
+			throw new Error("Error expected");
+		} catch (IndexOutOfBoundsException e) {
+			// expected
+		}
+	}
+
+	public static void testBatchResolution() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<String> batches = new ArrayList<>();
+			List<String> lookups = new ArrayList<>();
+			BatchEvaluator evaluator = new BatchEvaluator() {
+				// stand-in of the reference-data service
+				final EvaluatorMath math = new EvaluatorMath();
+
+				@Override
+				protected CompletableFuture<?> resolve(Batch batch) {
+					return CompletableFuture.runAsync(() -> {
+						synchronized (batches) {
+							batches.add(batch.getNames() + " " + batch.getCalls());
+						}
+						for (String name : batch.getNames()) {
+							if (name.length() == 1) {
+								batch.set(name, name.charAt(0) - 'a');
+							}
+						}
+						for (Call call : batch.getCalls()) {
+							batch.set(call, 100 * call.getArguments()[0]);
+						}
+					}, executor);
+				}
+
+				@Override
+				protected boolean isPure(String function) {
+					return function.equals("rate");
+				}
+
+				@Override
+				protected boolean isLazy(String function) {
+					return function.equals("select");
+				}
+
+				@Override
+				protected double onFunction(String function, Arguments arguments) throws Error {
+					return arguments.get(0) != 0 ? arguments.get(1) : arguments.get(2);
+				}
+
+				@Override
+				public double evaluate(Parser.Node node) throws Error {
+					if (node.token == Lexer.Token.Coma) {
+						evaluate(node.left);
+						return evaluate(node.right);
+					}
+					return super.evaluate(node);
+				}
+
+				@Override
+				protected double onValue(String value) throws Error {
+					synchronized (lookups) {
+						lookups.add(value);
+					}
+					return math.onValue(value);
+				}
+
+				@Override
+				protected double onArray(String array, int subscript) throws Error {
+					return math.onArray(array, subscript);
+				}
+
+				@Override
+				protected double onFunction(String function, double[] arguments) throws Error {
+					if (function.equals("rate")) {
+						synchronized (lookups) {
+							lookups.add("rate");
+						}
+						return 100 * arguments[0];
+					}
+					return math.onFunction(function, arguments);
+				}
+			};
+
+			String expression = "c * rate(1 + 2) + rate(d) + max(pi, b) - 2";
+			assertCompiled(2 * 300 + 300 + Math.PI - 2, evaluator.evaluateAsync(Parser.parse(expression)).get());
+			assertCompiled(1, batches.size());
+			if (!"[c, d, pi, b] [rate(3.0)]".equals(batches.get(0))) {
+				throw new Error("Invalid batch: " + batches.get(0));
+			}
+			// only numbers and unresolved names are evaluated synchronously, constant arguments twice
+			if (!"[1, 2, 1, 2, pi, 2]".equals(lookups.toString())) {
+				throw new Error("Invalid lookups: " + lookups);
+			}
+
+			// overrides of the evaluator and lazy functions apply to the resolved evaluation
+			assertCompiled(200, evaluator.evaluateAsync(Parser.parse("select(c, rate(2), foo(b))")).get());
+			assertCompiled(4, evaluator.evaluateAsync(Parser.parse("b, c * 2")).get());
+
+			// many expressions are evaluated concurrently
+			List<CompletableFuture<Double>> futures = new ArrayList<>();
+			for (int i = 0; i < 100; i += 1) {
+				futures.add(evaluator.evaluateAsync(Parser.parse("rate(" + i + ") + b")));
+			}
+			for (int i = 0; i < futures.size(); i += 1) {
+				assertCompiled(100 * i + 1, futures.get(i).get());
+			}
+
+			try {
+				evaluator.evaluateAsync(Parser.parse("rate(1) + foo(b)")).join();
+				throw new Error("Error expected");
+			} catch (CompletionException e) {
+				if (!(e.getCause() instanceof Error)) {
+					throw e;
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public static void testLazyArguments() throws Exception {
+		List<String> evaluated = new ArrayList<>();
+		Evaluator evaluator = new EvaluatorMath() {
+			@Override
+			protected double onValue(String value) throws Error {
+				evaluated.add(value);
+				return super.onValue(value);
+			}
+
+			@Override
+			protected boolean isLazy(String function) {
+				return function.equals("iif") || function.equals("coalesce") || function.equals("twice");
+			}
+
+			@Override
+			protected double onFunction(String function, Arguments arguments) throws Error {
+				switch (function) {
+					case "iif":
+						require(arguments.size() == 3, "Three arguments expected");
+						return arguments.get(0) != 0 ? arguments.get(1) : arguments.get(2);
+
+					case "coalesce":
+						for (int i = 0; i < arguments.size(); i += 1) {
+							if (!Double.isNaN(arguments.get(i))) {
+								return arguments.get(i);
+							}
+						}
+						return Double.NaN;
+
+					case "twice":
+						// the value is evaluated only once
+						return arguments.get(0) + arguments.get(0);
+				}
+				return super.onFunction(function, arguments);
+			}
+		};
+
+		assertCompiled(2, evaluator.evaluate(Parser.parse("iif(1, 2, 3 / 0)")));
+		assertCompiled(5, evaluator.evaluate(Parser.parse("coalesce(nan, 5, 6 * 7, 8)")));
+		assertCompiled(4, evaluator.evaluate(Parser.parse("twice(2)")));
+		assertCompiled(3, evaluator.evaluate(Parser.parse("max(1, 3, 2)")));
+		if (!"[1, 2, nan, 5, 2, 1, 3, 2]".equals(evaluated.toString())) {
+			throw new Error("Invalid evaluations: " + evaluated);
+		}
+		try {
+			evaluator.evaluate(Parser.parse("iif(1, 2)"));
+			throw new Error("Error expected");
+		} catch (Error e) {
+			if (!"Three arguments expected".equals(e.getMessage())) {
+				throw e;
+			}
+		}
+	}
+
+	public static void testFunctionCache() throws Exception {
+		int[] calls = {0};
+		Evaluator evaluator = new EvaluatorMath() {
+			@Override
+			protected double onFunction(String function, double[] arguments) throws Error {
+				calls[0] += 1;
+				return super.onFunction(function, arguments);
+			}
+		};
+		FunctionCache cache = new FunctionCache(1024);
+		evaluator.setCache(cache);
+		// the capacity is never exceeded
+		assertCompiled(1024, cache.getCapacity());
+		assertCompiled(2, new FunctionCache(2).getCapacity());
+		assertCompiled(2, new FunctionCache(3).getCapacity());
+		assertCompiled(512, new FunctionCache(1000).getCapacity());
+		assertCompiled(2 * Math.pow(2, 10) + Math.log(8), evaluator.evaluate(Parser.parse("pow(2, 10) + pow(2, 10) + ln(8)")));
+		assertCompiled(Math.pow(2, -10), evaluator.evaluate(Parser.parse("pow(2, -10)")));
+		assertCompiled(3, calls[0]);
+		assertCompiled(1, cache.getHits());
+		assertCompiled(3, cache.getMisses());
+		assertCompiled(0.25, cache.getHitRate());
+
+		// -0 and 0 are different arguments
+		assertCompiled(Double.NEGATIVE_INFINITY, evaluator.evaluate(Parser.parse("1 / sign(-0)")));
+		assertCompiled(Double.POSITIVE_INFINITY, evaluator.evaluate(Parser.parse("1 / sign(0)")));
+
+		// compiled expressions share the cache through memoized functions
+		Expression.Library math = mathLibrary();
+		FunctionCache shared = new FunctionCache(64);
+		Expression expression = Expression.compile(Parser.parse("sin(x) + cos(x)"), new Expression.Library() {
+			@Override
+			public Double constant(String name) throws Error {
+				return math.constant(name);
+			}
+
+			@Override
+			public Expression.Function function(String name, int arguments) throws Error {
+				return shared.memoize(name, math.function(name, arguments));
+			}
+		});
+		List<Integer> values = new ArrayList<>();
+		for (int i = 0; i < 10000; i += 1) {
+			values.add(i % 100);
+		}
+		values.parallelStream().forEach(i -> {
+			try {
+				double value = expression.evaluate(expression.newFrame().set("x", i));
+				if (value != Math.sin(i) + Math.cos(i)) {
+					throw new IllegalStateException("Invalid value: " + value);
+				}
+			} catch (Error e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		assertCompiled(20000, shared.getHits() + shared.getMisses());
+		// 200 calls do not fit the 64 entries
+		if (shared.getEvictions() == 0 || shared.getMisses() < 200) {
+			throw new Error("Evictions expected");
+		}
+	}
+
+	public static void testFastMath() throws Exception {
+		Random random = new Random(42);
+		double[] wide = new double[100000];
+		double[] narrow = new double[100000];
+		double[] unit = new double[100000];
+		for (int i = 0; i < wide.length; i += 1) {
+			wide[i] = (random.nextDouble() - .5) * 2e5;
+			narrow[i] = (random.nextDouble() - .5) * 20;
+			unit[i] = random.nextDouble() * 2 - 1;
+		}
+		// arguments close to the zeros of sine and cosine
+		double[] multiples = new double[2000];
+		for (int i = 0; i < multiples.length; i += 1) {
+			multiples[i] = (i - 1000) * Math.PI / 2;
+		}
+
+		for (double[] arguments : new double[][]{wide, narrow, multiples}) {
+			assertRelativeError("sin", 1e-9, arguments, FastMath::sin, Math::sin);
+			assertRelativeError("cos", 1e-9, arguments, FastMath::cos, Math::cos);
+			assertRelativeError("tan", 1e-8, arguments, FastMath::tan, Math::tan);
+			assertRelativeError("atan", 1e-10, arguments, FastMath::atan, Math::atan);
+		}
+		for (double[] arguments : new double[][]{unit}) {
+			assertRelativeError("asin", 1e-9, arguments, FastMath::asin, Math::asin);
+			assertRelativeError("acos", 1e-9, arguments, FastMath::acos, Math::acos);
+		}
+		// special values are handled as by Math
+		for (double value : new double[]{0., -0., Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY}) {
+			assertCompiled(Math.sin(value), FastMath.sin(value));
+			assertCompiled(Math.tan(value), FastMath.tan(value));
+			assertCompiled(Math.atan(value), FastMath.atan(value));
+		}
+		// large arguments are delegated
+		assertCompiled(Math.sin(1e300), FastMath.sin(1e300));
+
+		// the precision is chosen when compiling
+		Expression fast = Expression.compile(Parser.parse("sin(x) + atan(x) + ln(x)"), mathLibrary(true));
+		Expression precise = Expression.compile(Parser.parse("sin(x) + atan(x) + ln(x)"), mathLibrary(false));
+		assertCompiled(FastMath.sin(3) + FastMath.atan(3) + Math.log(3), fast.evaluate(fast.newFrame().set("x", 3)));
+		assertCompiled(Math.sin(3) + Math.atan(3) + Math.log(3), precise.evaluate(precise.newFrame().set("x", 3)));
+
+		// speed of each function, compared to Math
+		benchmark("sin", narrow);
+		benchmark("cos", narrow);
+		benchmark("tan", narrow);
+		benchmark("atan", narrow);
+		benchmark("asin", unit);
+		benchmark("acos", unit);
+	}
+
+	public static void testSwitch() throws Exception {
+		// a chain of 500 arms, the last one unreachable, as its key is repeated
+		StringBuilder chain = new StringBuilder();
+		for (int i = 0; i < 500; i += 1) {
+			chain.append("code == ").append(i % 499).append(" ? ").append(1000 + i).append(" : ");
+		}
+		chain.append("-1");
+		Expression select = Expression.compile(Parser.parse(chain.toString()), mathLibrary());
+		assertCompiled(1, select.tables.length);
+		for (int code = -2; code < 502; code += 1) {
+			assertCompiled(code >= 0 && code < 499 ? 1000 + code : -1, select.evaluate(select.newFrame().set("code", code)));
+		}
+		assertCompiled(1000, select.evaluate(select.newFrame().set("code", -0.)));
+		assertCompiled(-1, select.evaluate(select.newFrame().set("code", 2.5)));
+		assertCompiled(-1, select.evaluate(select.newFrame().set("code", Double.NaN)));
+
+		// hashed keys, constants, and comparisons in any order
+		String source = "(x == -3 || 2.5 == x) || x == pi || x == 1e12 || x == 7 || (x == -0)";
+		Expression member = Expression.compile(Parser.parse(source), mathLibrary());
+		assertCompiled(1, member.tables.length);
+		for (double value : new double[]{-3, 2.5, Math.PI, 1e12, 7, 0, -0., 3, 1e12 + 1, Double.NaN, Double.POSITIVE_INFINITY}) {
+			boolean expected = value == -3 || value == 2.5 || value == Math.PI || value == 1e12 || value == 7 || value == 0;
+			assertCompiled(expected ? 1 : 0, member.evaluate(member.newFrame().set("x", value)));
+		}
+
+		// arms are evaluated only when selected, and the subject can be any expression without side effects
+		source = "vec[i + 1] == 1 ? (a = 10) : vec[i + 1] == 2 ? (a = 20) : vec[i + 1] == 3 ? (a = 30) : (vec[(i + 1)] == 4) ? (a = 40) : a";
+		Expression assign = Expression.compile(Parser.parse(source), mathLibrary());
+		assertCompiled(1, assign.tables.length);
+		Expression.Frame frame = assign.newFrame().setArray("vec", new double[]{0, 3}).set("i", 0).set("a", 5);
+		assertCompiled(30, assign.evaluate(frame));
+		assertCompiled(30, frame.get(assign.variable("a")));
+		frame = assign.newFrame().setArray("vec", new double[]{0, 5}).set("i", 0).set("a", 5);
+		assertCompiled(5, assign.evaluate(frame));
+
+		// different subjects, side effects, and short chains are compiled to jumps
+		String[] jumps = {
+				"x == 1 ? 1 : y == 2 ? 2 : x == 3 ? 3 : x == 4 ? 4 : 0",
+				"(x += 1) == 1 ? 1 : (x += 1) == 2 ? 2 : (x += 1) == 3 ? 3 : (x += 1) == 4 ? 4 : 0",
+				"f(x) == 1 || f(x) == 2 || f(x) == 3 || f(x) == 4",
+				"x == 1 ? 1 : x == 2 ? 2 : x == 3 ? 3 : 0",
+				"x == 1 || x == 2 || x == 3 || x == nan",
+				"x == 1 || x == 2 || x == 3 || x > 4",
+		};
+		Expression.Library library = mathLibrary();
+		Expression.Library counting = new Expression.Library() {
+			@Override
+			public Double constant(String name) throws Error {
+				return library.constant(name);
+			}
+
+			@Override
+			public Expression.Function function(String name, int arguments) throws Error {
+				if ("f".equals(name)) {
+					return (args, offset, count) -> args[offset];
+				}
+				return library.function(name, arguments);
+			}
+		};
+		for (String expression : jumps) {
+			Expression compiled = Expression.compile(Parser.parse(expression), counting);
+			assertCompiled(0, compiled.tables.length);
+		}
+
+		// the tables are stored by archives
+		Path file = Files.createTempFile("expressions", ".bin");
+		try {
+			Map<String, Expression> expressions = new LinkedHashMap<>();
+			expressions.put("select", select);
+			expressions.put("member", member);
+			ExpressionArchive.write(file, expressions);
+			Map<String, Expression> loaded = ExpressionArchive.read(file, mathLibrary());
+			Expression loadedSelect = loaded.get("select");
+			Expression loadedMember = loaded.get("member");
+			assertCompiled(1497, loadedSelect.evaluate(loadedSelect.newFrame().set("code", 497)));
+			assertCompiled(1, loadedMember.evaluate(loadedMember.newFrame().set("x", 1e12)));
+			assertCompiled(0, loadedMember.evaluate(loadedMember.newFrame().set("x", 1)));
+		} finally {
+			Files.delete(file);
+		}
+
+		// evaluation time no longer depends on the number of arms
+		Evaluator evaluator = new EvaluatorMath() {
+			@Override
+			protected double onValue(String value) throws Error {
+				return "code".equals(value) ? 498 : super.onValue(value);
+			}
+		};
+		Parser.Node root = Parser.parse(chain.toString());
+		Expression.Frame selectFrame = select.newFrame().set("code", 498);
+		long tableTime = Long.MAX_VALUE;
+		long treeTime = Long.MAX_VALUE;
+		double sum = 0;
+		for (int round = 0; round < 20; round += 1) {
+			long start = System.nanoTime();
+			for (int i = 0; i < 1000; i += 1) {
+				sum += select.evaluate(selectFrame);
+			}
+			tableTime = Math.min(tableTime, System.nanoTime() - start);
+			start = System.nanoTime();
+			for (int i = 0; i < 1000; i += 1) {
+				sum += evaluator.evaluate(root);
+			}
+			treeTime = Math.min(treeTime, System.nanoTime() - start);
+		}
+		System.out.printf("%.2f == speedup of jump table with 500 arms: %.1f ns, tree: %.1f ns (%s)%n",
+				(double) treeTime / tableTime, tableTime / 1000., treeTime / 1000., sum == 0 ? "-" : "+");
+	}
+
+	public static void testAdaptiveOrder() throws Exception {
+		double[] values = new double[3];
+		double[] array = {-1, -1};
+		class Variables extends EvaluatorMath {
+			int calls = 0;
+
+			@Override
+			protected double onValue(String value) throws Error {
+				switch (value) {
+					case "x":
+						return values[0];
+
+					case "y":
+						return values[1];
+
+					case "i":
+						return values[2];
+				}
+				return super.onValue(value);
+			}
+
+			@Override
+			protected double onArray(String name, int subscript) throws Error {
+				if ("vec".equals(name)) {
+					if (subscript < 0 || subscript >= array.length) {
+						throw new Error("Index " + subscript + " out of bounds for length " + array.length);
+					}
+					return array[subscript];
+				}
+				return super.onArray(name, subscript);
+			}
+
+			@Override
+			protected double onFunction(String function, double[] arguments) throws Error {
+				if ("slow".equals(function)) {
+					calls += 1;
+					double result = 0;
+					for (int i = 0; i < 200; i += 1) {
+						result += Math.sqrt(i + arguments[0]);
+					}
+					return result == 0 ? 0 : arguments[0];
+				}
+				return super.onFunction(function, arguments);
+			}
+		}
+		Variables plain = new Variables();
+		Variables adaptive = new Variables();
+		ShortCircuitProfile profile = new ShortCircuitProfile();
+		adaptive.setProfile(profile);
+
+		// operands which are not 0 or 1 are evaluated in order, returning the same values
+		assertCompiled(2, adaptive.evaluate(Parser.parse("1 && 2")));
+		assertCompiled(-0., adaptive.evaluate(Parser.parse("0 || -0")));
+		assertCompiled(3, adaptive.evaluate(Parser.parse("0 || 3 || 4")));
+		assertCompiled(0., adaptive.evaluate(Parser.parse("x > 0 || 0")));
+
+		// the cheap and selective operand is moved first
+		Parser.Node root = Parser.parse("slow(x) > 0 && (x >= 1 && y == 1)");
+		for (int i = 0; i < 20000; i += 1) {
+			values[0] = i % 7 + 1;
+			values[1] = i % 100 == 0 ? 1 : 0;
+			if (i == 15000) {
+				adaptive.calls = 0;
+			}
+			assertCompiled(plain.evaluate(root), adaptive.evaluate(root));
+		}
+		if (adaptive.calls > 500 || profile.getReorderings() == 0) {
+			throw new Error("Reordering expected, calls: " + adaptive.calls);
+		}
+		List<Parser.Node> order = profile.getOrder(root);
+		assertCompiled(3, order.size());
+		if (order.get(0).token != Lexer.Token.Eq) {
+			throw new Error("Invalid order: " + order);
+		}
+
+		// operands guarded by others are evaluated in the original order after the first failure
+		root = Parser.parse("slow(i) < 2 && vec[i] > 0");
+		for (int i = 0; i < 5000; i += 1) {
+			values[2] = i % 4;
+			assertCompiled(plain.evaluate(root), adaptive.evaluate(root));
+		}
+	}
+
+	public static void testRuleSet() throws Exception {
+		Random random = new Random(7);
+		String[] forms = {
+				"price > %1$d && region == %2$d",
+				"price >= %1$d && (price < %3$d)",
+				"score < %1$d",
+				"%1$d > score && score > -%2$d && region == %2$d",
+				"region == %2$d || price > %3$d",
+				"qty * 2 > %1$d && region <> 3",
+				"-%2$d < price && price <= -0",
+				"price > %3$d && price < %1$d",
+				"region == nan",
+				"price == pi && score >= %1$d",
+				"abs(price) > %1$d && region == %2$d",
+				"(price = score) && price > %1$d",
+				"(region += %2$d) == %2$d && region == %2$d",
+				"(qty = %1$d, region == %2$d && qty > %3$d)",
+		};
+		Map<String, Parser.Node> rules = new LinkedHashMap<>();
+		for (int i = 0; i < 2000; i += 1) {
+			String form = forms[i % forms.length];
+			int a = random.nextInt(100);
+			String source = String.format(form, a, random.nextInt(10), a + random.nextInt(20) - 5);
+			rules.put("rule" + i + ": " + source, Parser.parse(source));
+		}
+		RuleSet ruleSet = RuleSet.compile(rules, mathLibrary());
+		RuleSet.Matcher matcher = ruleSet.newMatcher();
+		List<Expression> expressions = new ArrayList<>();
+		for (Parser.Node root : rules.values()) {
+			expressions.add(Expression.compile(root, mathLibrary()));
+		}
+
+		// the same matches as evaluating all the rules
+		double[] special = {Double.NaN, -0., 0, Math.PI, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+		for (int record = 0; record < 500; record += 1) {
+			Map<String, Double> values = new LinkedHashMap<>();
+			for (String name : new String[]{"price", "region", "score", "qty"}) {
+				double value = random.nextInt(10) == 0 ? special[random.nextInt(special.length)] : random.nextInt(130) - 15;
+				values.put(name, value);
+				matcher.set(name, value);
+			}
+			List<String> expected = new ArrayList<>();
+			int i = 0;
+			for (String name : rules.keySet()) {
+				Expression expression = expressions.get(i++);
+				Expression.Frame frame = expression.newFrame();
+				for (Map.Entry<String, Double> value : values.entrySet()) {
+					frame.set(value.getKey(), value.getValue());
+				}
+				if (expression.evaluate(frame) != 0) {
+					expected.add(name);
+				}
+			}
+			List<String> actual = matcher.match();
+			if (!expected.equals(actual)) {
+				throw new Error("Record: " + values + ", expected: " + expected + ", got: " + actual);
+			}
+		}
+
+		// rules assigning their variables or calling impure functions are evaluated for each record
+		rules.clear();
+		rules.put("assigned", Parser.parse("(x = y) && x > 5"));
+		rules.put("impure", Parser.parse("tick() && x > 5"));
+		int[] ticks = {0};
+		RuleSet impure = RuleSet.compile(rules, new Expression.Library() {
+			@Override
+			public Double constant(String name) {
+				return null;
+			}
+
+			@Override
+			public Expression.Function function(String name, int arguments) {
+				return (args, offset, count) -> ++ticks[0];
+			}
+		});
+		RuleSet.Matcher unindexed = impure.newMatcher().set("x", 0).set("y", 10);
+		assertCompiled(1, unindexed.match().size());
+		assertCompiled(2, unindexed.getCandidates());
+		assertCompiled(1, ticks[0]);
+
+		// only the rules which might match are evaluated
+		rules.clear();
+		for (int i = 0; i < 100000; i += 1) {
+			String source = "price > " + (i % 500) + " && region == " + i / 100;
+			rules.put("rule" + i, Parser.parse(source));
+		}
+		ruleSet = RuleSet.compile(rules, mathLibrary());
+		matcher = ruleSet.newMatcher().set("region", 42).set("price", 250);
+		List<String> matches = matcher.match();
+		assertCompiled(50, matches.size());
+		assertCompiled(100, matcher.getCandidates());
+		assertCompiled(0, ruleSet.newMatcher().set("region", 1000).match().size());
+
+		// the best of the rounds, after the warmup: the same 10 regions are matched, so their frames are created once
+		long best = Long.MAX_VALUE;
+		long candidates = 0;
+		for (int round = 0; round < 50; round += 1) {
+			candidates = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < 1000; i += 1) {
+				matcher.set("region", i % 10 * 97).match();
+				candidates += matcher.getCandidates();
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		assertCompiled(100 * 1000, candidates);
+		System.out.printf("%.1f == ns per rule set match of 100000 rules, candidates: %.1f%n", best / 1000., candidates / 1000.);
+	}
+
+	public static void testFuel() throws Exception {
+		// each evaluated node consumes a unit
+		int[] calls = {0};
+		Evaluator evaluator = new EvaluatorMath() {
+			@Override
+			protected double onFunction(String function, double[] arguments) throws Error {
+				calls[0] += 1;
+				return super.onFunction(function, arguments);
+			}
+		};
+		Fuel fuel = new Fuel(5);
+		assertCompiled(7, evaluator.evaluate(Parser.parse("1 + 2 * 3"), fuel));
+		assertCompiled(5, fuel.getConsumed());
+		assertCompiled(7, evaluator.evaluate(Parser.parse("1 + 2 * 3"), fuel));
+		assertFuelExhausted("Fuel exhausted after 4 units: Token.Value(`3`), at position: 8",
+				() -> evaluator.evaluate(Parser.parse("1 + 2 * 3"), new Fuel(4)));
+		// without fuel, the evaluation is not limited
+		assertCompiled(7, evaluator.evaluate(Parser.parse("1 + 2 * 3")));
+
+		// expensive functions are not called if their cost exceeds the remaining fuel
+		Fuel expensive = new Fuel(100).declare("pow", 1000);
+		assertFuelExhausted("Fuel exhausted after 100 units: Token.Fun(`(`), at position: 7",
+				() -> evaluator.evaluate(Parser.parse("1 + pow(2, 3)"), expensive));
+		assertCompiled(0, calls[0]);
+		assertCompiled(0, expensive.getRemaining());
+
+		// each executed instruction consumes a unit, calls also consume their declared cost
+		Expression expression = Expression.compile(Parser.parse("1 + 2 * 3"), mathLibrary());
+		Expression.Frame frame = expression.newFrame().setFuel(fuel);
+		assertCompiled(7, expression.evaluate(frame));
+		assertCompiled(5, fuel.getConsumed());
+		assertCompiled(7, expression.evaluate(frame));
+		assertFuelExhausted("Fuel exhausted after 4 units: Token.Add(`+`), at position: 2",
+				() -> expression.evaluate(expression.newFrame().setFuel(new Fuel(4))));
+		Expression call = Expression.compile(Parser.parse("x < 0 ? pow(2, x) : x"), mathLibrary());
+		Expression.Frame callFrame = call.newFrame().setFuel(expensive);
+		assertCompiled(3, call.evaluate(callFrame.set("x", 3)));
+		assertFuelExhausted("Fuel exhausted after 100 units: Token.Fun(`(`), at position: 11",
+				() -> call.evaluate(callFrame.set("x", -3)));
+		assertCompiled(0.125, call.evaluate(callFrame.setFuel(null)));
+
+		// the consumed fuel is written back when a function fails
+		Expression failing = Expression.compile(Parser.parse("1 + fail(2)"), new Expression.Library() {
+			@Override
+			public Double constant(String name) {
+				return null;
+			}
+
+			@Override
+			public Expression.Function function(String name, int arguments) {
+				return (values, offset, count) -> {
+					throw new Error("Failed");
+				};
+			}
+		});
+		Fuel partial = new Fuel(100);
+		try {
+			failing.evaluate(failing.newFrame().setFuel(partial));
+			throw new Error("Error expected");
+		} catch (Error e) {
+			if (!"Failed".equals(e.getMessage())) {
+				throw e;
+			}
+		}
+		assertCompiled(3, partial.getConsumed());
+
+		// the size of the tree is checked while parsing
+		Parser.parse("1 + 2 * 3", 5, 3);
+		String[][] limits = {
+				{"1 + 2 * 3", "4", "3", "Expression too large, at most 4 nodes allowed: Token.Value(`3`), at position: 8"},
+				{"((((1))))", "100", "3", "Expression too deep, at most 3 levels allowed: Token.Fun(`(`), at position: 3"},
+				{"1+1+1+1+1", "100", "4", "Expression too deep, at most 4 levels allowed: Token.Value(`1`), at position: 2"},
+				{"-(-(-(1)))", "100", "5", "Expression too deep, at most 5 levels allowed: Token.Fun(`(`), at position: 5"},
+				{"(".repeat(100000) + "1" + ")".repeat(100000), "1000000", "100",
+						"Expression too deep, at most 100 levels allowed: Token.Fun(`(`), at position: 202"},
+		};
+		for (String[] limit : limits) {
+			try {
+				Parser.parse(limit[0], Integer.parseInt(limit[1]), Integer.parseInt(limit[2]));
+				throw new Error("Error expected");
+			} catch (Error e) {
+				if (!limit[3].equals(e.getMessage())) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	public static void testCostModel() throws Exception {
+		// nodes, calls and array accesses
+		CostModel model = new CostModel().declare("pow", 10);
+		CostModel.Estimate estimate = model.estimate(Parser.parse("1 + pow(2, 3) * vec[2]"));
+		assertCompiled(19, estimate.getCost());
+		assertCompiled(19, estimate.getMaxCost());
+		Map<String, Double> breakdown = estimate.getBreakdown();
+		assertCompiled(8, breakdown.get(CostModel.NODES));
+		assertCompiled(1, breakdown.get(CostModel.ARRAYS));
+		assertCompiled(10, breakdown.get("pow"));
+
+		// the right operand of `&&` and `||` is evaluated with the short-circuit probability
+		estimate = new CostModel().setShortCircuitProbability(.25).estimate(Parser.parse("a < 1 && b < 2"));
+		assertCompiled(1 + 3 + 3 * .25, estimate.getCost());
+		assertCompiled(7, estimate.getMaxCost());
+
+		// each branch of `?:` is evaluated with half of the probability, the worst case is the most expensive branch
+		estimate = model.estimate(Parser.parse("x < 0 ? pow(2, x) : x"));
+		assertCompiled(1 + 3 + (13 + 1) / 2., estimate.getCost());
+		assertCompiled(1 + 3 + 13, estimate.getMaxCost());
+
+		// the worst case is an upper bound of the fuel consumed by the evaluator, with the same costs
+		Evaluator evaluator = new EvaluatorMath() {
+			@Override
+			protected double onValue(String value) throws Error {
+				if (value.equals("x")) {
+					return -3;
+				}
+				return super.onValue(value);
+			}
+		};
+		String[] expressions = {"1 + 2 * 3", "1 + pow(2, 3)", "x < 0 ? pow(2, x) : x", "(x | 2) + (x < 2)", "~x & 3 | -(x << 1) ^ (x == 2)"};
+		for (String expression : expressions) {
+			Fuel fuel = new Fuel(1000).declare("pow", 10);
+			Parser.Node root = TypeInference.infer(Parser.parse(expression), name -> name.equals("x"));
+			evaluator.evaluate(root, fuel);
+			assertCompiled(model.estimate(root).getMaxCost(), fuel.getConsumed());
+		}
+
+		// partitions balanced by cost instead of by count
+		List<Parser.Node> roots = new ArrayList<>();
+		roots.add(Parser.parse("pow(2, 3) + pow(3, 2)"));
+		for (int i = 0; i < 20; i += 1) {
+			roots.add(Parser.parse("1 + " + i));
+		}
+		List<List<Parser.Node>> partitions = model.partition(roots, 2);
+		assertCompiled(2, partitions.size());
+		assertCompiled(1 + 20, partitions.get(0).size() + partitions.get(1).size());
+		// 27 for the calls, and 3 for each sum: the calls with 6 sums, and 14 sums
+		assertCompiled(7, partitions.get(0).size());
+		assertCompiled(14, partitions.get(1).size());
+		if (partitions.get(0).get(0) != roots.get(0)) {
+			throw new Error("Expected the calls in the first partition");
+		}
+	}
+
+	public static void testValidation() throws Exception {
+		// errors are reported as structured results, without stack traces
+		Error error = Error.validate(() -> Parser.parse("1 + * 2"));
+		if (error == null || error.getStackTrace().length != 0) {
+			throw new Error("Stackless error expected");
+		}
+		if (!"Unary operator expected".equals(error.getReason()) || error.getToken() != Lexer.Token.Mul || error.getCode() != Error.Code.SYNTAX) {
+			throw new Error("Unexpected error: " + error.getReason() + ", " + error.getToken());
+		}
+		assertCompiled(4, error.getPosition());
+		assertCompiled(5, error.getEnd());
+		if (!"*".equals(error.getText())) {
+			throw new Error("Unexpected text: " + error.getText());
+		}
+		if (!"Unary operator expected: Token.Mul(`*`), at position: 4".equals(error.getMessage())) {
+			throw error;
+		}
+
+		// the message is the same as of the thrown error
+		try {
+			Parser.parse("1 + * 2");
+			throw new Error("Error expected");
+		} catch (Error e) {
+			if (!error.getMessage().equals(e.getMessage())) {
+				throw e;
+			}
+			if (e.getStackTrace().length == 0) {
+				throw new Error("Stack trace expected outside of validation");
+			}
+		}
+
+		// evaluation errors, and valid expressions
+		Evaluator evaluator = new EvaluatorMath();
+		Parser.Node root = Parser.parse("1 + y");
+		error = Error.validate(() -> evaluator.evaluate(root));
+		if (error == null || error.getToken() != Lexer.Token.Value || error.getCode() != Error.Code.INVALID_VALUE) {
+			throw new Error("Error expected");
+		}
+		assertCompiled(4, error.getPosition());
+		if (Error.validate(() -> evaluator.evaluate(Parser.parse("1 + pow(2, 3)"))) != null) {
+			throw new Error("Valid expression expected");
+		}
+
+		// errors are classified by code
+		String[][] codes = {
+				{"1 + (2", "SYNTAX"},
+				{"((((((1))))))", "LIMIT"},
+				{"1 + foo(2)", "INVALID_FUNCTION"},
+				{"sin(1, 2)", "INVALID_ARGUMENTS"},
+				{"vec[1.5]", "INVALID_SUBSCRIPT"},
+				{"1.5 | 2", "INVALID_OPERATION"},
+		};
+		for (String[] code : codes) {
+			Error classified = Error.validate(() -> evaluator.evaluate(Parser.parse(code[0], 100, 5)));
+			if (classified == null || classified.getCode() != Error.Code.valueOf(code[1])) {
+				throw new Error("Expected " + code[1] + " for `" + code[0] + "`, got: " + (classified == null ? null : classified.getCode()));
+			}
+		}
+		Error exhausted = Error.validate(() -> evaluator.evaluate(Parser.parse("1 + 2"), new Fuel(1)));
+		if (exhausted == null || exhausted.getCode() != Error.Code.FUEL_EXHAUSTED) {
+			throw new Error("Fuel exhausted expected");
+		}
+
+		// errors located in a file keep the location and the code of the expression
+		error = new Error("rules.txt", 3, error);
+		assertCompiled(4, error.getPosition());
+		if (error.getCode() != Error.Code.INVALID_VALUE) {
+			throw new Error("Code expected: " + error.getCode());
+		}
+		if (!error.getMessage().startsWith("rules.txt:3: ")) {
+			throw new Error("File location expected: " + error.getMessage());
+		}
+
+		// rejecting costs the parsing and the unwinding, without the stack trace
+		String valid = "1 + (2 * 3)";
+		String invalid = "1 + (2 * 3";
+		long validTime = Long.MAX_VALUE;
+		long invalidTime = Long.MAX_VALUE;
+		long thrownTime = Long.MAX_VALUE;
+		int rejected = 0;
+		for (int round = 0; round < 100; round += 1) {
+			long start = System.nanoTime();
+			for (int i = 0; i < 1000; i += 1) {
+				rejected += Error.validate(() -> Parser.parse(valid)) != null ? 1 : 0;
+			}
+			validTime = Math.min(validTime, System.nanoTime() - start);
+			start = System.nanoTime();
+			for (int i = 0; i < 1000; i += 1) {
+				rejected += Error.validate(() -> Parser.parse(invalid)) != null ? 1 : 0;
+			}
+			invalidTime = Math.min(invalidTime, System.nanoTime() - start);
+			start = System.nanoTime();
+			for (int i = 0; i < 1000; i += 1) {
+				// the same work as the validation: the error is counted, its message is not formatted
+				Error thrown = null;
+				try {
+					Parser.parse(invalid);
+				} catch (Error e) {
+					thrown = e;
+				}
+				rejected += thrown != null ? 1 : 0;
+			}
+			thrownTime = Math.min(thrownTime, System.nanoTime() - start);
+		}
+		assertCompiled(200000, rejected);
+		System.out.printf("%.2f == speedup of stackless rejection: %.1f ns, thrown: %.1f ns, accepted: %.1f ns%n",
+				(double) thrownTime / invalidTime, invalidTime / 1000., thrownTime / 1000., validTime / 1000.);
+	}
+
+	public static void testAnalysis() throws Exception {
+		// the analysis accepts and rejects the same expressions as the parser, with the same errors
+		String[] expressions = {
+				"x < 0 ? pow(2, x) : x", "x = y + vec[i, j]", "f(a)[b]", "-f(x)", "(1)(2)", "f()", "a ? b : c ? d : e",
+				"1 2", "1 + (2 * 3", "1 + * 2", "-2 ** 3", "1 +", "", "a)", "f(1,)", "x[]",
+		};
+		// a reused analysis gives the same results as a new one, the errors have no stack traces
+		Parser.Analysis reused = new Parser.Analysis();
+		for (String expression : expressions) {
+			String expected = null;
+			try {
+				Parser.parse(expression);
+			} catch (Error e) {
+				expected = e.getMessage();
+			}
+			Parser.Analysis analysis = Parser.analyze(expression);
+			String actual = analysis.isValid() ? null : analysis.getError().getMessage();
+			if (expected == null ? actual != null : !expected.equals(actual)) {
+				throw new Error("Analysis of `" + expression + "`: " + actual + ", expected: " + expected);
+			}
+			String again = reused.analyze(expression).isValid() ? null : reused.getError().getMessage();
+			if (expected == null ? again != null : !expected.equals(again)) {
+				throw new Error("Reused analysis of `" + expression + "`: " + again + ", expected: " + expected);
+			}
+			if (!reused.getVariables().equals(analysis.getVariables()) || !reused.getFunctions().equals(analysis.getFunctions())) {
+				throw new Error("Reused analysis of `" + expression + "`: " + reused.getVariables() + reused.getFunctions());
+			}
+			if (!reused.isValid() && reused.getError().getStackTrace().length != 0) {
+				throw new Error("Stackless error expected");
+			}
+			for (int depth = 1; depth < 6; depth += 1) {
+				for (int nodes = 1; nodes < 12; nodes += 2) {
+					boolean valid = true;
+					try {
+						Parser.parse(expression, nodes, depth);
+					} catch (Error e) {
+						valid = false;
+					}
+					if (valid != Parser.analyze(expression, nodes, depth).isValid()) {
+						throw new Error("Analysis of `" + expression + "` with limits: " + nodes + ", " + depth);
+					}
+				}
+			}
+		}
+
+		// referenced symbols, the names of the functions and of the arrays are not variables
+		Parser.Analysis analysis = Parser.analyze("pow(x, sin(y), (1, 2)) + vec[i] * sin(y, z) - -f(w)");
+		if (!analysis.isValid()) {
+			throw analysis.getError();
+		}
+		if (!List.of("x", "y", "i", "z", "f", "w").equals(new ArrayList<>(analysis.getVariables()))) {
+			throw new Error("Unexpected variables: " + analysis.getVariables());
+		}
+		if (!List.of("vec").equals(new ArrayList<>(analysis.getArrays()))) {
+			throw new Error("Unexpected arrays: " + analysis.getArrays());
+		}
+		// `-f(w)` calls the result of the negation, which is not a function name
+		if (!"{sin=[1, 2], pow=[3]}".equals(analysis.getFunctions().toString())) {
+			throw new Error("Unexpected functions: " + analysis.getFunctions());
+		}
+		if (!Parser.analyze("1 + 2 * 3").getVariables().isEmpty()) {
+			throw new Error("Literals are not variables");
+		}
+
+		// the symbols referenced before the error
+		analysis = Parser.analyze("a + f(b, c) + ");
+		if (analysis.isValid() || analysis.getError().getPosition() != 14) {
+			throw new Error("Error expected at the end of the input");
+		}
+		if (!"[a, b, c]{f=[2]}".equals(analysis.getVariables().toString() + analysis.getFunctions())) {
+			throw new Error("Unexpected symbols: " + analysis.getVariables() + analysis.getFunctions());
+		}
+
+		// a reused analysis allocates nothing, and takes less time than building the tree
+		String expression = "x < 0 ? pow(2, x) + vec[i] : sqrt(x * x + y * y) / (1 + abs(y))";
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long analyzeBytes = Long.MAX_VALUE;
+		long parseBytes = Long.MAX_VALUE;
+		long analyzeTime = Long.MAX_VALUE;
+		long parseTime = Long.MAX_VALUE;
+		int count = 0;
+		// the parser is already compiled by the previous tests, warm up the analysis before measuring
+		for (int i = 0; i < 200000; i += 1) {
+			count -= reused.analyze(expression).isValid() ? 1 : 0;
+		}
+		count += 200000;
+		for (int round = 0; round < 100; round += 1) {
+			long bytes = threads.getThreadAllocatedBytes(thread);
+			long start = System.nanoTime();
+			for (int i = 0; i < 1000; i += 1) {
+				count += reused.analyze(expression).isValid() ? 1 : 0;
+			}
+			analyzeTime = Math.min(analyzeTime, System.nanoTime() - start);
+			analyzeBytes = Math.min(analyzeBytes, threads.getThreadAllocatedBytes(thread) - bytes);
+			bytes = threads.getThreadAllocatedBytes(thread);
+			start = System.nanoTime();
+			for (int i = 0; i < 1000; i += 1) {
+				count += Parser.parse(expression) != null ? 1 : 0;
+			}
+			parseTime = Math.min(parseTime, System.nanoTime() - start);
+			parseBytes = Math.min(parseBytes, threads.getThreadAllocatedBytes(thread) - bytes);
+		}
+		assertCompiled(100 * 1000 * 2, count);
+		System.out.printf("%.2f == speedup of syntax analysis: %d bytes, %.1f ns, parse: %d bytes, %.1f ns%n",
+				(double) parseTime / analyzeTime, analyzeBytes / 1000, analyzeTime / 1000., parseBytes / 1000, parseTime / 1000.);
+	}
+
+	interface Evaluation {
+		double evaluate() throws Error;
+	}
+
+	private static void assertFuelExhausted(String message, Evaluation evaluation) throws Error {
+		try {
+			evaluation.evaluate();
+		} catch (FuelExhausted e) {
+			if (message.equals(e.getMessage())) {
+				return;
+			}
+			throw e;
+		}
+		throw new Error("Error expected");
+	}
+
+	private static void assertRelativeError(String name, double bound, double[] arguments, DoubleUnaryOperator fast, DoubleUnaryOperator precise) throws Error {
+		for (double argument : arguments) {
+			double expected = precise.applyAsDouble(argument);
+			double actual = fast.applyAsDouble(argument);
+			if (Double.compare(expected, actual) == 0) {
+				// also infinities and NaN
+				continue;
+			}
+			double error = expected == 0 ? Math.abs(actual) : Math.abs((actual - expected) / expected);
+			if (!(error <= bound)) {
+				throw new Error(name + "(" + argument + "): relative error: " + error + ", expected at most: " + bound);
+			}
+		}
+	}
+
+	private static void benchmark(String name, double[] arguments) {
+		double sum = 0;
+		long fastTime = Long.MAX_VALUE;
+		long preciseTime = Long.MAX_VALUE;
+		// the best of the rounds, after the warmup
+		for (int round = 0; round < 20; round += 1) {
+			long start = System.nanoTime();
+			sum += run(name, true, arguments);
+			fastTime = Math.min(fastTime, System.nanoTime() - start);
+			start = System.nanoTime();
+			sum += run(name, false, arguments);
+			preciseTime = Math.min(preciseTime, System.nanoTime() - start);
+		}
+		System.out.printf("%.2f == speedup of fast %s: %.1f ns, precise: %.1f ns (%s)%n",
+				(double) preciseTime / fastTime, name, (double) fastTime / arguments.length,
+				(double) preciseTime / arguments.length, sum == 0 ? "-" : "+");
+	}
+
+	// a loop for each function, so the calls are not dispatched through an interface
+	private static double run(String name, boolean fast, double[] arguments) {
+		double sum = 0;
+		switch (name) {
+			case "sin":
+				for (double x : arguments) {
+					sum += fast ? FastMath.sin(x) : Math.sin(x);
+				}
+				break;
+
+			case "cos":
+				for (double x : arguments) {
+					sum += fast ? FastMath.cos(x) : Math.cos(x);
+				}
+				break;
+
+			case "tan":
+				for (double x : arguments) {
+					sum += fast ? FastMath.tan(x) : Math.tan(x);
+				}
+				break;
+
+			case "atan":
+				for (double x : arguments) {
+					sum += fast ? FastMath.atan(x) : Math.atan(x);
+				}
+				break;
+
+			case "asin":
+				for (double x : arguments) {
+					sum += fast ? FastMath.asin(x) : Math.asin(x);
+				}
+				break;
+
+			case "acos":
+				for (double x : arguments) {
+					sum += fast ? FastMath.acos(x) : Math.acos(x);
+				}
+				break;
+		}
+		return sum;
+	}
+
+	private static void assertRuleError(Path file, boolean lazy, String message) throws Exception {
+		try {
+			RuleLoader.load(file, mathLibrary(), lazy);
+		} catch (Error e) {
+			if (message.equals(e.getMessage())) {
+				return;
+			}
+			throw e;
+		}
+		throw new Error("Error expected");
+	}
+
+	private static void assertCompiled(double expected, double value) throws Error {
+		if (Double.compare(expected, value) != 0) {
+			throw new Error("Expected value: `" + expected + "`, got: `" + value + "`");
+		}
+	}
+
+	private static void assertCompiledError(String expression, String message) throws Error {
+		try {
+			Expression compiled = Expression.compile(Parser.parse(expression), mathLibrary());
+			compiled.evaluate(compiled.newFrame().setArray("vec", vec));
+		} catch (Error e) {
+			if (message.equals(e.getMessage())) {
+				return;
+			}
+			throw e;
+		}
+		throw new Error("Error expected");
+	}
+
+	/**
+	 * Library of the constants and functions of {@code EvaluatorMath} for compiled expressions.
+	 */
+	static Expression.Library mathLibrary() {
+		return mathLibrary(false);
+	}
+
+	/**
+	 * Library of the math evaluator, the precision of the functions is chosen when compiling an expression.
+	 *
+	 * @param fast use the approximations of {@code FastMath}.
+	 */
+	static Expression.Library mathLibrary(boolean fast) {
+		final EvaluatorMath math = fast ? new EvaluatorFastMath() : new EvaluatorMath();
+		return new Expression.Library() {
+			@Override
+			public Double constant(String name) {
+				switch (name) {
+					case "nan":
+						return EvaluatorMath.nan;
+
+					case "inf":
+						return EvaluatorMath.inf;
+
+					case "pi":
+						return EvaluatorMath.pi;
+
+					case "e":
+						return EvaluatorMath.e;
+				}
+				return null;
+			}
+
+			@Override
+			public Expression.Function function(String name, int arguments) throws Error {
+				// validate the name and the number of arguments
+				math.onFunction(name, new double[arguments]);
+				return (args, offset, count) -> math.onFunction(name, Arrays.copyOfRange(args, offset, offset + count));
+			}
+
+			@Override
+			public boolean isPure(String name) {
+				return true;
+			}
+		};
+	}
+
+	public static void testPowers() throws Error {
+		if (!Lexer.Token.Pow.right2left) {
+			// Pow should be right to left associative, with higher precedence than unary operators:
+			// https://developer.mozilla.org/en-US/docs/Web/JavaScript/Reference/Operators/Exponentiation
+			assertEquals(Math.pow(Math.pow(2, 3), 4), "2 ** 3 ** 4", epsilon, false, "2 3 ** 4 **");
+			assertEquals(4, "-2 ** 2", epsilon, false, "2 - 2 **");
+			assertEquals(4, "(-2) ** 2", epsilon, false, "2 - 2 **");
+			assertEquals(.25, "-2 ** -2", epsilon, false, "2 - 2 - **");
+			assertEquals(.25, "(-2) ** -2", epsilon, false, "2 - 2 - **");
+			return;
+		}
+
+		assertEquals(Math.pow(2, Math.pow(3, 4)), "2 ** 3 ** 4", epsilon, false, "2 3 4 ** **");
+		assertEquals(4, "2 ** 2", epsilon, false, "2 2 **");
+		assertEquals(.25, "2 ** -2", epsilon, false, "2 2 - **");
+
+		assertError("-2 ** 2", "Precedence error, consider using parenthesis around: Token.Pow(`**`), at position: 3");
+		assertEquals(-4, "-(2 ** 2)", epsilon, false, "2 2 ** -");
+		assertError("-2 ** -2", "Precedence error, consider using parenthesis around: Token.Pow(`**`), at position: 3");
+		assertEquals(-.25, "-(2 ** -2)", epsilon, false, "2 2 - ** -");
+		assertEquals(1, "ln(e)", epsilon, false, "e ln(#1)");
+		assertEquals(1, "log(e)", epsilon, false, "e log(#1)");
+		assertEquals(1, "log(10, 10)", epsilon, false, "10 10 log(#2)");
+		assertEquals(2, "log(100, 10)", epsilon, false, "100 10 log(#2)");
+		assertEquals(8, "log(256, 2)", epsilon, false, "256 2 log(#2)");
+	}
+
+	private static void assertError(String expression, String message) throws Error {
+		try {
+			assertEquals(Double.NaN, expression, 0, false, null);
+		} catch (Exception e) {
+			if (message != null && message.equals(e.getMessage())) {
+				return;
+			}
+			throw e;
+		}
+		throw new Error("Error expected");
+	}
+
+	private static void assertEquals(double expected, String expression, double epsilon, boolean group, String rpn) throws Error {
+		Parser.Node root = Parser.parse(expression);
+		// Evaluator which appends to the out buffer the evaluated values (in reverse polish notation)
+		// also allows evaluation of invalid structures like: `[]`, `()`, `[x]`, `x[]`, ...
+		Evaluator evaluator = new EvaluatorMath() {
+
+			final StringBuilder rpn = new StringBuilder();
+
+			@Override
+			protected double onValue(String value) throws Error {
+				switch (value) {
+					case "x":
+						return x;
+
+					case "y":
+						return y;
+
+					case "z":
+						return z;
+
+					case "w":
+						return w;
+				}
+				return super.onValue(value);
+			}
+
+			@Override
+			protected double onArray(String array, int subscript) throws Error {
+				// allow `vec` to be indexed with numbers: vec[0], vec[1], vec[2], vec[3]
+				if ("vec".equals(array)) {
+					return vec[subscript];
+				}
+				return super.onArray(array, subscript);
+			}
+
+			@Override
+			protected double onArray(String array, Parser.Node property) throws Error {
+				// allow `vec` to be indexed with x, y, z, w: vec[x], vec[y], vec[z], vec[w]
+				if ("vec".equals(array)) {
+					switch (property.getText()) {
+						case "x":
+							rpn.append(property.getText()).append(" ");
+							return vec[0];
+
+						case "y":
+							rpn.append(property.getText()).append(" ");
+							return vec[1];
+
+						case "z":
+							rpn.append(property.getText()).append(" ");
+							return vec[2];
+
+						case "w":
+							rpn.append(property.getText()).append(" ");
+							return vec[3];
+					}
+				}
+				return super.onArray(array, property);
+			}
+
+			@Override
+			protected double onFunction(String function, Parser.Node arguments) throws Error {
+				// allow `vec` to be passed to functions as an array: min(vec), max(vec), ...
+				if (arguments != null && arguments.getText().equals("vec")) {
+					rpn.append(arguments.getText()).append(" ");
+					return onFunction(function, vec);
+				}
+				return super.onFunction(function, arguments);
+			}
+
+			int countArgs(Parser.Node node) {
+				if (node == null) {
+					return 0;
+				}
+				int count = 1;
+				while (node.getToken() == Lexer.Token.Coma) {
+					if (Lexer.Token.Coma.right2left) {
+						node = node.getRight();
+					} else {
+						node = node.getLeft();
+					}
+					count += 1;
+				}
+				return count;
+			}
+
+			@Override
+			public double evaluate(Parser.Node node) throws Error {
+				if (node.getToken() == Lexer.Token.Fun && node.getLeft() == null) {
+					return super.evaluate(node);
+				}
+
+				if (node.getToken() == Lexer.Token.Fun && node.getLeft() != null) {
+					double value = super.evaluate(node);
+					rpn.append(node.getLeft().getText()).append("(#").append(countArgs(node.getRight())).append(") ");
+					return value;
+				}
+
+				if (node.getToken() == Lexer.Token.Idx && node.getLeft() != null) {
+					double value = super.evaluate(node);
+					rpn.append(node.getLeft().getText()).append("[] ");
+					return value;
+				}
+
+				if (group && node != root) {
+					if (node.getLeft() != null || node.getRight() != null) {
+						rpn.append("(");
+					}
+				}
+
+				double value = super.evaluate(node);
+				rpn.append(node.getText());
+
+				if (group && node != root) {
+					if (node.getLeft() != null || node.getRight() != null) {
+						rpn.append(")");
+					}
+				}
+				if (node != root) {
+					rpn.append(" ");
+				}
+				return value;
+			}
+
+			@Override
+			public String toString() {
+				return rpn.toString().trim();
+			}
+		};
+		double value = evaluator.evaluate(root);
+		String evaluation = evaluator.toString();
+
+		if (!(Math.abs(expected - value) <= epsilon)) {
+			if (!(Double.isNaN(expected) && Double.isNaN(value))) {
+				throw new Error("Expected value: `" + expected + "`, got: `" + value + "`");
+			}
+		}
+		if (rpn != null && !rpn.contentEquals(evaluation)) {
+			throw new Error("Expected value: `" + rpn + "`, got: `" + evaluation + "`");
+		}
+		if (!compare(root, ParserIterative.parse(new Lexer(expression)))) {
+			throw new Error("Expected same tree for recursive and iterative parsing");
+		}
+		System.out.println(value + " == expr: `" + expression + "`, eval: `" + evaluation + "`");
+	}
+
+	private static boolean compare(Parser.Node a, Parser.Node b) throws Error {
+		if (a == b) {
+			return true;
+		}
+		if (a == null || b == null) {
+			return false;
+		}
+		if (a.getToken() != b.getToken()) {
+			return false;
+		}
+		if (a.getLeft() != null && !compare(a.getLeft(), b.getLeft())) {
+			return false;
+		}
+		if (a.getRight() != null && !compare(a.getRight(), b.getRight())) {
+			return false;
+		}
+
+		if (!a.getText().equals(b.getText())) {
+			throw new Error("Text does not match");
+		}
+		if (a.getPosition() != b.getPosition()) {
+			throw new Error("Position does not match");
+		}
+		return true;
+	}
+
+	/**
+	 * Math evaluator using the approximations of {@code FastMath}, with a relative error below 1e-7.
+	 * Only the trigonometric functions are substituted: exp, ln, pow and asinh are not faster than {@code Math}.
+	 */
+	static class EvaluatorFastMath extends EvaluatorMath {
+		@Override
+		protected double onFunction(String function, double[] arguments) throws Error {
+			switch (function) {
+				case "sin":
+					require(arguments.length == 1, "Single argument expected");
+					return FastMath.sin(arguments[0]);
+
+				case "cos":
+					require(arguments.length == 1, "Single argument expected");
+					return FastMath.cos(arguments[0]);
+
+				case "tan":
+					require(arguments.length == 1, "Single argument expected");
+					return FastMath.tan(arguments[0]);
+
+				case "asin":
+					require(arguments.length == 1, "Single argument expected");
+					return FastMath.asin(arguments[0]);
+
+				case "acos":
+					require(arguments.length == 1, "Single argument expected");
+					return FastMath.acos(arguments[0]);
+
+				case "atan":
+					require(arguments.length == 1, "Single argument expected");
+					return FastMath.atan(arguments[0]);
+			}
+			return super.onFunction(function, arguments);
+		}
+	}
+
+	static class EvaluatorDual extends EvaluatorMath {
+		private final double u;
+		private final double v;
+
+		EvaluatorDual(double u, double v) {
+			this.u = u;
+			this.v = v;
+		}
+
+		@Override
+		protected double onValue(String value) throws Error {
+			switch (value) {
+				case "u":
+					return u;
+
+				case "v":
+					return v;
+			}
+			return super.onValue(value);
+		}
+
+		@Override
+		protected double onArray(String array, int subscript) throws Error {
+			if ("vec".equals(array)) {
+				return vec[subscript];
+			}
+			return super.onArray(array, subscript);
+		}
+	}
+
+	/**
+	 * Derivatives of the functions of {@code EvaluatorMath}.
+	 */
+	static class DualMath extends DualEvaluator {
+		DualMath(Evaluator evaluator, String... parameters) {
+			super(evaluator, parameters);
+		}
+
+		@Override
+		protected double onDerivative(String function, double[] arguments, int index) throws Error {
+			double x = arguments[0];
+			switch (function) {
+				case "min":
+					return index == indexOf(arguments, EvaluatorMath.min(arguments)) ? 1 : 0;
+
+				case "max":
+					return index == indexOf(arguments, EvaluatorMath.max(arguments)) ? 1 : 0;
+
+				case "avg":
+					return 1. / arguments.length;
+
+				case "abs":
+					return Math.signum(x);
+
+				case "sign":
+				case "floor":
+				case "ceil":
+				case "round":
+					return 0;
+
+				///// power and logarithms
+				case "exp":
+					return Math.exp(x);
+
+				case "log":
+					if (arguments.length == 2) {
+						double base = Math.log(arguments[1]);
+						if (index == 0) {
+							return 1 / (x * base);
+						}
+						return -Math.log(x) / (arguments[1] * base * base);
+					}
+					return 1 / x;
+
+				case "ln":
+					return 1 / x;
+
+				case "sqrt":
+					return .5 / Math.sqrt(x);
+
+				case "pow":
+					if (index == 0) {
+						// x ** 0 is constant
+						return arguments[1] == 0 ? 0 : arguments[1] * Math.pow(x, arguments[1] - 1);
+					}
+					// 0 ** y is constant for positive y
+					double pow = Math.pow(x, arguments[1]);
+					return pow == 0 ? 0 : pow * Math.log(x);
+
+				///// trigonometric functions
+				case "sin":
+					return Math.cos(x);
+
+				case "cos":
+					return -Math.sin(x);
+
+				case "tan":
+					return 1 / (Math.cos(x) * Math.cos(x));
+
+				case "sinh":
+					return Math.cosh(x);
+
+				case "cosh":
+					return Math.sinh(x);
+
+				case "tanh":
+					return 1 - Math.tanh(x) * Math.tanh(x);
+
+				case "asin":
+					return 1 / Math.sqrt(1 - x * x);
+
+				case "acos":
+					return -1 / Math.sqrt(1 - x * x);
+
+				case "atan":
+					return 1 / (1 + x * x);
+
+				case "asinh":
+					return 1 / Math.sqrt(x * x + 1);
+
+				case "acosh":
+					return 1 / Math.sqrt(x * x - 1);
+
+				case "atanh":
+					return 1 / (1 - x * x);
+
+				case "sec":
+					return Math.tan(x) / Math.cos(x);
+
+				case "csc":
+					return -1 / (Math.sin(x) * Math.tan(x));
+
+				case "cot":
+					return -1 / (Math.sin(x) * Math.sin(x));
+
+				case "sech":
+					return -Math.tanh(x) / Math.cosh(x);
+
+				case "csch":
+					return -1 / (Math.sinh(x) * Math.tanh(x));
+
+				case "coth":
+					return -1 / (Math.sinh(x) * Math.sinh(x));
+
+				case "asec":
+					return 1 / (Math.abs(x) * Math.sqrt(x * x - 1));
+
+				case "acsc":
+					return -1 / (Math.abs(x) * Math.sqrt(x * x - 1));
+
+				case "acot":
+					return -1 / (1 + x * x);
+
+				case "asech":
+					return -1 / (x * Math.sqrt(1 - x * x));
+
+				case "acsch":
+					return -1 / (Math.abs(x) * Math.sqrt(1 + x * x));
+
+				case "acoth":
+					return 1 / (1 - x * x);
+			}
+			return super.onDerivative(function, arguments, index);
+		}
+
+		private static int indexOf(double[] arguments, double value) {
+			for (int i = 0; i < arguments.length; i += 1) {
+				if (arguments[i] == value) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+
+	static class EvaluatorMath extends Evaluator {
+		protected static final double nan = Double.NaN;
+		protected static final double inf = Double.POSITIVE_INFINITY;
+		protected static final double pi = Math.PI;
+		protected static final double e = Math.E;
+
+		@Override
+		protected double onValue(String value) throws Error {
+			switch (value) {
+				case "nan":
+					return nan;
+
+				case "inf":
+					return inf;
+
+				case "pi":
+					return pi;
 
 				case "e":
 					return e;
@@ -476,7 +2701,13 @@ public class TestExpr {
 
 		@Override
 		protected double onArray(String array, int subscript) throws Error {
-			throw new Error("Invalid subscript: " + array + "[" + subscript + "]");
+			throw new Error(Error.Code.INVALID_SUBSCRIPT, "Invalid subscript: " + array + "[" + subscript + "]");
+		}
+
+		@Override
+		protected boolean isPure(String function) {
+			// all the functions are pure
+			return true;
 		}
 
 		@Override
@@ -632,7 +2863,7 @@ public class TestExpr {
 					require(arguments.length == 1, "Single argument expected");
 					return acoth(arguments[0]);
 			}
-			throw new Error("Invalid function: " + function);
+			throw new Error(Error.Code.INVALID_FUNCTION, "Invalid function: " + function);
 		}
 
 		// power and logarithm
@@ -1,4 +1,4 @@
-import java.io.FileWriter;
+import java.nio.file.Path;
 import java.util.concurrent.TimeUnit;
 
 class TestImage extends Evaluator {
@@ -29,31 +29,37 @@ class TestImage extends Evaluator {
 		evaluator.evaluate(root);
 		eval0Time = System.nanoTime() - eval0Time;
 
-		// write the value of each evaluation to the file
+		// write the value of each evaluation to the raster, then the raster to the file
 		long execTime = System.nanoTime();
-		try (FileWriter img = new FileWriter("test.ppm")) {
-			img.append("P2\n")
-					.append(String.valueOf(width))
-					.append(" ")
-					.append(String.valueOf(height))
-					.append(" 255\n");
-
-			for (int y = 0; y < height; y += 1) {
-				for (int x = 0; x < width; x += 1) {
-					evaluator.vars['x'] = 2 * x / (double) width - 1;
-					evaluator.vars['y'] = 2 * y / (double) height - 1;
-					double value = 256 * evaluator.evaluate(root);
-					value = Math.min(Math.max(value, 0), 255);
-					if (x > 0) {
-						img.append(" ");
-					}
-					img.append(String.valueOf((int) value));
-				}
-				img.append("\n");
+		Raster img = new Raster(width, height, 1, 255);
+		for (int y = 0; y < height; y += 1) {
+			for (int x = 0; x < width; x += 1) {
+				evaluator.vars['x'] = 2 * x / (double) width - 1;
+				evaluator.vars['y'] = 2 * y / (double) height - 1;
+				img.set(x, y, 0, pixel(evaluator.evaluate(root)));
 			}
 		}
+		if (args.length > 0 && "ascii".equals(args[0])) {
+			img.writeAscii(Path.of("test.pgm"));
+		} else {
+			img.writeBinary(Path.of("test.pgm"));
+		}
 		execTime = System.nanoTime() - execTime;
 
+		// evaluate the ranges of tiles, and only subdivide the tiles which are not of a single color
+		long adaptiveTime = System.nanoTime();
+		Raster adaptive = new Raster(width, height, 1, 255);
+		Intervals intervals = new Intervals();
+		int tiles = intervals.render(root, evaluator, adaptive, 0, 0, width, height);
+		adaptiveTime = System.nanoTime() - adaptiveTime;
+		for (int y = 0; y < height; y += 1) {
+			for (int x = 0; x < width; x += 1) {
+				if (adaptive.get(x, y, 0) != img.get(x, y, 0)) {
+					throw new Error("Adaptive rendering differs at: " + x + ", " + y);
+				}
+			}
+		}
+
 		// evaluate a single time (this time the evaluate function should be jit compiled)
 		long eval1Time = System.nanoTime();
 		evaluator.vars['x'] = 0;
@@ -61,11 +67,28 @@ class TestImage extends Evaluator {
 		evaluator.evaluate(root);
 		eval1Time = System.nanoTime() - eval1Time;
 
+		// the size of the samples is computed without overflow, and checked before allocating them
+		try {
+			new Raster(65536, 65536, 3, 65535);
+			throw new Error("Image too large expected");
+		} catch (IllegalArgumentException e) {
+			if (!e.getMessage().startsWith("Image too large: 65536x65536x3 samples need 25769803776 bytes")) {
+				throw e;
+			}
+		}
+
 		double unit = TimeUnit.MILLISECONDS.toNanos(1);
 		System.out.println("parseTime.millis: " + parseTime / unit);
 		System.out.println("eval0Time.millis: " + eval0Time / unit);
 		System.out.println("eval1Time.millis: " + eval1Time / unit);
 		System.out.println("execTime.millis: " + execTime / unit);
+		System.out.println("adaptiveTime.millis: " + adaptiveTime / unit + ", tiles: " + tiles);
+	}
+
+	// convert the value of the evaluation to the color of the pixel
+	private static int pixel(double value) {
+		value = 256 * value;
+		return (int) Math.min(Math.max(value, 0), 255);
 	}
 
 	private final double[] vars;
@@ -163,4 +186,156 @@ class TestImage extends Evaluator {
 
 		return super.evaluate(node);
 	}
+
+	/**
+	 * Evaluates the ranges of the variables of the image over rectangular tiles.
+	 */
+	static class Intervals extends IntervalEvaluator {
+		private final Interval[] vars;
+
+		public Intervals() {
+			this.vars = new Interval[128];
+			for (int i = '0'; i <= '9'; i++) {
+				vars[i] = Interval.of(i - '0');
+			}
+		}
+
+		/**
+		 * Render the tile of the image using a quadtree: if the range of the expression over the tile
+		 * maps to a single color, the tile is filled, otherwise it is split into four smaller tiles.
+		 * Single pixels are evaluated with the given evaluator.
+		 *
+		 * @return the number of tiles evaluated.
+		 */
+		public int render(Parser.Node root, TestImage evaluator, Raster img, int x0, int y0, int x1, int y1) throws Error {
+			if (x1 - x0 == 1 && y1 - y0 == 1) {
+				evaluator.vars['x'] = 2 * x0 / (double) img.width - 1;
+				evaluator.vars['y'] = 2 * y0 / (double) img.height - 1;
+				img.set(x0, y0, 0, pixel(evaluator.evaluate(root)));
+				return 1;
+			}
+
+			// use the same coordinates of the first and last pixel as the evaluator
+			vars['x'] = Interval.of(2 * x0 / (double) img.width - 1, 2 * (x1 - 1) / (double) img.width - 1);
+			vars['y'] = Interval.of(2 * y0 / (double) img.height - 1, 2 * (y1 - 1) / (double) img.height - 1);
+			Interval value = evaluate(root);
+			if (!value.isEntire() && pixel(value.min) == pixel(value.max)) {
+				int color = pixel(value.min);
+				for (int y = y0; y < y1; y += 1) {
+					for (int x = x0; x < x1; x += 1) {
+						img.set(x, y, 0, color);
+					}
+				}
+				return 1;
+			}
+
+			int tiles = 1;
+			int xm = (x0 + x1 + 1) / 2;
+			int ym = (y0 + y1 + 1) / 2;
+			tiles += render(root, evaluator, img, x0, y0, xm, ym);
+			if (xm < x1) {
+				tiles += render(root, evaluator, img, xm, y0, x1, ym);
+			}
+			if (ym < y1) {
+				tiles += render(root, evaluator, img, x0, ym, xm, y1);
+			}
+			if (xm < x1 && ym < y1) {
+				tiles += render(root, evaluator, img, xm, ym, x1, y1);
+			}
+			return tiles;
+		}
+
+		public int var(Parser.Node node) throws Error {
+			if (node.getToken() != Lexer.Token.Value) {
+				throw new Error("set can only modify variables", node);
+			}
+			if (node.getText().length() != 1) {
+				throw new Error("variables can be single characters", node);
+			}
+			char chr = node.getText().charAt(0);
+			if (chr >= '0' && chr <= '9') {
+				throw new Error("variables can not be numbers", node);
+			}
+			return chr;
+		}
+
+		@Override
+		protected Interval onValue(String value) {
+			if (value.length() == 1) {
+				return vars[value.charAt(0)];
+			}
+			return Interval.of(Double.parseDouble(value));
+		}
+
+		@Override
+		protected Interval onFunction(String function, Interval[] arguments) throws Error {
+			switch (function) {
+				case "abs":
+					require(arguments.length == 1, "abs requires one argument");
+					return arguments[0].abs();
+
+				case "sign": {
+					require(arguments.length == 1, "sign requires one argument");
+					Interval x = arguments[0];
+					if (x.isEntire()) {
+						return x;
+					}
+					return Interval.of(Math.signum(x.min), Math.signum(x.max));
+				}
+
+				case "mix": {
+					require(arguments.length == 3, "Linear interpolation requires three arguments");
+					Interval min = arguments[0];
+					Interval max = arguments[1];
+					Interval t = arguments[2];
+					return min.add(t.mul(max.sub(min)));
+				}
+				case "smoothstep": {
+					require(arguments.length == 3, "Hermite interpolation requires three arguments");
+					Interval min = arguments[0];
+					Interval max = arguments[1];
+					// the interpolation is monotonic in the normalized argument
+					Interval t = arguments[2].sub(min).div(max.sub(min));
+					if (t.isEntire()) {
+						return t;
+					}
+					return Interval.of(Math.nextDown(smoothstep(t.min)), Math.nextUp(smoothstep(t.max)));
+				}
+			}
+			throw new Error("Invalid function: " + function);
+		}
+
+		private static double smoothstep(double t) {
+			if (t < 0) {
+				return 0;
+			}
+			if (t > 1) {
+				return 1;
+			}
+			return t * t * (3 - 2 * t);
+		}
+
+		@Override
+		public Interval evaluate(Parser.Node node) throws Error {
+			switch (node.getToken()) {
+				case Set:
+					return vars[var(node.getLeft())] = evaluate(node.getRight());
+				case SetAdd:
+					return vars[var(node.getLeft())] = vars[var(node.getLeft())].add(evaluate(node.getRight()));
+				case SetSub:
+					return vars[var(node.getLeft())] = vars[var(node.getLeft())].sub(evaluate(node.getRight()));
+				case SetMul:
+					return vars[var(node.getLeft())] = vars[var(node.getLeft())].mul(evaluate(node.getRight()));
+				case SetDiv:
+					return vars[var(node.getLeft())] = vars[var(node.getLeft())].div(evaluate(node.getRight()));
+
+				case Coma:
+					// enable chain of expressions, returning the value of the last one
+					evaluate(node.getLeft());
+					return evaluate(node.getRight());
+			}
+
+			return super.evaluate(node);
+		}
+	}
 }
@@ -0,0 +1,158 @@
+import java.util.function.Predicate;
+
+/**
+ * The TypeInference class proves which subtrees of an expression always evaluate to integers.
+ * It copies the abstract syntax tree into nodes annotated with the inferred type,
+ * which are evaluated by the {@code Evaluator} on a {@code long} path, without converting
+ * the operands of integer operations from and to {@code double}, and without checking them.
+ * <p>
+ * Integral are: integer literals, variables declared as integers, results of comparisons and
+ * logical negation, and results of integer operations, unary and logical operators,
+ * and the conditional operator on integral operands.
+ * <p>
+ * Both paths compute the same values: the long path rounds the results of the operations
+ * and the literals with magnitude above 2**53 to the nearest double, as the double path does.
+ */
+public class TypeInference {
+
+	/**
+	 * Infer the types of the expression, without integer variables.
+	 *
+	 * @param root root of the syntax tree.
+	 * @return root of the annotated syntax tree.
+	 */
+	public static Node infer(Parser.Node root) {
+		return infer(root, name -> false);
+	}
+
+	/**
+	 * Infer the types of the expression.
+	 *
+	 * @param root     root of the syntax tree.
+	 * @param integers returns true for the names of the variables which are always integers.
+	 * @return root of the annotated syntax tree.
+	 */
+	public static Node infer(Parser.Node root, Predicate<String> integers) {
+		if (root == null) {
+			return null;
+		}
+
+		switch (root.token) {
+			case Value:
+				String text = root.getText();
+				if (isLiteral(text)) {
+					try {
+						// rounded as the literal parsed by the double path
+						return new Node(root, null, null, true, true, (long) (double) Long.parseLong(text));
+					} catch (NumberFormatException e) {
+						// the literal does not fit in a long
+						return new Node(root, null, null, false, false, 0);
+					}
+				}
+				return new Node(root, null, null, integers.test(text), false, 0);
+
+			case Fun:
+			case Idx:
+				if (root.left != null && root.left.token == Lexer.Token.Value) {
+					// function and array names are not values
+					Node name = new Node(root.left, null, null, false, false, 0);
+					return new Node(root, name, infer(root.right, integers), false, false, 0);
+				}
+				break;
+		}
+
+		Node left = infer(root.left, integers);
+		Node right = infer(root.right, integers);
+		boolean integral = false;
+		switch (root.token) {
+			case Fun:
+				// subexpression with parenthesis: `(3 + 2)`
+				integral = left == null && right != null && right.integral;
+				break;
+
+			case Pos:
+			case Neg:
+			case Cmt:
+				integral = right != null && right.integral;
+				break;
+
+			case Not:
+			case Lt:
+			case Leq:
+			case Gt:
+			case Geq:
+			case Eq:
+			case Neq:
+				// results are always 0 or 1
+				integral = true;
+				break;
+
+			case Shl:
+			case Shr:
+			case Sar:
+			case And:
+			case Xor:
+			case Ior:
+			case All:
+			case Any:
+				integral = left != null && left.integral && right != null && right.integral;
+				break;
+
+			case Chk:
+				if (right != null && right.token == Lexer.Token.Sel) {
+					integral = right.left != null && isIntegral(right.left) && right.right != null && isIntegral(right.right);
+				}
+				break;
+		}
+		return new Node(root, left, right, integral, false, 0);
+	}
+
+	/**
+	 * Check if the node was proven to always evaluate to an integer.
+	 *
+	 * @param node the node to check.
+	 * @return true if the node is annotated as integral.
+	 */
+	public static boolean isIntegral(Parser.Node node) {
+		return node instanceof Node && ((Node) node).integral;
+	}
+
+	// decimal integer literals, without sign, fraction or exponent
+	private static boolean isLiteral(String text) {
+		if (text.isEmpty()) {
+			return false;
+		}
+		for (int i = 0; i < text.length(); i += 1) {
+			char chr = text.charAt(i);
+			if (chr < '0' || chr > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Abstract syntax tree node annotated with its inferred type.
+	 */
+	public static final class Node extends Parser.Node {
+		/**
+		 * The node always evaluates to an integer.
+		 */
+		public final boolean integral;
+
+		/**
+		 * The node is an integer literal, with the decoded value.
+		 */
+		public final boolean literal;
+		public final long value;
+
+		private Node(Parser.Node node, Node left, Node right, boolean integral, boolean literal, long value) {
+			super(node.token, node.getPosition(), node.getText());
+			this.left = left;
+			this.right = right;
+			this.integral = integral;
+			this.literal = literal;
+			this.value = value;
+		}
+	}
+}